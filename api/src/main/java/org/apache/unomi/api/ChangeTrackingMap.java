@@ -0,0 +1,379 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+import java.util.*;
+
+/**
+ * A map keeping track of the keys whose values were set since the last call to {@link #resetChanges()}, so that only these values need to be
+ * persisted. Values that could be modified in place (maps, lists, dates...) are copied when first read, and considered modified if they differ from
+ * that copy when the changes are retrieved. Beans cannot be copied and are considered modified as soon as they are read. Removing keys is recorded
+ * as a structural modification since it cannot be expressed as a partial update.
+ *
+ * @param <V> the type of the values
+ */
+public class ChangeTrackingMap<V> extends HashMap<String, V> {
+
+    private static final long serialVersionUID = -2203641573470453108L;
+
+    private transient Set<String> modifiedKeys;
+    /**
+     * Copies of the values that could be modified in place, as they were when first read.
+     */
+    private transient Map<String, Object> readValues;
+    private transient boolean structurallyModified;
+
+    /**
+     * Instantiates a new empty ChangeTrackingMap.
+     */
+    public ChangeTrackingMap() {
+        super();
+        resetChanges();
+    }
+
+    /**
+     * Instantiates a new ChangeTrackingMap with the content of the specified map, without recording any change.
+     *
+     * @param map the map whose content is copied
+     */
+    public ChangeTrackingMap(Map<String, ? extends V> map) {
+        super(map);
+        resetChanges();
+    }
+
+    /**
+     * Retrieves the keys whose values were set, or modified in place, since the last reset.
+     *
+     * @return the modified keys
+     */
+    public synchronized Set<String> getModifiedKeys() {
+        if (readValues == null) {
+            return modifiedKeys != null ? modifiedKeys : Collections.<String>emptySet();
+        }
+        Set<String> keys = modifiedKeys != null ? new HashSet<>(modifiedKeys) : new HashSet<String>();
+        for (Map.Entry<String, Object> readValue : readValues.entrySet()) {
+            if (!keys.contains(readValue.getKey()) && !Objects.equals(readValue.getValue(), super.get(readValue.getKey()))) {
+                keys.add(readValue.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Checks whether keys were removed, or the map cleared, since the last reset.
+     *
+     * @return {@code true} if the map needs to be persisted as a whole
+     */
+    public boolean isStructurallyModified() {
+        return structurallyModified;
+    }
+
+    /**
+     * Checks whether the map was modified in any way since the last reset.
+     *
+     * @return {@code true} if the map was modified
+     */
+    public boolean isModified() {
+        return structurallyModified || !getModifiedKeys().isEmpty();
+    }
+
+    /**
+     * Forgets the recorded changes, usually once the map was persisted.
+     */
+    public synchronized void resetChanges() {
+        modifiedKeys = null;
+        readValues = null;
+        structurallyModified = false;
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = super.get(key);
+        recordRead(key, value);
+        return value;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        markModified(key);
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends V> map) {
+        for (String key : map.keySet()) {
+            markModified(key);
+        }
+        super.putAll(map);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (containsKey(key)) {
+            structurallyModified = true;
+        }
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        if (!isEmpty()) {
+            structurallyModified = true;
+        }
+        super.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        final Set<Map.Entry<String, V>> entries = super.entrySet();
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return entries.contains(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                boolean removed = entries.remove(o);
+                structurallyModified |= removed;
+                return removed;
+            }
+
+            @Override
+            public void clear() {
+                ChangeTrackingMap.this.clear();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                final Iterator<Map.Entry<String, V>> iterator = entries.iterator();
+                return new Iterator<Map.Entry<String, V>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, V> next() {
+                        return new TrackedEntry(iterator.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        structurallyModified = true;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        final Set<String> keys = super.keySet();
+        return new AbstractSet<String>() {
+            @Override
+            public int size() {
+                return keys.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return keys.contains(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                boolean removed = keys.remove(o);
+                structurallyModified |= removed;
+                return removed;
+            }
+
+            @Override
+            public void clear() {
+                ChangeTrackingMap.this.clear();
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<String> iterator = keys.iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        structurallyModified = true;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        final Set<Map.Entry<String, V>> entries = entrySet();
+        return new AbstractCollection<V>() {
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+            @Override
+            public void clear() {
+                ChangeTrackingMap.this.clear();
+            }
+
+            @Override
+            public Iterator<V> iterator() {
+                final Iterator<Map.Entry<String, V>> iterator = entries.iterator();
+                return new Iterator<V>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        return iterator.next().getValue();
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+        };
+    }
+
+    // reads record copies, and conditions may be evaluated concurrently on the same profile
+    private synchronized void markModified(String key) {
+        if (modifiedKeys == null) {
+            modifiedKeys = new HashSet<>();
+        }
+        modifiedKeys.add(key);
+    }
+
+    private void recordRead(Object key, Object value) {
+        if (value == null || !(key instanceof String) || isImmutable(value)) {
+            return;
+        }
+        synchronized (this) {
+            if ((modifiedKeys == null || !modifiedKeys.contains(key)) && (readValues == null || !readValues.containsKey(key))) {
+                if (readValues == null) {
+                    readValues = new HashMap<>();
+                }
+                readValues.put((String) key, copy(value));
+            }
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum;
+    }
+
+    /**
+     * Copies the specified value deeply enough to detect later in place modifications by comparing it to the copy. Values that cannot be copied are
+     * replaced by an object that is equal to no value.
+     */
+    private static Object copy(Object value) {
+        if (value == null || isImmutable(value)) {
+            return value;
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> copy = new HashMap<>(map.size());
+            // the entries of a tracking map are read without recording them
+            for (Map.Entry<?, ?> entry : map instanceof ChangeTrackingMap ? ((ChangeTrackingMap<?>) map).untrackedEntrySet() : map.entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List || value instanceof Set) {
+            Collection<Object> copy = value instanceof List ? new ArrayList<Object>() : new HashSet<Object>();
+            for (Object element : (Collection<?>) value) {
+                copy.add(copy(element));
+            }
+            return copy;
+        }
+        return new Object();
+    }
+
+    private Set<Map.Entry<String, V>> untrackedEntrySet() {
+        return super.entrySet();
+    }
+
+    private class TrackedEntry implements Map.Entry<String, V> {
+
+        private final Map.Entry<String, V> entry;
+
+        TrackedEntry(Map.Entry<String, V> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public String getKey() {
+            return entry.getKey();
+        }
+
+        @Override
+        public V getValue() {
+            V value = entry.getValue();
+            recordRead(entry.getKey(), value);
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            markModified(entry.getKey());
+            return entry.setValue(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return entry.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return entry.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return entry.toString();
+        }
+    }
+}
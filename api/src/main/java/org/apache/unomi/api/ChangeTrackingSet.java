@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * A set keeping track of whether it was modified since the last call to {@link #resetChanges()}, so that it is only persisted when needed.
+ *
+ * @param <E> the type of the elements
+ */
+public class ChangeTrackingSet<E> extends HashSet<E> {
+
+    private static final long serialVersionUID = 5212839421657823409L;
+
+    private transient boolean modified;
+
+    /**
+     * Instantiates a new empty ChangeTrackingSet.
+     */
+    public ChangeTrackingSet() {
+        super();
+        resetChanges();
+    }
+
+    /**
+     * Instantiates a new ChangeTrackingSet with the content of the specified collection, without recording any change.
+     *
+     * @param collection the collection whose content is copied
+     */
+    public ChangeTrackingSet(Collection<? extends E> collection) {
+        super(collection);
+        resetChanges();
+    }
+
+    /**
+     * Checks whether elements were added or removed since the last reset.
+     *
+     * @return {@code true} if the set was modified
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Forgets the recorded changes, usually once the set was persisted.
+     */
+    public void resetChanges() {
+        modified = false;
+    }
+
+    @Override
+    public boolean add(E e) {
+        boolean added = super.add(e);
+        modified |= added;
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        boolean removed = super.remove(o);
+        modified |= removed;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        modified |= !isEmpty();
+        super.clear();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> iterator = super.iterator();
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                modified = true;
+            }
+        };
+    }
+}
@@ -35,6 +35,11 @@ public class ClusterNode implements Serializable {
     private long uptime;
     private boolean master;
     private boolean data;
+    private long heapUsed;
+    private long heapMax;
+    private long eventCount;
+    private double eventsPerSecond;
+    private long lastUpdate;
 
     /**
      * Instantiates a new Cluster node.
@@ -203,4 +208,95 @@ public class ClusterNode implements Serializable {
     public void setData(boolean data) {
         this.data = data;
     }
+
+    /**
+     * Retrieves the amount of heap memory currently used by this node, in bytes.
+     *
+     * @return the used heap memory in bytes
+     */
+    public long getHeapUsed() {
+        return heapUsed;
+    }
+
+    /**
+     * Sets the amount of heap memory currently used by this node, in bytes.
+     *
+     * @param heapUsed the used heap memory in bytes
+     */
+    public void setHeapUsed(long heapUsed) {
+        this.heapUsed = heapUsed;
+    }
+
+    /**
+     * Retrieves the maximum amount of heap memory this node can use, in bytes.
+     *
+     * @return the maximum heap memory in bytes
+     */
+    public long getHeapMax() {
+        return heapMax;
+    }
+
+    /**
+     * Sets the maximum amount of heap memory this node can use, in bytes.
+     *
+     * @param heapMax the maximum heap memory in bytes
+     */
+    public void setHeapMax(long heapMax) {
+        this.heapMax = heapMax;
+    }
+
+    /**
+     * Retrieves the number of events processed by this node since it started.
+     *
+     * @return the number of processed events
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Sets the number of events processed by this node since it started.
+     *
+     * @param eventCount the number of processed events
+     */
+    public void setEventCount(long eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    /**
+     * Retrieves the event throughput of this node, measured over the last statistics update period.
+     *
+     * @return the number of events processed per second
+     */
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    /**
+     * Sets the event throughput of this node.
+     *
+     * @param eventsPerSecond the number of events processed per second
+     */
+    public void setEventsPerSecond(double eventsPerSecond) {
+        this.eventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * Retrieves the time at which this node last published its statistics, in milliseconds since the epoch. Statistics of a node that doesn't publish
+     * them anymore become stale, which can be detected using this value.
+     *
+     * @return the time of the last statistics update, or {@code 0} if this node never published its statistics
+     */
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * Sets the time at which this node last published its statistics.
+     *
+     * @param lastUpdate the time of the last statistics update, in milliseconds since the epoch
+     */
+    public void setLastUpdate(long lastUpdate) {
+        this.lastUpdate = lastUpdate;
+    }
 }
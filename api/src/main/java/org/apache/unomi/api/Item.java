@@ -20,6 +20,7 @@ package org.apache.unomi.api;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.bind.annotation.XmlTransient;
 import java.io.Serializable;
 
 /**
@@ -40,6 +41,7 @@ public abstract class Item implements Serializable {
     protected String itemId;
     protected String itemType;
     protected String scope;
+    protected transient Long version;
 
     public Item() {
         try {
@@ -95,6 +97,21 @@ public abstract class Item implements Serializable {
         this.scope = scope;
     }
 
+    /**
+     * Retrieves the version of this Item in the persistence service, as of when it was last loaded or saved. The version is not part of the Item's
+     * content and is only used to detect concurrent modifications.
+     *
+     * @return the version of this Item, or {@code null} if it is unknown, for example if the Item was never persisted
+     */
+    @XmlTransient
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
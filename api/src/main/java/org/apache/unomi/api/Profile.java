@@ -22,7 +22,6 @@ import org.apache.unomi.api.segments.Segment;
 
 import javax.xml.bind.annotation.XmlTransient;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -49,16 +48,20 @@ public class Profile extends Item {
      */
     public static final String ITEM_TYPE = "profile";
     private static final long serialVersionUID = -7409439322939712238L;
-    private Map<String, Object> properties = new HashMap<>();
+    private Map<String, Object> properties = new ChangeTrackingMap<>();
 
-    private Map<String, Object> systemProperties = new HashMap<>();
+    private Map<String, Object> systemProperties = new ChangeTrackingMap<>();
 
-    private Set<String> segments = new HashSet<>();
+    private Set<String> segments = new ChangeTrackingSet<>();
 
     private Map<String, Integer> scores;
 
     private String mergedWith;
 
+    private transient boolean replaced;
+
+    private transient boolean mergedWithModified;
+
     /**
      * Instantiates a new Profile.
      */
@@ -111,6 +114,7 @@ public class Profile extends Item {
      */
     public void setProperties(Map<String, Object> properties) {
         this.properties = properties;
+        replaced = true;
     }
 
     /**
@@ -130,6 +134,7 @@ public class Profile extends Item {
      */
     public void setSystemProperties(Map<String, Object> systemProperties) {
         this.systemProperties = systemProperties;
+        replaced = true;
     }
 
     /**
@@ -160,6 +165,7 @@ public class Profile extends Item {
      */
     public void setSegments(Set<String> segments) {
         this.segments = segments;
+        replaced = true;
     }
 
     /**
@@ -176,6 +182,7 @@ public class Profile extends Item {
      */
     public void setMergedWith(String mergedWith) {
         this.mergedWith = mergedWith;
+        mergedWithModified = true;
     }
 
     /**
@@ -192,6 +199,7 @@ public class Profile extends Item {
      */
     public void setScores(Map<String, Integer> scores) {
         this.scores = scores;
+        replaced = true;
     }
 
     @XmlTransient
@@ -200,6 +208,96 @@ public class Profile extends Item {
         return anonymous != null && anonymous;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Setting the version marks the profile as being in sync with its persisted state : changes are tracked from there.
+     */
+    @Override
+    public void setVersion(Long version) {
+        super.setVersion(version);
+        resetChanges();
+    }
+
+    /**
+     * Retrieves the fields that changed since this profile was last loaded or saved, as a partial document to be merged into the persisted one.
+     *
+     * @return the changed fields, an empty Map if nothing changed, or {@code null} if the profile has to be saved as a whole, because its persisted
+     * state is unknown or because properties, segments or scores were removed or replaced
+     */
+    @XmlTransient
+    public Map<String, Object> getChanges() {
+        if (getVersion() == null || replaced || isStructurallyModified(properties) || isStructurallyModified(systemProperties)
+                || isStructurallyModified(scores)) {
+            return null;
+        }
+        Map<String, Object> changes = new HashMap<>();
+        if (!addChanges(changes, "properties", properties) || !addChanges(changes, "systemProperties", systemProperties)
+                || !addChanges(changes, "scores", scores)) {
+            return null;
+        }
+        if (segments != null && ((ChangeTrackingSet<String>) segments).isModified()) {
+            changes.put("segments", segments);
+        }
+        if (mergedWithModified) {
+            changes.put("mergedWith", mergedWith);
+        }
+        return changes;
+    }
+
+    /**
+     * Forgets the changes made to this profile, usually once it was persisted.
+     */
+    public void resetChanges() {
+        replaced = false;
+        mergedWithModified = false;
+        properties = trackChanges(properties);
+        systemProperties = trackChanges(systemProperties);
+        scores = trackChanges(scores);
+        if (segments != null && !(segments instanceof ChangeTrackingSet)) {
+            segments = new ChangeTrackingSet<>(segments);
+        } else if (segments != null) {
+            ((ChangeTrackingSet<String>) segments).resetChanges();
+        }
+    }
+
+    static <V> Map<String, V> trackChanges(Map<String, V> map) {
+        if (map instanceof ChangeTrackingMap) {
+            ((ChangeTrackingMap<V>) map).resetChanges();
+            return map;
+        }
+        return map != null ? new ChangeTrackingMap<>(map) : null;
+    }
+
+    static boolean isStructurallyModified(Map<String, ?> map) {
+        return map != null && ((ChangeTrackingMap<?>) map).isStructurallyModified();
+    }
+
+    /**
+     * Adds the modified entries of the specified map to a partial document. Nested maps cannot be partially updated since the persisted ones would
+     * keep the entries removed since.
+     *
+     * @return {@code false} if a modified entry is a nested map, {@code true} otherwise
+     */
+    static <V> boolean addChanges(Map<String, Object> changes, String field, Map<String, V> map) {
+        if (map == null) {
+            return true;
+        }
+        Set<String> modifiedKeys = ((ChangeTrackingMap<V>) map).getModifiedKeys();
+        if (!modifiedKeys.isEmpty()) {
+            Map<String, Object> values = new HashMap<>(modifiedKeys.size());
+            for (String key : modifiedKeys) {
+                V value = map.get(key);
+                if (value instanceof Map) {
+                    return false;
+                }
+                values.put(key, value);
+            }
+            changes.put(field, values);
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder(512).append("{id: \"").append(getItemId()).append("\", segments: ")
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api;
+
+import java.util.Date;
+
+/**
+ * Records that the {@link Profile} identified by this alias' identifier was merged into another profile. Sessions and events of merged profiles keep
+ * referencing the merged profile identifier, queries by profile are expanded to all the aliases of the profile instead.
+ */
+public class ProfileAlias extends Item {
+    /**
+     * The ProfileAlias ITEM_TYPE.
+     *
+     * @see Item for a discussion of ITEM_TYPE
+     */
+    public static final String ITEM_TYPE = "profileAlias";
+
+    private static final long serialVersionUID = 2578147236498614432L;
+
+    private String masterProfileId;
+    private Date creationDate;
+
+    public ProfileAlias() {
+    }
+
+    /**
+     * Instantiates a new ProfileAlias.
+     *
+     * @param profileId       the identifier of the merged profile
+     * @param masterProfileId the identifier of the profile it was merged into
+     */
+    public ProfileAlias(String profileId, String masterProfileId) {
+        super(profileId);
+        this.masterProfileId = masterProfileId;
+        this.creationDate = new Date();
+    }
+
+    /**
+     * Retrieves the identifier of the profile the aliased profile was merged into. This profile may itself have been merged into another profile since.
+     *
+     * @return the identifier of the master profile
+     */
+    public String getMasterProfileId() {
+        return masterProfileId;
+    }
+
+    public void setMasterProfileId(String masterProfileId) {
+        this.masterProfileId = masterProfileId;
+    }
+
+    /**
+     * Retrieves the date of the merge.
+     *
+     * @return the date at which the aliased profile was merged
+     */
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(Date creationDate) {
+        this.creationDate = creationDate;
+    }
+}
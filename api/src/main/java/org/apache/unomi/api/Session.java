@@ -17,9 +17,11 @@
 
 package org.apache.unomi.api;
 
+import javax.xml.bind.annotation.XmlTransient;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * A time-bounded interaction between a user (via their associated {@link Profile}) and a unomi-enabled application. A session represents a sequence of operations the user
@@ -38,9 +40,9 @@ public class Session extends Item implements TimestampedItem {
 
     private Profile profile;
 
-    private Map<String, Object> properties = new HashMap<>();
+    private Map<String, Object> properties = new ChangeTrackingMap<>();
 
-    private Map<String, Object> systemProperties = new HashMap<>();
+    private Map<String, Object> systemProperties = new ChangeTrackingMap<>();
 
     private Date timeStamp;
 
@@ -52,6 +54,18 @@ public class Session extends Item implements TimestampedItem {
 
     private int duration = 0;
 
+    private transient boolean replaced;
+
+    /**
+     * Whether the associated profile was set since the changes were last reset, the profile being set again on the session whenever it is updated.
+     */
+    private transient boolean profileChanged;
+
+    /**
+     * The version of the associated profile when the changes were last reset, saving the profile changing its version.
+     */
+    private transient Long profileVersion;
+
     /**
      * Instantiates a new Session.
      */
@@ -100,6 +114,7 @@ public class Session extends Item implements TimestampedItem {
     public void setProfile(Profile profile) {
         this.profileId = profile.getItemId();
         this.profile = profile;
+        this.profileChanged = true;
     }
 
     /**
@@ -139,6 +154,7 @@ public class Session extends Item implements TimestampedItem {
      */
     public void setProperties(Map<String, Object> properties) {
         this.properties = properties;
+        replaced = true;
     }
 
     /**
@@ -158,6 +174,7 @@ public class Session extends Item implements TimestampedItem {
      */
     public void setSystemProperties(Map<String, Object> systemProperties) {
         this.systemProperties = systemProperties;
+        replaced = true;
     }
 
     /**
@@ -224,4 +241,52 @@ public class Session extends Item implements TimestampedItem {
     public void setScope(String scope) {
         this.scope = scope;
     }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Setting the version marks the session as being in sync with its persisted state : changes are tracked from there.
+     */
+    @Override
+    public void setVersion(Long version) {
+        super.setVersion(version);
+        resetChanges();
+    }
+
+    /**
+     * Retrieves the fields that changed since this session was last loaded or saved, as a partial document to be merged into the persisted one. The
+     * dates, size, duration and profile identifier are always part of the changes, the associated profile never is : merging it into the persisted
+     * one would keep the profile properties removed since.
+     *
+     * @return the changed fields, or {@code null} if the session has to be saved as a whole, because its persisted state is unknown, because
+     * properties were removed or replaced, or because the associated profile was set or saved since
+     */
+    @XmlTransient
+    public Map<String, Object> getChanges() {
+        if (getVersion() == null || replaced || Profile.isStructurallyModified(properties) || Profile.isStructurallyModified(systemProperties)
+                || profileChanged || (profile != null && !Objects.equals(profile.getVersion(), profileVersion))) {
+            return null;
+        }
+        Map<String, Object> changes = new HashMap<>();
+        if (!Profile.addChanges(changes, "properties", properties) || !Profile.addChanges(changes, "systemProperties", systemProperties)) {
+            return null;
+        }
+        changes.put("profileId", profileId);
+        changes.put("scope", scope);
+        changes.put("lastEventDate", lastEventDate);
+        changes.put("size", size);
+        changes.put("duration", duration);
+        return changes;
+    }
+
+    /**
+     * Forgets the changes made to this session, usually once it was persisted.
+     */
+    public void resetChanges() {
+        replaced = false;
+        properties = Profile.trackChanges(properties);
+        systemProperties = Profile.trackChanges(systemProperties);
+        profileChanged = false;
+        profileVersion = profile != null ? profile.getVersion() : null;
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.api.goals;
+
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.campaigns.Campaign;
+
+import java.util.Date;
+
+/**
+ * Pre-aggregated daily counters for a {@link Goal} or a {@link Campaign}, maintained as the goal and campaign rules fire so that reports don't have to aggregate over
+ * the session indices. Each context server node writes its own rollups (identified by {@link #getNodeId()}), reports are computed by summing all the rollups of a target.
+ */
+public class ReportRollup extends Item {
+    /**
+     * The ReportRollup ITEM_TYPE.
+     *
+     * @see Item for a discussion of ITEM_TYPE
+     */
+    public static final String ITEM_TYPE = "reportRollup";
+
+    /**
+     * Rollup type for rollups associated with a {@link Goal}.
+     */
+    public static final String GOAL_ROLLUP = "goal";
+
+    /**
+     * Rollup type for rollups associated with a {@link Campaign}.
+     */
+    public static final String CAMPAIGN_ROLLUP = "campaign";
+
+    private static final long serialVersionUID = -3580234578294711683L;
+
+    private String rollupType;
+    private String targetId;
+    private Date day;
+    private String dimension;
+    private String dimensionValue;
+    private String nodeId;
+    private long startCount;
+    private long targetCount;
+    private long engagedCount;
+
+    public ReportRollup() {
+    }
+
+    public ReportRollup(String itemId) {
+        super(itemId);
+    }
+
+    /**
+     * Retrieves the type of this rollup, either {@link #GOAL_ROLLUP} or {@link #CAMPAIGN_ROLLUP}.
+     *
+     * @return the type of this rollup
+     */
+    public String getRollupType() {
+        return rollupType;
+    }
+
+    public void setRollupType(String rollupType) {
+        this.rollupType = rollupType;
+    }
+
+    /**
+     * Retrieves the identifier of the goal or campaign these counters are about.
+     *
+     * @return the identifier of the goal or campaign
+     */
+    public String getTargetId() {
+        return targetId;
+    }
+
+    public void setTargetId(String targetId) {
+        this.targetId = targetId;
+    }
+
+    /**
+     * Retrieves the day (at midnight UTC) these counters are about.
+     *
+     * @return the day of the counters
+     */
+    public Date getDay() {
+        return day;
+    }
+
+    public void setDay(Date day) {
+        this.day = day;
+    }
+
+    /**
+     * Retrieves the name of the session property used to split the counters, if any.
+     *
+     * @return the name of the split dimension or {@code null} if counters are not split
+     */
+    public String getDimension() {
+        return dimension;
+    }
+
+    public void setDimension(String dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * Retrieves the value of the split dimension for these counters.
+     *
+     * @return the value of the split dimension or {@code null} if counters are not split
+     */
+    public String getDimensionValue() {
+        return dimensionValue;
+    }
+
+    public void setDimensionValue(String dimensionValue) {
+        this.dimensionValue = dimensionValue;
+    }
+
+    /**
+     * Retrieves the identifier of the context server node that wrote this rollup.
+     *
+     * @return the identifier of the writing node
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Retrieves the number of sessions that reached the goal start event.
+     *
+     * @return the number of started sessions
+     */
+    public long getStartCount() {
+        return startCount;
+    }
+
+    public void setStartCount(long startCount) {
+        this.startCount = startCount;
+    }
+
+    /**
+     * Retrieves the number of sessions that reached the goal target event.
+     *
+     * @return the number of sessions that reached the goal
+     */
+    public long getTargetCount() {
+        return targetCount;
+    }
+
+    public void setTargetCount(long targetCount) {
+        this.targetCount = targetCount;
+    }
+
+    /**
+     * Retrieves the number of sessions that were engaged in the campaign.
+     *
+     * @return the number of engaged sessions
+     */
+    public long getEngagedCount() {
+        return engagedCount;
+    }
+
+    public void setEngagedCount(long engagedCount) {
+        this.engagedCount = engagedCount;
+    }
+}
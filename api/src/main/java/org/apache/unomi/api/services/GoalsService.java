@@ -28,6 +28,8 @@ import org.apache.unomi.api.query.AggregateQuery;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.rules.Rule;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -90,6 +92,14 @@ public interface GoalsService {
      */
     GoalReport getGoalReport(String goalId, AggregateQuery query);
 
+    /**
+     * Retrieves the reports for the goals identified with the specified identifiers, the underlying counts being retrieved in a single batch.
+     *
+     * @param goalIds the identifiers of the goals which reports we want to retrieve
+     * @return a Map associating the identifier of each existing goal with its report, unknown goals being omitted
+     */
+    Map<String, GoalReport> getGoalReports(List<String> goalIds);
+
     /**
      * Retrieves the set of Metadata associated with existing campaigns.
      *
@@ -37,6 +37,8 @@ public interface PrivacyService {
 
     Boolean deleteProfileData(String profileId);
 
+    String getOperationStatus(String profileId);
+
     Boolean setRequireAnonymousBrowsing(String profileId, boolean anonymous);
 
     Boolean isRequireAnonymousBrowsing(String profileId);
@@ -89,6 +89,51 @@ public interface ProfileService {
      */
     Profile mergeProfiles(Profile masterProfile, List<Profile> profilesToMerge);
 
+    /**
+     * Merges several groups of profiles in parallel, as done by {@link #mergeProfiles(Profile, List)}, for instance for identity resolution jobs. The first
+     * profile of each group is used as the master profile of the group. Profiles are not saved.
+     *
+     * @param profileGroups the groups of profiles to merge
+     * @return the merged master profiles, in the order of the groups ({@code null} for empty groups and groups that couldn't be merged)
+     */
+    List<Profile> mergeProfileGroups(List<List<Profile>> profileGroups);
+
+    /**
+     * Records that the specified profile was merged into the specified master profile, so that the sessions and events of the merged profile are
+     * considered as belonging to the master profile without having to be rewritten. Profiles previously merged into the merged profile become aliases
+     * of the master profile as well.
+     *
+     * @param profileId       the identifier of the merged profile
+     * @param masterProfileId the identifier of the profile it was merged into
+     * @return {@code true} if the alias was properly saved, {@code false} otherwise
+     */
+    boolean addProfileAlias(String profileId, String masterProfileId);
+
+    /**
+     * Resolves the specified profile identifier to the identifier of the profile it was (possibly transitively) merged into.
+     *
+     * @param profileId the identifier of the profile to resolve
+     * @return the identifier of the master profile, or the specified identifier if the profile wasn't merged
+     */
+    String resolveProfileId(String profileId);
+
+    /**
+     * Resolves the specified profile identifiers to the identifiers of the profiles they were (possibly transitively) merged into, looking up the
+     * aliases that are not cached with a single query per batch of identifiers.
+     *
+     * @param profileIds the identifiers of the profiles to resolve
+     * @return a map of each specified identifier to the identifier of its master profile, or to itself if the profile wasn't merged
+     */
+    Map<String, String> resolveProfileIds(Collection<String> profileIds);
+
+    /**
+     * Retrieves the identifiers of all the profiles that were (possibly transitively) merged into the specified profile.
+     *
+     * @param profileId the identifier of the master profile
+     * @return the identifiers of the aliases of the specified profile, not including the profile itself
+     */
+    Set<String> getProfileAliases(String profileId);
+
     /**
      * Retrieves the profile identified by the specified identifier.
      *
@@ -155,6 +200,46 @@ public interface ProfileService {
      */
     Session saveSession(Session session);
 
+    /**
+     * Retrieves the profile as it is stored in sessions : the specified profile itself if sessions embed their profile, otherwise a reference holding
+     * its identifier, its anonymous flag and the profile fields configured for sessions.
+     *
+     * @param profile the profile associated with a session
+     * @return the profile to store in the session
+     */
+    Profile getSessionProfile(Profile profile);
+
+    /**
+     * Rewrites the persisted sessions so that they only store the profile fields configured for sessions instead of a full copy of their profile. Does
+     * nothing if sessions are configured to embed their profile, or if a migration is already running.
+     *
+     * @return the number of rewritten sessions
+     */
+    int migrateSessionProfiles();
+
+    /**
+     * Starts rewriting the persisted sessions in the background, as {@link #migrateSessionProfiles()} does. The progress can be followed with
+     * {@link #getMigratedSessionProfilesCount()}.
+     *
+     * @return {@code true} if the migration was started, {@code false} if sessions are configured to embed their profile or if a migration is already
+     * running
+     */
+    boolean startSessionProfilesMigration();
+
+    /**
+     * Checks whether a migration of the session profiles is running.
+     *
+     * @return {@code true} if sessions are being migrated
+     */
+    boolean isSessionProfilesMigrationRunning();
+
+    /**
+     * Retrieves the number of sessions rewritten by the running migration, or by the last one if none is running.
+     *
+     * @return the number of migrated sessions, or -1 if sessions were never migrated since the service started
+     */
+    int getMigratedSessionProfilesCount();
+
     /**
      * Retrieves sessions associated with the profile identified by the specified identifier.
      *
@@ -273,7 +358,8 @@ public interface ProfileService {
      * TODO: move to a different class
      *
      * @param id the identifier of the property type to retrieve
-     * @return the property type identified by the specified identifier or {@code null} if no such property type exists
+     * @return a copy of the property type identified by the specified identifier, that can be modified and saved with
+     * {@link #setPropertyType(PropertyType)}, or {@code null} if no such property type exists
      */
     PropertyType getPropertyType(String id);
 
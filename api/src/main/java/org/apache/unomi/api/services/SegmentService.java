@@ -28,6 +28,7 @@ import org.apache.unomi.api.segments.Segment;
 import org.apache.unomi.api.segments.SegmentsAndScores;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * A service to access and operate on {@link Segment}s and {@link Scoring}s
@@ -129,6 +130,27 @@ public interface SegmentService {
      */
     long getMatchingIndividualsCount(String segmentID);
 
+    /**
+     * Retrieves, in a single round trip to the persistence backend, the number of profiles matching the conditions defined by each of the segments identified by the
+     * specified identifiers.
+     *
+     * @param segmentIDs the identifiers of the segments for which we want to retrieve the number of matching profiles
+     * @return a Map associating each specified segment identifier to the number of profiles matching it, {@code 0} being returned for unknown segments
+     */
+    Map<String, Long> getMatchingIndividualsCounts(List<String> segmentIDs);
+
+    /**
+     * Retrieves, in a single round trip to the persistence backend, the profiles matching each of the segments identified by the specified identifiers, ordered
+     * according to the specified {@code sortBy} String and paged: only {@code size} of them are retrieved for each segment, starting with the {@code offset}-th one.
+     *
+     * @param segmentIDs the identifiers of the segments for which we want to retrieve matching profiles
+     * @param offset     zero or a positive integer specifying the position of the first element in the total ordered collection of matching elements
+     * @param size       a positive integer specifying how many matching elements should be retrieved for each segment
+     * @param sortBy     an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @return a Map associating each specified segment identifier to a {@link PartialList} of profiles matching it, an empty list being returned for unknown segments
+     */
+    Map<String, PartialList<Profile>> getMatchingIndividuals(List<String> segmentIDs, int offset, int size, String sortBy);
+
     /**
      * Determines whether the specified profile is part of the segment identified by the specified identifier.
      *
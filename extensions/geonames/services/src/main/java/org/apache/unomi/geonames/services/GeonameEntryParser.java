@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.geonames.services;
+
+import java.util.*;
+
+/**
+ * Parses the lines of the Geonames database dump (tab separated values) into {@link GeonameEntry} objects, without using regular expressions nor
+ * date formats. Instances keep reusable buffers and are not thread safe : each thread uses its own parser.
+ */
+class GeonameEntryParser {
+
+    private static final int FIELD_COUNT = 19;
+    private static final int FEATURE_CLASS_FIELD = 6;
+
+    private final String[] values = new String[FIELD_COUNT];
+    private final Calendar calendar = new GregorianCalendar();
+
+    /**
+     * Checks whether the specified line is about one of the imported {@link GeonamesService#FEATURES_CLASSES}, without splitting it.
+     *
+     * @param line a line of the Geonames database
+     * @return {@code true} if the line should be imported, {@code false} otherwise
+     */
+    boolean isImportedFeatureClass(String line) {
+        int start = 0;
+        for (int i = 0; i < FEATURE_CLASS_FIELD; i++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return false;
+            }
+        }
+        int end = line.indexOf('\t', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        for (String featureClass : GeonamesService.FEATURES_CLASSES) {
+            if (featureClass.length() == end - start && line.regionMatches(start, featureClass, 0, featureClass.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the specified line of the Geonames database.
+     *
+     * @param line a line of the Geonames database
+     * @return the parsed entry, or {@code null} if the line is not about one of the imported feature classes
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    GeonameEntry parse(String line) {
+        if (!isImportedFeatureClass(line)) {
+            return null;
+        }
+        int count = split(line, '\t', values);
+        if (count < FIELD_COUNT) {
+            throw new IllegalArgumentException("Expected " + FIELD_COUNT + " fields but found " + count);
+        }
+        return new GeonameEntry(values[0], values[1], values[2],
+                values[4].isEmpty() ? null : Double.parseDouble(values[4]),
+                values[5].isEmpty() ? null : Double.parseDouble(values[5]),
+                values[6], values[7], values[8],
+                split(values[9], ','),
+                values[10], values[11], values[12], values[13],
+                values[14].isEmpty() ? null : parseInt(values[14], 0, values[14].length()),
+                values[15].isEmpty() ? null : parseInt(values[15], 0, values[15].length()),
+                values[16], values[17],
+                parseDate(values[18]));
+    }
+
+    /**
+     * Splits the specified string on the specified separator into the specified array, stopping when the array is full.
+     *
+     * @return the number of values found
+     */
+    static int split(String s, char separator, String[] values) {
+        int count = 0;
+        int start = 0;
+        int length = s.length();
+        while (count < values.length) {
+            int end = s.indexOf(separator, start);
+            if (end < 0) {
+                end = length;
+            }
+            values[count++] = s.substring(start, end);
+            if (end == length) {
+                break;
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    static List<String> split(String s, char separator) {
+        List<String> values = new ArrayList<>(2);
+        int start = 0;
+        int end;
+        while ((end = s.indexOf(separator, start)) >= 0) {
+            values.add(s.substring(start, end));
+            start = end + 1;
+        }
+        values.add(s.substring(start));
+        return values;
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("Empty number in '" + s + "'");
+        }
+        boolean negative = s.charAt(from) == '-';
+        int value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number '" + s.substring(from, to) + "'");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a date in the yyyy-MM-dd format, in the default time zone.
+     */
+    private Date parseDate(String s) {
+        if (s.length() != 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+            throw new IllegalArgumentException("Invalid date '" + s + "'");
+        }
+        calendar.clear();
+        calendar.set(parseInt(s, 0, 4), parseInt(s, 5, 7) - 1, parseInt(s, 8, 10));
+        return calendar.getTime();
+    }
+}
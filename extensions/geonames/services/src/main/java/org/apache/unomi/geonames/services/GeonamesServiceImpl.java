@@ -29,20 +29,33 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class GeonamesServiceImpl implements GeonamesService {
     public static final String GEOCODING_MAX_DISTANCE = "100km";
+    public static final double GEOCODING_MAX_DISTANCE_KM = 100;
     private static final Logger logger = LoggerFactory.getLogger(GeonamesServiceImpl.class.getName());
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    private static final long IMPORT_REPORT_INTERVAL = 10000L;
+    private static final long IMPORT_CHECKPOINT_INTERVAL = 60000L;
+    private static final ImportBatch END_OF_IMPORT = new ImportBatch(-1);
     private DefinitionsService definitionsService;
     private PersistenceService persistenceService;
 
     private String pathToGeonamesDatabase;
     private Boolean forceDbImport;
+    private int importThreads = 4;
+    private boolean inMemoryIndex = false;
+    private volatile GeonamesSpatialIndex spatialIndex;
 
     public void setForceDbImport(Boolean forceDbImport) {
         this.forceDbImport = forceDbImport;
@@ -60,31 +73,89 @@ public class GeonamesServiceImpl implements GeonamesService {
         this.pathToGeonamesDatabase = pathToGeonamesDatabase;
     }
 
+    public void setImportThreads(int importThreads) {
+        this.importThreads = importThreads;
+    }
+
+    public void setInMemoryIndex(boolean inMemoryIndex) {
+        this.inMemoryIndex = inMemoryIndex;
+    }
+
     public void start() {
         importDatabase();
+        if (inMemoryIndex) {
+            loadSpatialIndex();
+        }
     }
 
     public void stop() {
+        spatialIndex = null;
+    }
+
+    /**
+     * Loads the in-memory index in the background, from its snapshot if it is up to date or else from the Geonames database (writing a new
+     * snapshot). Lookups are answered by the persistence service until the index is loaded.
+     */
+    private void loadSpatialIndex() {
+        if (pathToGeonamesDatabase == null) {
+            return;
+        }
+        final File f = new File(pathToGeonamesDatabase);
+        final File snapshot = new File(pathToGeonamesDatabase + ".index");
+        if (!f.exists() && !snapshot.exists()) {
+            logger.warn("No geonames DB found at {}, in-memory index disabled", f);
+            return;
+        }
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (snapshot.exists() && (!f.exists() || snapshot.lastModified() >= f.lastModified())) {
+                        long startTime = System.currentTimeMillis();
+                        spatialIndex = GeonamesSpatialIndex.readSnapshot(snapshot);
+                        logger.info("In-memory geonames index loaded from {} with {} cities in {}ms", snapshot, spatialIndex.size(), System.currentTimeMillis() - startTime);
+                    } else {
+                        GeonamesSpatialIndex index = GeonamesSpatialIndex.load(f);
+                        spatialIndex = index;
+                        index.writeSnapshot(snapshot);
+                    }
+                } catch (Exception e) {
+                    logger.error("Error loading in-memory geonames index, lookups will be answered by the persistence service", e);
+                }
+            }
+        }, "geonames-index-loader");
+        loader.setDaemon(true);
+        loader.start();
     }
 
     public void importDatabase() {
+        final File f = pathToGeonamesDatabase != null ? new File(pathToGeonamesDatabase) : null;
+        final File progressFile = f != null ? getImportProgressFile(f) : null;
+        boolean resume = progressFile != null && progressFile.exists() && !forceDbImport;
+
         if (!persistenceService.createIndex("geonames")) {
             if (forceDbImport) {
                 persistenceService.removeIndex("geonames");
                 persistenceService.createIndex("geonames");
+                if (progressFile != null) {
+                    deleteImportProgress(progressFile);
+                }
                 logger.info("Geonames index removed and recreated");
-            } else if (persistenceService.getAllItemsCount(GeonameEntry.ITEM_TYPE) > 0) {
+            } else if (!resume && persistenceService.getAllItemsCount(GeonameEntry.ITEM_TYPE) > 0) {
                 return;
             }
         } else {
+            // a checkpoint left by a previous import doesn't apply to a new empty index
+            if (progressFile != null) {
+                deleteImportProgress(progressFile);
+            }
             logger.info("Geonames index created");
         }
 
-        if (pathToGeonamesDatabase == null) {
+        if (f == null) {
             logger.info("No geonames DB provided");
             return;
         }
-        final File f = new File(pathToGeonamesDatabase);
         if (f.exists()) {
             final Timer t = new Timer();
             t.schedule(new TimerTask() {
@@ -110,56 +181,208 @@ public class GeonamesServiceImpl implements GeonamesService {
         } else {
             // let's check that the mappings are correct
         }
+        t.cancel();
+
+        File progressFile = getImportProgressFile(f);
+        persistenceService.startBulkLoad(GeonameEntry.INDEX_NAME);
         try {
+            importGeoNameDatabase(f, progressFile, readImportProgress(progressFile));
+            deleteImportProgress(progressFile);
+        } catch (Exception e) {
+            logger.error("Error importing geonames database from file " + f + ", the import will be resumed on next start", e);
+        } finally {
+            persistenceService.endBulkLoad(GeonameEntry.INDEX_NAME);
+        }
+    }
+
+    /**
+     * Imports the Geonames database using a pipeline : this thread reads and decompresses the file and hands batches of lines to parser threads,
+     * which save the entries using the persistence service batching. The number of lines fully handled is periodically written to the progress file
+     * so that an interrupted import can be resumed.
+     */
+    private void importGeoNameDatabase(File f, File progressFile, long skippedLines) throws Exception {
+        final int threads = Math.max(1, importThreads);
+        final BlockingQueue<ImportBatch> batches = new ArrayBlockingQueue<>(threads * 4);
+        final ImportProgress progress = new ImportProgress(skippedLines);
+        final AtomicLong importedEntries = new AtomicLong();
+        final AtomicLong invalidLines = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            parsers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    GeonameEntryParser parser = new GeonameEntryParser();
+                    try {
+                        ImportBatch batch;
+                        while ((batch = batches.take()) != END_OF_IMPORT) {
+                            for (String line : batch.lines) {
+                                try {
+                                    GeonameEntry geonameEntry = parser.parse(line);
+                                    if (geonameEntry != null) {
+                                        persistenceService.save(geonameEntry, true);
+                                        importedEntries.incrementAndGet();
+                                    }
+                                } catch (IllegalArgumentException e) {
+                                    invalidLines.incrementAndGet();
+                                    logger.debug("Invalid line in geonames database: {}", line, e);
+                                }
+                            }
+                            progress.completed(batch.firstLine, batch.lines.size());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
 
-            ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(f));
+        ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(f));
+        try {
             ZipEntry zipEntry = zipInputStream.getNextEntry(); // used to advance to the first entry in the ZipInputStream
             long fileSize = zipEntry.getSize();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(zipInputStream, "UTF-8"));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zipInputStream, "UTF-8"), 1024 * 1024);
 
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-            String line;
-            logger.info("Starting to import geonames database from file {}...", f);
-            long charCount = 0;
-            double lastCompletionPourcentage = 0.0;
-            long lastCharCount = 0;
+            if (skippedLines > 0) {
+                logger.info("Resuming import of geonames database from file {} at line {}...", f, skippedLines);
+            } else {
+                logger.info("Starting to import geonames database from file {}...", f);
+            }
             long importStartTime = System.currentTimeMillis();
+            long lastReportTime = importStartTime;
+            long lastReportEntries = 0;
+            long lastCheckpointTime = importStartTime;
+            long lastCheckpointLines = skippedLines;
+            long lineCount = 0;
+            long charCount = 0;
+            String line;
+            ImportBatch batch = null;
             while ((line = reader.readLine()) != null) {
-                String[] values = line.split("\t");
-
-                if (FEATURES_CLASSES.contains(values[6])) {
-                    GeonameEntry geonameEntry = new GeonameEntry(values[0], values[1], values[2],
-                            StringUtils.isEmpty(values[4]) ? null : Double.parseDouble(values[4]),
-                            StringUtils.isEmpty(values[5]) ? null : Double.parseDouble(values[5]),
-                            values[6], values[7], values[8],
-                            Arrays.asList(values[9].split(",")),
-                            values[10], values[11], values[12], values[13],
-                            StringUtils.isEmpty(values[14]) ? null : Integer.parseInt(values[14]),
-                            StringUtils.isEmpty(values[15]) ? null : Integer.parseInt(values[15]),
-                            values[16], values[17],
-                            sdf.parse(values[18]));
-
-                    persistenceService.save(geonameEntry, true);
+                charCount += line.length() + 1;
+                if (lineCount++ < skippedLines) {
+                    continue;
+                }
+                if (batch == null) {
+                    batch = new ImportBatch(lineCount - 1);
                 }
-                charCount+=line.length();
-                if (fileSize > 0) {
-                    double completionPourcentage = 100.0 * charCount / fileSize;
-                    if (completionPourcentage - lastCompletionPourcentage > 1.0) {
-                        int roundedPourcentage = (int) completionPourcentage;
-                        logger.info("{}% imported from file {}", roundedPourcentage, f);
-                        lastCompletionPourcentage = completionPourcentage;
+                batch.lines.add(line);
+                if (batch.lines.size() >= IMPORT_BATCH_SIZE) {
+                    putImportBatch(batches, batch, failure);
+                    batch = null;
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReportTime > IMPORT_REPORT_INTERVAL) {
+                        long entries = importedEntries.get();
+                        logger.info("{} lines read{}, {} entries imported ({} entries/s)", lineCount,
+                                fileSize > 0 ? " (" + (100 * charCount / fileSize) + "%)" : "", entries, (entries - lastReportEntries) * 1000 / (now - lastReportTime));
+                        lastReportTime = now;
+                        lastReportEntries = entries;
                     }
-                } else {
-                    if (charCount - lastCharCount > (100*1024*1024)) {
-                        logger.info("{}MB imported from file {}", charCount / (1024*1024), f);
-                        lastCharCount = charCount;
+                    if (now - lastCheckpointTime > IMPORT_CHECKPOINT_INTERVAL) {
+                        // entries handled before the previous checkpoint have been flushed by the batching since, only these lines can be skipped on resume
+                        writeImportProgress(progressFile, lastCheckpointLines);
+                        lastCheckpointLines = progress.getCompletedLines();
+                        lastCheckpointTime = now;
                     }
                 }
             }
-            long totalTimeMillis = System.currentTimeMillis()-importStartTime;
-            logger.info("{} characters from Geonames database file {} imported in {}ms. Speed={}MB/s", charCount, f, totalTimeMillis, charCount / (1024*1024) / (totalTimeMillis / 1000));
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+            if (batch != null) {
+                putImportBatch(batches, batch, failure);
+            }
+            for (int i = 0; i < threads; i++) {
+                putImportBatch(batches, END_OF_IMPORT, failure);
+            }
+            parsers.shutdown();
+            while (!parsers.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkImportFailure(failure);
+            }
+            checkImportFailure(failure);
+
+            long totalTimeMillis = Math.max(1, System.currentTimeMillis() - importStartTime);
+            logger.info("{} entries from {} lines of Geonames database file {} imported in {}ms ({} invalid lines). Speed={} entries/s", importedEntries.get(),
+                    lineCount - skippedLines, f, totalTimeMillis, invalidLines.get(), importedEntries.get() * 1000 / totalTimeMillis);
+        } finally {
+            parsers.shutdownNow();
+            zipInputStream.close();
+        }
+    }
+
+    private void putImportBatch(BlockingQueue<ImportBatch> batches, ImportBatch batch, AtomicReference<Throwable> failure) throws Exception {
+        while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+            checkImportFailure(failure);
+        }
+    }
+
+    private void checkImportFailure(AtomicReference<Throwable> failure) throws Exception {
+        if (failure.get() != null) {
+            throw new Exception("Error while importing geonames entries", failure.get());
+        }
+    }
+
+    private File getImportProgressFile(File f) {
+        return new File(f.getPath() + ".progress");
+    }
+
+    private long readImportProgress(File progressFile) {
+        if (progressFile.exists()) {
+            try {
+                return Long.parseLong(new String(Files.readAllBytes(progressFile.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("Couldn't read geonames import progress from " + progressFile + ", starting from the beginning", e);
+            }
+        }
+        return 0;
+    }
+
+    private void writeImportProgress(File progressFile, long lines) {
+        try {
+            Files.write(progressFile.toPath(), Long.toString(lines).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Couldn't write geonames import progress to " + progressFile, e);
+        }
+    }
+
+    private void deleteImportProgress(File progressFile) {
+        try {
+            Files.deleteIfExists(progressFile.toPath());
+        } catch (IOException e) {
+            logger.warn("Couldn't delete geonames import progress file " + progressFile, e);
+        }
+    }
+
+    private static class ImportBatch {
+        private final long firstLine;
+        private final List<String> lines = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+        ImportBatch(long firstLine) {
+            this.firstLine = firstLine;
+        }
+    }
+
+    /**
+     * Tracks the number of lines for which all the previous lines have been handled, batches being completed out of order by the parser threads.
+     */
+    private static class ImportProgress {
+        private long completedLines;
+        private final Map<Long, Integer> pendingBatches = new HashMap<>();
+
+        ImportProgress(long completedLines) {
+            this.completedLines = completedLines;
+        }
+
+        synchronized void completed(long firstLine, int lines) {
+            pendingBatches.put(firstLine, lines);
+            Integer next;
+            while ((next = pendingBatches.remove(completedLines)) != null) {
+                completedLines += next;
+            }
+        }
+
+        synchronized long getCompletedLines() {
+            return completedLines;
         }
     }
 
@@ -168,6 +391,11 @@ public class GeonamesServiceImpl implements GeonamesService {
     }
 
     public List<GeonameEntry> getHierarchy(GeonameEntry entry) {
+        GeonamesSpatialIndex index = spatialIndex;
+        if (index != null) {
+            return index.getHierarchy(entry);
+        }
+
         List<GeonameEntry> entries = new ArrayList<>();
         entries.add(entry);
 
@@ -218,6 +446,15 @@ public class GeonamesServiceImpl implements GeonamesService {
     }
 
     public List<GeonameEntry> reverseGeoCode(String lat, String lon) {
+        GeonamesSpatialIndex index = spatialIndex;
+        if (index != null) {
+            GeonameEntry city = index.reverseGeoCode(Double.parseDouble(lat), Double.parseDouble(lon), GEOCODING_MAX_DISTANCE_KM);
+            if (city != null) {
+                return index.getHierarchy(city);
+            }
+            return Collections.emptyList();
+        }
+
         List<Condition> l = new ArrayList<Condition>();
         Condition andCondition = new Condition();
         andCondition.setConditionType(definitionsService.getConditionType("booleanCondition"));
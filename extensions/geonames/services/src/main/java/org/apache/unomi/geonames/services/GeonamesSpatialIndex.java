@@ -0,0 +1,420 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.geonames.services;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * In-memory index of the Geonames database, answering reverse geocoding and hierarchy lookups without querying the persistence service.
+ *
+ * Cities are stored in primitive arrays laid out as an implicit k-d tree over their position on the unit sphere (the median of each range being its
+ * root), their names in a shared UTF-8 byte pool and their codes as indices in a table of distinct values. Countries, first and second level
+ * administrative divisions are kept as entries in hash maps. Cities returned by this index only hold the fields needed for geocoding : admin3/admin4
+ * codes, cc2, elevation, dem and modification date are not kept.
+ */
+class GeonamesSpatialIndex implements Serializable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeonamesSpatialIndex.class.getName());
+    private static final long serialVersionUID = 2135078211539641792L;
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final int size;
+    private final int[] ids;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final int[] populations;
+    private final byte[] namePool;
+    private final int[] nameOffsets;
+    private final int[] featureCodes;
+    private final int[] countryCodes;
+    private final int[] admin1Codes;
+    private final int[] admin2Codes;
+    private final int[] timezones;
+    private final String[] codes;
+
+    private final Map<String, GeonameEntry> countries;
+    private final Map<String, GeonameEntry> admin1Divisions;
+    private final Map<String, GeonameEntry> admin2Divisions;
+
+    private GeonamesSpatialIndex(Builder builder) {
+        size = builder.size;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        buildTree(order, builder.x, builder.y, builder.z, 0, size, 0);
+
+        ids = new int[size];
+        x = new float[size];
+        y = new float[size];
+        z = new float[size];
+        populations = new int[size];
+        featureCodes = new int[size];
+        countryCodes = new int[size];
+        admin1Codes = new int[size];
+        admin2Codes = new int[size];
+        timezones = new int[size];
+        nameOffsets = new int[size * 2 + 1];
+        ByteArrayOutputStream names = new ByteArrayOutputStream(builder.names.size());
+        byte[] sourceNames = builder.names.toByteArray();
+        for (int i = 0; i < size; i++) {
+            int j = order[i];
+            ids[i] = builder.ids[j];
+            x[i] = builder.x[j];
+            y[i] = builder.y[j];
+            z[i] = builder.z[j];
+            populations[i] = builder.populations[j];
+            featureCodes[i] = builder.featureCodes[j];
+            countryCodes[i] = builder.countryCodes[j];
+            admin1Codes[i] = builder.admin1Codes[j];
+            admin2Codes[i] = builder.admin2Codes[j];
+            timezones[i] = builder.timezones[j];
+            for (int k = 0; k < 2; k++) {
+                nameOffsets[i * 2 + k] = names.size();
+                int from = builder.nameOffsets[j * 2 + k];
+                names.write(sourceNames, from, builder.nameOffsets[j * 2 + k + 1] - from);
+            }
+        }
+        nameOffsets[size * 2] = names.size();
+        namePool = names.toByteArray();
+        codes = builder.codes.toArray(new String[builder.codes.size()]);
+        countries = builder.countries;
+        admin1Divisions = builder.admin1Divisions;
+        admin2Divisions = builder.admin2Divisions;
+    }
+
+    /**
+     * Builds the index from the Geonames database zip file.
+     *
+     * @param f the Geonames database file (allCountries.zip)
+     * @return the built index
+     * @throws IOException if the file cannot be read
+     */
+    static GeonamesSpatialIndex load(File f) throws IOException {
+        long startTime = System.currentTimeMillis();
+        Builder builder = new Builder();
+        GeonameEntryParser parser = new GeonameEntryParser();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(f))) {
+            zipInputStream.getNextEntry(); // used to advance to the first entry in the ZipInputStream
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zipInputStream, "UTF-8"), 1024 * 1024);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    GeonameEntry entry = parser.parse(line);
+                    if (entry != null) {
+                        builder.add(entry);
+                    }
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Invalid line in geonames database: {}", line, e);
+                }
+            }
+        }
+        GeonamesSpatialIndex index = new GeonamesSpatialIndex(builder);
+        logger.info("In-memory geonames index built from {} with {} cities in {}ms", f, index.size, System.currentTimeMillis() - startTime);
+        return index;
+    }
+
+    /**
+     * Reads an index snapshot previously written with {@link #writeSnapshot(File)}.
+     */
+    static GeonamesSpatialIndex readSnapshot(File snapshot) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1024 * 1024))) {
+            return (GeonamesSpatialIndex) inputStream.readObject();
+        }
+    }
+
+    /**
+     * Writes a binary snapshot of this index, which is much faster to load than the Geonames database.
+     */
+    void writeSnapshot(File snapshot) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024))) {
+            outputStream.writeObject(this);
+        }
+        if (!tmp.renameTo(snapshot)) {
+            throw new IOException("Couldn't rename " + tmp + " to " + snapshot);
+        }
+    }
+
+    /**
+     * Retrieves the city closest to the specified location, within the specified distance.
+     *
+     * @param lat         the latitude of the location
+     * @param lon         the longitude of the location
+     * @param maxDistance the maximum distance, in kilometers
+     * @return the closest city, or {@code null} if there is no city within the specified distance
+     */
+    GeonameEntry reverseGeoCode(double lat, double lon, double maxDistance) {
+        double latRad = Math.toRadians(lat);
+        double lonRad = Math.toRadians(lon);
+        double qx = Math.cos(latRad) * Math.cos(lonRad);
+        double qy = Math.cos(latRad) * Math.sin(lonRad);
+        double qz = Math.sin(latRad);
+        // compare squared chord lengths on the unit sphere, which preserves the ordering of the great circle distances
+        double maxChord = 2 * Math.sin(Math.min(Math.PI, maxDistance / EARTH_RADIUS_KM) / 2);
+        double[] best = new double[] { maxChord * maxChord, -1 };
+        nearest(0, size, 0, qx, qy, qz, best);
+        return best[1] < 0 ? null : getCity((int) best[1]);
+    }
+
+    /**
+     * Retrieves the hierarchy of the specified entry : the entry itself followed by its second level and first level administrative divisions and
+     * its country, when they exist.
+     */
+    List<GeonameEntry> getHierarchy(GeonameEntry entry) {
+        List<GeonameEntry> entries = new ArrayList<>(4);
+        entries.add(entry);
+        if (!StringUtils.isEmpty(entry.getAdmin1Code())) {
+            String admin1Key = entry.getCountryCode() + "." + entry.getAdmin1Code();
+            if (!StringUtils.isEmpty(entry.getAdmin2Code())) {
+                GeonameEntry adm2 = admin2Divisions.get(admin1Key + "." + entry.getAdmin2Code());
+                if (adm2 != null && adm2 != entry) {
+                    entries.add(adm2);
+                }
+            }
+            GeonameEntry adm1 = admin1Divisions.get(admin1Key);
+            if (adm1 != null && adm1 != entry) {
+                entries.add(adm1);
+            }
+        }
+        GeonameEntry country = countries.get(entry.getCountryCode());
+        if (country != null && country != entry) {
+            entries.add(country);
+        }
+        return entries;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void nearest(int from, int to, int depth, double qx, double qy, double qz, double[] best) {
+        if (from >= to) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        double dx = qx - x[median];
+        double dy = qy - y[median];
+        double dz = qz - z[median];
+        double distance = dx * dx + dy * dy + dz * dz;
+        if (distance < best[0]) {
+            best[0] = distance;
+            best[1] = median;
+        }
+        double diff;
+        switch (depth % 3) {
+            case 0:
+                diff = dx;
+                break;
+            case 1:
+                diff = dy;
+                break;
+            default:
+                diff = dz;
+        }
+        if (diff < 0) {
+            nearest(from, median, depth + 1, qx, qy, qz, best);
+            if (diff * diff < best[0]) {
+                nearest(median + 1, to, depth + 1, qx, qy, qz, best);
+            }
+        } else {
+            nearest(median + 1, to, depth + 1, qx, qy, qz, best);
+            if (diff * diff < best[0]) {
+                nearest(from, median, depth + 1, qx, qy, qz, best);
+            }
+        }
+    }
+
+    private GeonameEntry getCity(int i) {
+        String name = getName(i * 2);
+        String asciiname = getName(i * 2 + 1);
+        double lat = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, z[i]))));
+        double lon = Math.toDegrees(Math.atan2(y[i], x[i]));
+        // coordinates of the Geonames database have 5 decimals
+        GeonameEntry entry = new GeonameEntry(Integer.toString(ids[i]), name, asciiname.isEmpty() ? name : asciiname,
+                Math.round(lat * 100000) / 100000.0, Math.round(lon * 100000) / 100000.0,
+                "P", codes[featureCodes[i]], codes[countryCodes[i]], null,
+                codes[admin1Codes[i]], codes[admin2Codes[i]], null, null,
+                populations[i], null, null, codes[timezones[i]], null);
+        return entry;
+    }
+
+    private String getName(int offsetIndex) {
+        int from = nameOffsets[offsetIndex];
+        return new String(namePool, from, nameOffsets[offsetIndex + 1] - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reorders the specified range of the order array so that each range median splits its range on the axis of its depth.
+     */
+    private static void buildTree(int[] order, float[] x, float[] y, float[] z, int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        float[] axis = depth % 3 == 0 ? x : (depth % 3 == 1 ? y : z);
+        int median = (from + to) >>> 1;
+        select(order, axis, from, to - 1, median);
+        buildTree(order, x, y, z, from, median, depth + 1);
+        buildTree(order, x, y, z, median + 1, to, depth + 1);
+    }
+
+    /**
+     * Partially sorts the specified range of the order array so that the element at index k is the one that would be there if the range was sorted.
+     */
+    private static void select(int[] order, float[] values, int left, int right, int k) {
+        while (right > left) {
+            float pivot = values[order[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[order[i]] < pivot) {
+                    i++;
+                }
+                while (values[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the entries of the Geonames database before the tree is built.
+     */
+    private static class Builder {
+        private int size;
+        private int[] ids = new int[1024];
+        private float[] x = new float[1024];
+        private float[] y = new float[1024];
+        private float[] z = new float[1024];
+        private int[] populations = new int[1024];
+        private int[] featureCodes = new int[1024];
+        private int[] countryCodes = new int[1024];
+        private int[] admin1Codes = new int[1024];
+        private int[] admin2Codes = new int[1024];
+        private int[] timezones = new int[1024];
+        private int[] nameOffsets = new int[2049];
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream(1024 * 1024);
+        private final List<String> codes = new ArrayList<>();
+        private final Map<String, Integer> codeIndices = new HashMap<>();
+
+        private final Map<String, GeonameEntry> countries = new HashMap<>();
+        private final Map<String, GeonameEntry> admin1Divisions = new HashMap<>();
+        private final Map<String, GeonameEntry> admin2Divisions = new HashMap<>();
+
+        private void add(GeonameEntry entry) {
+            String featureCode = entry.getFeatureCode();
+            if (GeonamesService.COUNTRY_FEATURE_CODES.contains(featureCode)) {
+                putIfAbsent(countries, entry.getCountryCode(), entry);
+            } else if (GeonamesService.ADM1_FEATURE_CODES.contains(featureCode)) {
+                putIfAbsent(admin1Divisions, entry.getCountryCode() + "." + entry.getAdmin1Code(), entry);
+            } else if (GeonamesService.ADM2_FEATURE_CODES.contains(featureCode)) {
+                putIfAbsent(admin2Divisions, entry.getCountryCode() + "." + entry.getAdmin1Code() + "." + entry.getAdmin2Code(), entry);
+            } else if (GeonamesService.CITIES_FEATURE_CODES.contains(featureCode)) {
+                Double lat = entry.getLocation().get("lat");
+                Double lon = entry.getLocation().get("lon");
+                if (lat != null && lon != null) {
+                    addCity(entry, lat, lon);
+                }
+            }
+        }
+
+        private void addCity(GeonameEntry entry, double lat, double lon) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                z = Arrays.copyOf(z, capacity);
+                populations = Arrays.copyOf(populations, capacity);
+                featureCodes = Arrays.copyOf(featureCodes, capacity);
+                countryCodes = Arrays.copyOf(countryCodes, capacity);
+                admin1Codes = Arrays.copyOf(admin1Codes, capacity);
+                admin2Codes = Arrays.copyOf(admin2Codes, capacity);
+                timezones = Arrays.copyOf(timezones, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity * 2 + 1);
+            }
+            double latRad = Math.toRadians(lat);
+            double lonRad = Math.toRadians(lon);
+            ids[size] = Integer.parseInt(entry.getItemId());
+            x[size] = (float) (Math.cos(latRad) * Math.cos(lonRad));
+            y[size] = (float) (Math.cos(latRad) * Math.sin(lonRad));
+            z[size] = (float) Math.sin(latRad);
+            populations[size] = entry.getPopulation() != null ? entry.getPopulation() : 0;
+            featureCodes[size] = getCodeIndex(entry.getFeatureCode());
+            countryCodes[size] = getCodeIndex(entry.getCountryCode());
+            admin1Codes[size] = getCodeIndex(entry.getAdmin1Code());
+            admin2Codes[size] = getCodeIndex(entry.getAdmin2Code());
+            timezones[size] = getCodeIndex(entry.getTimezone());
+            nameOffsets[size * 2] = names.size();
+            writeName(entry.getName());
+            nameOffsets[size * 2 + 1] = names.size();
+            // the ascii name is only stored when it differs from the name
+            if (entry.getAsciiname() != null && !entry.getAsciiname().equals(entry.getName())) {
+                writeName(entry.getAsciiname());
+            }
+            size++;
+            nameOffsets[size * 2] = names.size();
+        }
+
+        private void writeName(String name) {
+            if (name != null) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                names.write(bytes, 0, bytes.length);
+            }
+        }
+
+        private int getCodeIndex(String code) {
+            Integer index = codeIndices.get(code);
+            if (index == null) {
+                index = codes.size();
+                codes.add(code);
+                codeIndices.put(code, index);
+            }
+            return index;
+        }
+
+        private static void putIfAbsent(Map<String, GeonameEntry> map, String key, GeonameEntry entry) {
+            if (!map.containsKey(key)) {
+                map.put(key, entry);
+            }
+        }
+    }
+}
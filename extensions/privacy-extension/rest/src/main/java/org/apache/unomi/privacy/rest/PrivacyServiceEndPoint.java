@@ -64,6 +64,12 @@ public class PrivacyServiceEndPoint {
         return Response.ok().build();
     }
 
+    @GET
+    @Path("/profiles/{profileId}/operationStatus")
+    public String getOperationStatus(@PathParam("profileId") String profileId) {
+        return privacyService.getOperationStatus(profileId);
+    }
+
     @POST
     @Path("/profiles/{profileId}/anonymize")
     public void anonymizeProfile(@PathParam("profileId") String profileId) {
@@ -18,26 +18,57 @@
 package org.apache.unomi.privacy.internal;
 
 import org.apache.unomi.api.*;
+import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.PrivacyService;
 import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Privacy service implementation
+ *
+ * Anonymization and deletion of browsing data are queued and executed one at a time by a background thread, as a sequence of set based updates. The
+ * current step of an operation is stored in the profile system properties, so that operations interrupted by a restart are resumed.
  */
 public class PrivacyServiceImpl implements PrivacyService {
 
+    private static final Logger logger = LoggerFactory.getLogger(PrivacyServiceImpl.class.getName());
+
+    private static final String PRIVACY_OPERATION = "privacyOperation";
+    private static final String ANONYMIZE_BROWSING_DATA = "anonymizeBrowsingData";
+    private static final String DELETE_PROFILE_DATA = "deleteProfileData";
+
     private PersistenceService persistenceService;
     private ProfileService profileService;
     private EventService eventService;
+    private DefinitionsService definitionsService;
     private List<String> defaultDeniedProperties;
     private BundleContext bundleContext;
 
+    private long operationsInterval = 1000L;
+    private int operationsMaxRetries = 3;
+    private ScheduledExecutorService operationsExecutor;
+    private final Set<String> queuedOperations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final int MAX_OPERATION_STATUSES = 10000;
+
+    /**
+     * Status of the latest operations, bounded so that the statuses of old operations don't accumulate.
+     */
+    private final Map<String, String> operationStatuses = Collections.synchronizedMap(new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_OPERATION_STATUSES;
+        }
+    });
+
     public void setPersistenceService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
     }
@@ -62,6 +93,42 @@ public class PrivacyServiceImpl implements PrivacyService {
         this.bundleContext = bundleContext;
     }
 
+    public void setDefinitionsService(DefinitionsService definitionsService) {
+        this.definitionsService = definitionsService;
+    }
+
+    public void setOperationsInterval(long operationsInterval) {
+        this.operationsInterval = operationsInterval;
+    }
+
+    public void setOperationsMaxRetries(int operationsMaxRetries) {
+        this.operationsMaxRetries = operationsMaxRetries;
+    }
+
+    public void init() {
+        operationsExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unomi-privacy-operations");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        operationsExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                resumeOperations();
+            }
+        });
+    }
+
+    public void destroy() {
+        if (operationsExecutor != null) {
+            // pending operations are resumed at next startup
+            operationsExecutor.shutdownNow();
+        }
+    }
+
     @Override
     public ServerInfo getServerInfo() {
         ServerInfo serverInfo = new ServerInfo();
@@ -115,32 +182,151 @@ public class PrivacyServiceImpl implements PrivacyService {
     @Override
     public Boolean anonymizeBrowsingData(String profileId) {
         Profile profile = profileService.load(profileId);
-        if (profile == null) {
+        if (profile == null || persistenceService.queryCount(getProfileIdsCondition(profileId), Session.ITEM_TYPE) == 0) {
             return false;
         }
+        queueOperation(profileId, ANONYMIZE_BROWSING_DATA, 0, true);
+        return true;
+    }
 
-        List<Session> sessions = profileService.getProfileSessions(profileId, null, 0, -1, null).getList();
-        if (sessions.isEmpty()) {
-            return false;
+    @Override
+    public Boolean deleteProfileData(String profileId) {
+        queueOperation(profileId, DELETE_PROFILE_DATA, 0, profileService.load(profileId) != null);
+        return true;
+    }
+
+    @Override
+    public String getOperationStatus(String profileId) {
+        return operationStatuses.get(profileId);
+    }
+
+    private void queueOperation(final String profileId, final String operation, final int step, boolean persistent) {
+        if (!queuedOperations.add(operation + ":" + profileId)) {
+            logger.info("Operation {} on profile {} is already queued", operation, profileId);
+            return;
         }
-        for (Session session : sessions) {
-            Profile newProfile = getAnonymousProfile(session.getProfile());
-            session.setProfile(newProfile);
-            persistenceService.save(session);
-            List<Event> events = eventService.searchEvents(session.getItemId(), new String[0], null, 0, -1, null).getList();
-            for (Event event : events) {
-                persistenceService.update(event.getItemId(), event.getTimeStamp(), Event.class, "profileId", newProfile.getItemId());
+        if (persistent) {
+            setPersistedOperation(profileId, operation, step);
+        }
+        operationStatuses.put(profileId, operation + " queued");
+        submitOperation(profileId, operation, step, 0, 0);
+    }
+
+    private void submitOperation(final String profileId, final String operation, final int step, final int attempt, long delay) {
+        operationsExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOperation(profileId, operation, step, attempt);
+                } catch (Exception e) {
+                    logger.error("Error while executing operation " + operation + " on profile " + profileId, e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runOperation(String profileId, String operation, int step, int attempt) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        boolean deleteProfile = DELETE_PROFILE_DATA.equals(operation);
+        int steps = deleteProfile ? 3 : 2;
+
+        Condition profileIdsCondition = getProfileIdsCondition(profileId);
+
+        for (; step < steps; step++) {
+            operationStatuses.put(profileId, operation + " running step " + (step + 1) + "/" + steps);
+            boolean success;
+            switch (step) {
+                case 0:
+                    // the profile id must be removed last, as the sessions are matched on it
+                    Profile profile = profileService.load(profileId);
+                    // sessions storing a profile reference only get the reference of the anonymous profile
+                    Profile anonymousProfile = profileService.getSessionProfile(getAnonymousProfile(profile != null ? profile : new Profile(profileId)));
+                    Map<String, Object> anonymousProfileSource = new HashMap<>();
+                    anonymousProfileSource.put("itemType", anonymousProfile.getItemType());
+                    anonymousProfileSource.put("properties", anonymousProfile.getProperties());
+                    anonymousProfileSource.put("systemProperties", anonymousProfile.getSystemProperties());
+                    // the embedded profile is cleared first, as partial updates merge objects instead of replacing them
+                    success = persistenceService.updateByQuery(profileIdsCondition, Session.class, "profile", null) &&
+                            persistenceService.updateByQuery(profileIdsCondition, Session.class, "profile", anonymousProfileSource) &&
+                            persistenceService.updateByQuery(profileIdsCondition, Session.class, "profileId", null);
+                    break;
+                case 1:
+                    success = persistenceService.updateByQuery(profileIdsCondition, Event.class, "profileId", null);
+                    break;
+                default:
+                    profileService.delete(profileId, false);
+                    success = true;
+                    break;
+            }
+
+            if (!success) {
+                if (attempt < operationsMaxRetries) {
+                    logger.warn("Step {}/{} of operation {} on profile {} failed, retrying", step + 1, steps, operation, profileId);
+                    operationStatuses.put(profileId, operation + " retrying step " + (step + 1) + "/" + steps);
+                    submitOperation(profileId, operation, step, attempt + 1, operationsInterval * (attempt + 1));
+                } else {
+                    logger.error("Step {}/{} of operation {} on profile {} failed, the operation will be resumed at next startup", step + 1, steps, operation, profileId);
+                    operationStatuses.put(profileId, operation + " failed at step " + (step + 1) + "/" + steps);
+                    queuedOperations.remove(operation + ":" + profileId);
+                }
+                return;
+            }
+            logger.info("Step {}/{} of operation {} on profile {} done", step + 1, steps, operation, profileId);
+            if (step + 1 < steps) {
+                setPersistedOperation(profileId, operation, step + 1);
             }
         }
 
-        return true;
+        if (!deleteProfile) {
+            setPersistedOperation(profileId, null, 0);
+        }
+        queuedOperations.remove(operation + ":" + profileId);
+        operationStatuses.put(profileId, operation + " done");
+        logger.info("Operation {} on profile {} done in {}ms", operation, profileId, System.currentTimeMillis() - startTime);
+
+        // leave some room to live traffic between operations
+        Thread.sleep(operationsInterval);
     }
 
-    @Override
-    public Boolean deleteProfileData(String profileId) {
-        anonymizeBrowsingData(profileId);
-        profileService.delete(profileId, false);
-        return true;
+    /**
+     * Builds a condition matching the sessions and events of a profile, including those of the profiles merged into it, which may still reference the
+     * merged profile identifiers.
+     */
+    private Condition getProfileIdsCondition(String profileId) {
+        List<String> profileIds = new ArrayList<>(profileService.getProfileAliases(profileId));
+        profileIds.add(profileId);
+        Condition profileIdsCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
+        profileIdsCondition.setParameter("propertyName", "profileId");
+        profileIdsCondition.setParameter("comparisonOperator", "in");
+        profileIdsCondition.setParameter("propertyValues", profileIds);
+        return profileIdsCondition;
+    }
+
+    private void setPersistedOperation(String profileId, String operation, int step) {
+        Map<String, Object> privacyOperation = null;
+        if (operation != null) {
+            privacyOperation = new HashMap<>();
+            privacyOperation.put("type", operation);
+            privacyOperation.put("step", step);
+        }
+        persistenceService.update(profileId, null, Profile.class, "systemProperties", Collections.singletonMap(PRIVACY_OPERATION, privacyOperation));
+    }
+
+    private void resumeOperations() {
+        try {
+            Condition pendingOperationCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+            pendingOperationCondition.setParameter("propertyName", "systemProperties." + PRIVACY_OPERATION + ".type");
+            pendingOperationCondition.setParameter("comparisonOperator", "exists");
+            for (Profile profile : persistenceService.query(pendingOperationCondition, null, Profile.class)) {
+                Map<?, ?> privacyOperation = (Map<?, ?>) profile.getSystemProperties().get(PRIVACY_OPERATION);
+                String operation = (String) privacyOperation.get("type");
+                int step = privacyOperation.get("step") instanceof Number ? ((Number) privacyOperation.get("step")).intValue() : 0;
+                logger.info("Resuming operation {} on profile {} at step {}", operation, profile.getItemId(), step + 1);
+                queueOperation(profile.getItemId(), operation, step, false);
+            }
+        } catch (Exception e) {
+            logger.error("Couldn't resume pending privacy operations", e);
+        }
     }
 
     @Override
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the metrics of the bulk requests sent by the persistence service, tunes the number of actions per bulk and the number of concurrent bulk
+ * requests from the observed latency and rejections, and applies backpressure to producers when too many bytes are waiting to be written.
+ */
+public class AdaptiveBulkController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBulkController.class.getName());
+
+    private final int minBulkActions;
+    private final int maxBulkActions;
+    private final int minConcurrentRequests;
+    private final int maxConcurrentRequests;
+    private final long targetLatency;
+    private final long inFlightBudget;
+    private final long backpressureTimeout;
+
+    private volatile int bulkActions;
+    private volatile int concurrentRequests;
+
+    private final ConcurrentMap<Long, Long> bulkStartTimes = new ConcurrentHashMap<>();
+    private final Object inFlightLock = new Object();
+    private long inFlightBytes;
+
+    // statistics since the last adjustment
+    private final AtomicLong windowBulks = new AtomicLong();
+    private final AtomicLong windowLatency = new AtomicLong();
+    private final AtomicLong windowDocs = new AtomicLong();
+    private final AtomicLong windowRejections = new AtomicLong();
+    private final AtomicLong windowBackpressureWaits = new AtomicLong();
+
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong failedBulks = new AtomicLong();
+    private final AtomicLong docs = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong itemFailures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong itemRetries = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private final AtomicLong backpressureTimeouts = new AtomicLong();
+    private volatile long lastLatency;
+
+    /**
+     * @param bulkActions           the initial number of actions per bulk request
+     * @param minBulkActions        the minimum number of actions per bulk request
+     * @param maxBulkActions        the maximum number of actions per bulk request
+     * @param concurrentRequests    the initial number of concurrent bulk requests
+     * @param maxConcurrentRequests the maximum number of concurrent bulk requests
+     * @param targetLatency         the bulk latency (in milliseconds) above which bulks are made smaller
+     * @param inFlightBudget        the number of bytes added and not yet written above which producers are blocked
+     * @param backpressureTimeout   the maximum time (in milliseconds) producers are blocked
+     */
+    public AdaptiveBulkController(int bulkActions, int minBulkActions, int maxBulkActions, int concurrentRequests, int maxConcurrentRequests,
+                                  long targetLatency, long inFlightBudget, long backpressureTimeout) {
+        this.minBulkActions = Math.max(1, Math.min(minBulkActions, bulkActions));
+        this.maxBulkActions = Math.max(maxBulkActions, bulkActions);
+        this.minConcurrentRequests = 1;
+        this.maxConcurrentRequests = Math.max(maxConcurrentRequests, concurrentRequests);
+        this.bulkActions = bulkActions;
+        this.concurrentRequests = concurrentRequests;
+        this.targetLatency = targetLatency;
+        this.inFlightBudget = inFlightBudget;
+        this.backpressureTimeout = backpressureTimeout;
+    }
+
+    /**
+     * Reserves the specified number of bytes before adding a request to a bulk, waiting if the in-flight budget is exhausted.
+     *
+     * @param size the estimated size of the request
+     */
+    public void acquire(long size) {
+        synchronized (inFlightLock) {
+            if (inFlightBytes + size > inFlightBudget && inFlightBytes > 0) {
+                backpressureWaits.incrementAndGet();
+                windowBackpressureWaits.incrementAndGet();
+                long deadline = System.currentTimeMillis() + backpressureTimeout;
+                long remaining = backpressureTimeout;
+                try {
+                    while (inFlightBytes + size > inFlightBudget && inFlightBytes > 0 && remaining > 0) {
+                        inFlightLock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (inFlightBytes + size > inFlightBudget && inFlightBytes > 0) {
+                    backpressureTimeouts.incrementAndGet();
+                }
+            }
+            inFlightBytes += size;
+        }
+    }
+
+    /**
+     * Releases bytes reserved with {@link #acquire(long)}, once the requests were written or failed.
+     *
+     * @param size the estimated size of the requests
+     */
+    public void release(long size) {
+        synchronized (inFlightLock) {
+            inFlightBytes = Math.max(0, inFlightBytes - size);
+            inFlightLock.notifyAll();
+        }
+    }
+
+    public void beforeBulk(long executionId) {
+        bulkStartTimes.put(executionId, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the result of a bulk request.
+     *
+     * @param executionId      the identifier of the bulk execution
+     * @param docCount         the number of actions of the bulk
+     * @param size             the estimated size of the bulk in bytes
+     * @param failedItems      the number of failed actions, or all of them if the whole bulk failed
+     * @param rejectedItems    the number of actions rejected by an overloaded cluster
+     * @param failed           whether the whole bulk failed
+     */
+    public void afterBulk(long executionId, int docCount, long size, int failedItems, int rejectedItems, boolean failed) {
+        Long startTime = bulkStartTimes.remove(executionId);
+        long latency = startTime != null ? System.currentTimeMillis() - startTime : 0;
+        lastLatency = latency;
+        bulks.incrementAndGet();
+        docs.addAndGet(docCount);
+        bytes.addAndGet(size);
+        itemFailures.addAndGet(failedItems);
+        rejections.addAndGet(rejectedItems);
+        if (failed) {
+            failedBulks.incrementAndGet();
+        }
+        windowBulks.incrementAndGet();
+        windowLatency.addAndGet(latency);
+        windowDocs.addAndGet(docCount);
+        windowRejections.addAndGet(rejectedItems);
+        logger.debug("Bulk {} : {} docs, {} bytes, {} ms, {} failed items", executionId, docCount, size, latency, failedItems);
+    }
+
+    public void itemRetried() {
+        itemRetries.incrementAndGet();
+    }
+
+    /**
+     * Adjusts the bulk settings from the statistics gathered since the last adjustment. Bulks are made smaller and less concurrent when they are slow
+     * or rejected, and larger and more concurrent when they are fast but full or when producers had to wait.
+     *
+     * @return {@code true} if the settings changed
+     */
+    public boolean adjust() {
+        long bulkCount = windowBulks.getAndSet(0);
+        long latency = windowLatency.getAndSet(0);
+        long docCount = windowDocs.getAndSet(0);
+        long rejectedCount = windowRejections.getAndSet(0);
+        long waits = windowBackpressureWaits.getAndSet(0);
+        if (bulkCount == 0) {
+            return false;
+        }
+        long averageLatency = latency / bulkCount;
+        long averageDocs = docCount / bulkCount;
+        int newBulkActions = bulkActions;
+        int newConcurrentRequests = concurrentRequests;
+        if (rejectedCount > docCount / 100 || averageLatency > targetLatency) {
+            newBulkActions = Math.max(minBulkActions, bulkActions / 2);
+            newConcurrentRequests = Math.max(minConcurrentRequests, concurrentRequests - 1);
+        } else if (averageLatency < targetLatency / 2 && (averageDocs >= bulkActions * 9 / 10 || waits > 0)) {
+            newBulkActions = Math.min(maxBulkActions, bulkActions + Math.max(1, bulkActions / 4));
+            newConcurrentRequests = Math.min(maxConcurrentRequests, concurrentRequests + 1);
+        }
+        if (newBulkActions == bulkActions && newConcurrentRequests == concurrentRequests) {
+            return false;
+        }
+        logger.info("Adjusting bulk settings to {} actions and {} concurrent requests (average latency {} ms, {} rejections, {} backpressure waits)",
+                newBulkActions, newConcurrentRequests, averageLatency, rejectedCount, waits);
+        bulkActions = newBulkActions;
+        concurrentRequests = newConcurrentRequests;
+        return true;
+    }
+
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    public long getInFlightBytes() {
+        synchronized (inFlightLock) {
+            return inFlightBytes;
+        }
+    }
+
+    /**
+     * Checks whether producers are currently being slowed down.
+     *
+     * @return {@code true} if the in-flight budget is exhausted
+     */
+    public boolean isBackpressured() {
+        synchronized (inFlightLock) {
+            return inFlightBytes >= inFlightBudget;
+        }
+    }
+
+    public long getBulkCount() {
+        return bulks.get();
+    }
+
+    public long getFailedBulkCount() {
+        return failedBulks.get();
+    }
+
+    public long getDocCount() {
+        return docs.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getItemFailures() {
+        return itemFailures.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getItemRetries() {
+        return itemRetries.get();
+    }
+
+    public long getBackpressureWaits() {
+        return backpressureWaits.get();
+    }
+
+    public long getBackpressureTimeouts() {
+        return backpressureTimeouts.get();
+    }
+
+    /**
+     * Retrieves the latency of the last bulk request.
+     *
+     * @return the latency in milliseconds
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+}
@@ -26,22 +26,36 @@ import org.apache.unomi.api.query.DateRange;
 import org.apache.unomi.api.query.IpRange;
 import org.apache.unomi.api.query.NumericRange;
 import org.apache.unomi.persistence.elasticsearch.conditions.*;
+import org.apache.unomi.persistence.spi.ConditionMatches;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.apache.unomi.persistence.spi.ItemWriteListener;
+import org.apache.unomi.persistence.spi.PermanentWriteException;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.*;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequestBuilder;
 import org.elasticsearch.action.bulk.*;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
@@ -53,9 +67,17 @@ import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.DistanceUnit;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.engine.DocumentMissingException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.reindex.BulkIndexByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequestBuilder;
+import org.elasticsearch.index.reindex.UpdateByQueryAction;
+import org.elasticsearch.index.reindex.UpdateByQueryRequestBuilder;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
@@ -72,6 +94,7 @@ import org.elasticsearch.search.aggregations.bucket.range.RangeAggregationBuilde
 import org.elasticsearch.search.aggregations.bucket.range.date.DateRangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.range.ip.IpRangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.GeoDistanceSortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
@@ -89,8 +112,8 @@ import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("rawtypes")
 public class ElasticSearchPersistenceServiceImpl implements PersistenceService, SynchronousBundleListener {
@@ -107,9 +130,34 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     public static final String BULK_PROCESSOR_BULK_SIZE = "bulkProcessor.bulkSize";
     public static final String BULK_PROCESSOR_FLUSH_INTERVAL = "bulkProcessor.flushInterval";
     public static final String BULK_PROCESSOR_BACKOFF_POLICY = "bulkProcessor.backoffPolicy";
+    public static final String BULK_PROCESSOR_ADAPTIVE = "bulkProcessor.adaptive";
+    public static final String BULK_PROCESSOR_MIN_BULK_ACTIONS = "bulkProcessor.minBulkActions";
+    public static final String BULK_PROCESSOR_MAX_BULK_ACTIONS = "bulkProcessor.maxBulkActions";
+    public static final String BULK_PROCESSOR_MAX_CONCURRENT_REQUESTS = "bulkProcessor.maxConcurrentRequests";
+    public static final String BULK_PROCESSOR_TARGET_LATENCY = "bulkProcessor.targetLatency";
+    public static final String BULK_PROCESSOR_ADJUST_INTERVAL = "bulkProcessor.adjustInterval";
+    public static final String BULK_PROCESSOR_IN_FLIGHT_BUDGET = "bulkProcessor.inFlightBudget";
+    public static final String BULK_PROCESSOR_BACKPRESSURE_TIMEOUT = "bulkProcessor.backpressureTimeout";
+    public static final String BULK_PROCESSOR_ITEM_RETRIES = "bulkProcessor.itemRetries";
+    public static final String BULK_PROCESSOR_ITEM_RETRY_DELAY = "bulkProcessor.itemRetryDelay";
+    // estimated overhead of each request in a bulk, as computed by ElasticSearch
+    private static final long BULK_REQUEST_OVERHEAD = 50;
+    private static final int UPDATE_RETRIES_ON_CONFLICT = 3;
+    private static final long BULK_LOAD_COMPLETION_TIMEOUT = 10L * 60L * 1000L;
 
     private TransportClient client;
-    private BulkProcessor bulkProcessor;
+
+    private volatile BulkProcessor bulkProcessor;
+    private AdaptiveBulkController bulkController;
+    private ScheduledExecutorService bulkMaintenanceExecutor;
+    // bulk items are retried on their own thread, the maintenance thread waiting for bulks to complete when the bulk processor is replaced
+    private ScheduledExecutorService bulkRetryExecutor;
+    // number of retries of the bulk items that failed with a transient error
+    private final ConcurrentMap<ActionRequest, Integer> bulkItemRetries = new ConcurrentHashMap<>();
+    // listeners of the items saved asynchronously through the bulk processor, by request so that concurrent writes of an item are all acknowledged
+    private final ConcurrentMap<ActionRequest, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    // mappings of the monthly index template as last registered, guarded by putMonthlyIndexTemplate
+    private Map<String, String> monthlyIndexTemplateMappings;
     private String elasticSearchAddresses;
     private List<String> elasticSearchAddressList = new ArrayList<>();
     private String clusterName;
@@ -119,18 +167,19 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     private String numberOfShards;
     private String numberOfReplicas;
     private BundleContext bundleContext;
-    private Map<String, String> mappings = new HashMap<String, String>();
+    private Map<String, String> mappings = new ConcurrentHashMap<String, String>();
     private ConditionEvaluatorDispatcher conditionEvaluatorDispatcher;
     private ConditionESQueryBuilderDispatcher conditionESQueryBuilderDispatcher;
 
     private Map<String,String> indexNames;
     private List<String> itemsMonthlyIndexed;
     private Map<String, String> routingByType;
-    private Set<String> existingIndexNames = new TreeSet<String>();
+    private Set<String> existingIndexNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private Integer defaultQueryLimit = 10;
 
     private Timer timer;
+    private long monthlyIndexCheckInterval = 60L * 60L * 1000L;
 
     private String bulkProcessorName = "unomi-bulk";
     private String bulkProcessorConcurrentRequests = "1";
@@ -138,6 +187,21 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     private String bulkProcessorBulkSize= "5MB";
     private String bulkProcessorFlushInterval = "5s";
     private String bulkProcessorBackoffPolicy = "exponential";
+    private String bulkProcessorAdaptive = "true";
+    private String bulkProcessorMinBulkActions = "100";
+    private String bulkProcessorMaxBulkActions = "5000";
+    private String bulkProcessorMaxConcurrentRequests = "4";
+    private String bulkProcessorTargetLatency = "1000";
+    private String bulkProcessorAdjustInterval = "30000";
+    private String bulkProcessorInFlightBudget = "50MB";
+    private String bulkProcessorBackpressureTimeout = "1000";
+    private String bulkProcessorItemRetries = "3";
+    private String bulkProcessorItemRetryDelay = "500";
+
+    private int removeByQueryBulkSize = 1000;
+    private int removeByQuerySlices = 2;
+    private float removeByQueryRequestsPerSecond = -1;
+    private boolean nativeByQuerySupported = false;
 
     private String minimalElasticSearchVersion = "5.0.0";
     private String maximalElasticSearchVersion = "5.2.0";
@@ -185,6 +249,10 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         this.defaultQueryLimit = defaultQueryLimit;
     }
 
+    public void setMonthlyIndexCheckInterval(long monthlyIndexCheckInterval) {
+        this.monthlyIndexCheckInterval = monthlyIndexCheckInterval;
+    }
+
     public void setItemsMonthlyIndexed(List<String> itemsMonthlyIndexed) {
         this.itemsMonthlyIndexed = itemsMonthlyIndexed;
     }
@@ -229,6 +297,58 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         this.bulkProcessorBackoffPolicy = bulkProcessorBackoffPolicy;
     }
 
+    public void setBulkProcessorAdaptive(String bulkProcessorAdaptive) {
+        this.bulkProcessorAdaptive = bulkProcessorAdaptive;
+    }
+
+    public void setBulkProcessorMinBulkActions(String bulkProcessorMinBulkActions) {
+        this.bulkProcessorMinBulkActions = bulkProcessorMinBulkActions;
+    }
+
+    public void setBulkProcessorMaxBulkActions(String bulkProcessorMaxBulkActions) {
+        this.bulkProcessorMaxBulkActions = bulkProcessorMaxBulkActions;
+    }
+
+    public void setBulkProcessorMaxConcurrentRequests(String bulkProcessorMaxConcurrentRequests) {
+        this.bulkProcessorMaxConcurrentRequests = bulkProcessorMaxConcurrentRequests;
+    }
+
+    public void setBulkProcessorTargetLatency(String bulkProcessorTargetLatency) {
+        this.bulkProcessorTargetLatency = bulkProcessorTargetLatency;
+    }
+
+    public void setBulkProcessorAdjustInterval(String bulkProcessorAdjustInterval) {
+        this.bulkProcessorAdjustInterval = bulkProcessorAdjustInterval;
+    }
+
+    public void setBulkProcessorInFlightBudget(String bulkProcessorInFlightBudget) {
+        this.bulkProcessorInFlightBudget = bulkProcessorInFlightBudget;
+    }
+
+    public void setBulkProcessorBackpressureTimeout(String bulkProcessorBackpressureTimeout) {
+        this.bulkProcessorBackpressureTimeout = bulkProcessorBackpressureTimeout;
+    }
+
+    public void setBulkProcessorItemRetries(String bulkProcessorItemRetries) {
+        this.bulkProcessorItemRetries = bulkProcessorItemRetries;
+    }
+
+    public void setBulkProcessorItemRetryDelay(String bulkProcessorItemRetryDelay) {
+        this.bulkProcessorItemRetryDelay = bulkProcessorItemRetryDelay;
+    }
+
+    public void setRemoveByQueryBulkSize(int removeByQueryBulkSize) {
+        this.removeByQueryBulkSize = removeByQueryBulkSize;
+    }
+
+    public void setRemoveByQuerySlices(int removeByQuerySlices) {
+        this.removeByQuerySlices = removeByQuerySlices;
+    }
+
+    public void setRemoveByQueryRequestsPerSecond(float removeByQueryRequestsPerSecond) {
+        this.removeByQueryRequestsPerSecond = removeByQueryRequestsPerSecond;
+    }
+
     public void setMinimalElasticSearchVersion(String minimalElasticSearchVersion) {
         this.minimalElasticSearchVersion = minimalElasticSearchVersion;
     }
@@ -252,6 +372,16 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 bulkProcessorBulkSize = System.getProperty(BULK_PROCESSOR_BULK_SIZE, bulkProcessorBulkSize);
                 bulkProcessorFlushInterval = System.getProperty(BULK_PROCESSOR_FLUSH_INTERVAL, bulkProcessorFlushInterval);
                 bulkProcessorBackoffPolicy = System.getProperty(BULK_PROCESSOR_BACKOFF_POLICY, bulkProcessorBackoffPolicy);
+                bulkProcessorAdaptive = System.getProperty(BULK_PROCESSOR_ADAPTIVE, bulkProcessorAdaptive);
+                bulkProcessorMinBulkActions = System.getProperty(BULK_PROCESSOR_MIN_BULK_ACTIONS, bulkProcessorMinBulkActions);
+                bulkProcessorMaxBulkActions = System.getProperty(BULK_PROCESSOR_MAX_BULK_ACTIONS, bulkProcessorMaxBulkActions);
+                bulkProcessorMaxConcurrentRequests = System.getProperty(BULK_PROCESSOR_MAX_CONCURRENT_REQUESTS, bulkProcessorMaxConcurrentRequests);
+                bulkProcessorTargetLatency = System.getProperty(BULK_PROCESSOR_TARGET_LATENCY, bulkProcessorTargetLatency);
+                bulkProcessorAdjustInterval = System.getProperty(BULK_PROCESSOR_ADJUST_INTERVAL, bulkProcessorAdjustInterval);
+                bulkProcessorInFlightBudget = System.getProperty(BULK_PROCESSOR_IN_FLIGHT_BUDGET, bulkProcessorInFlightBudget);
+                bulkProcessorBackpressureTimeout = System.getProperty(BULK_PROCESSOR_BACKPRESSURE_TIMEOUT, bulkProcessorBackpressureTimeout);
+                bulkProcessorItemRetries = System.getProperty(BULK_PROCESSOR_ITEM_RETRIES, bulkProcessorItemRetries);
+                bulkProcessorItemRetryDelay = System.getProperty(BULK_PROCESSOR_ITEM_RETRY_DELAY, bulkProcessorItemRetryDelay);
 
                 Settings transportSettings = Settings.builder()
                         .put(CLUSTER_NAME, clusterName).build();
@@ -275,6 +405,9 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
                     org.elasticsearch.Version minimalVersion = org.elasticsearch.Version.fromString(minimalElasticSearchVersion);
                     org.elasticsearch.Version maximalVersion = org.elasticsearch.Version.fromString(maximalElasticSearchVersion);
+                    // sliced delete and update by query are available starting with 5.1
+                    org.elasticsearch.Version byQueryVersion = org.elasticsearch.Version.fromString("5.1.0");
+                    boolean byQuerySupported = true;
                     for (NodeInfo nodeInfo : nodesInfoResponse.getNodes()) {
                         org.elasticsearch.Version version = nodeInfo.getVersion();
                         if (version.before(minimalVersion) ||
@@ -282,7 +415,11 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                 version.after(maximalVersion)) {
                             throw new Exception("ElasticSearch version on node " + nodeInfo.getHostname() + " is not within [" + minimalVersion + "," + maximalVersion + "), aborting startup !");
                         }
+                        if (version.before(byQueryVersion)) {
+                            byQuerySupported = false;
+                        }
                     }
+                    nativeByQuerySupported = byQuerySupported;
                 } catch (InterruptedException e) {
                     throw new Exception("Error checking ElasticSearch versions", e);
                 } catch (ExecutionException e) {
@@ -322,22 +459,24 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     }
                 }
 
-                client.admin().indices().preparePutTemplate(indexName + "_monthlyindex")
-                        .setTemplate(indexName + "-*")
-                        .setOrder(1)
-                        .setSettings(Settings.builder()
-                                .put(NUMBER_OF_SHARDS, Integer.parseInt(monthlyIndexNumberOfShards))
-                                .put(NUMBER_OF_REPLICAS, Integer.parseInt(monthlyIndexNumberOfReplicas))
-                                .build()).execute().actionGet();
-
-                getMonthlyIndex(new Date(), true);
+                putMonthlyIndexTemplate();
 
                 if (client != null && bulkProcessor == null) {
                     bulkProcessor = getBulkProcessor();
+                    startBulkMaintenance();
                 }
 
                 refreshExistingIndexNames();
 
+                createMonthlyIndex(new Date());
+
+                // dedicated indices are created upfront, monthly indices are created from the template by the scheduled task
+                for (String dedicatedIndexName : new HashSet<>(indexNames.values())) {
+                    if (!existingIndexNames.contains(dedicatedIndexName)) {
+                        createIndex(dedicatedIndexName);
+                    }
+                }
+
                 logger.info("Waiting for GREEN cluster status...");
 
                 client.admin().cluster().prepareHealth()
@@ -358,15 +497,13 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
+                // make sure the current and next month indices exist well before the first write of the month
                 GregorianCalendar gc = new GregorianCalendar();
-                int thisMonth = gc.get(Calendar.MONTH);
-                gc.add(Calendar.DAY_OF_MONTH, 1);
-                if (gc.get(Calendar.MONTH) != thisMonth) {
-                    String monthlyIndex = getMonthlyIndex(gc.getTime(), true);
-                    existingIndexNames.add(monthlyIndex);
-                }
+                createMonthlyIndex(gc.getTime());
+                gc.add(Calendar.MONTH, 1);
+                createMonthlyIndex(gc.getTime());
             }
-        }, 10000L, 24L * 60L * 60L * 1000L);
+        }, monthlyIndexCheckInterval, monthlyIndexCheckInterval);
 
         // load predefined mappings and condition dispatchers of any bundles that were started before this one.
         for (Bundle existingBundle : bundleContext.getBundles()) {
@@ -384,7 +521,9 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 try {
                     logger.info("Refreshing existing indices list...");
                     IndicesStatsResponse indicesStatsResponse = client.admin().indices().prepareStats().all().execute().get();
-                    existingIndexNames = new TreeSet<>(indicesStatsResponse.getIndices().keySet());
+                    Set<String> indices = indicesStatsResponse.getIndices().keySet();
+                    existingIndexNames.addAll(indices);
+                    existingIndexNames.retainAll(indices);
                 } catch (InterruptedException e) {
                     throw new Exception("Error retrieving indices stats", e);
                 } catch (ExecutionException e) {
@@ -399,6 +538,28 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         if (bulkProcessor != null) {
             return bulkProcessor;
         }
+        if (bulkController == null) {
+            int bulkActions = bulkProcessorBulkActions != null ? Integer.parseInt(bulkProcessorBulkActions) : 1000;
+            int concurrentRequests = bulkProcessorConcurrentRequests != null ? Integer.parseInt(bulkProcessorConcurrentRequests) : 1;
+            bulkController = new AdaptiveBulkController(bulkActions, Integer.parseInt(bulkProcessorMinBulkActions), Integer.parseInt(bulkProcessorMaxBulkActions),
+                    concurrentRequests, Integer.parseInt(bulkProcessorMaxConcurrentRequests), Long.parseLong(bulkProcessorTargetLatency),
+                    ByteSizeValue.parseBytesSizeValue(bulkProcessorInFlightBudget, new ByteSizeValue(50, ByteSizeUnit.MB), BULK_PROCESSOR_IN_FLIGHT_BUDGET).getBytes(),
+                    Long.parseLong(bulkProcessorBackpressureTimeout));
+        }
+        bulkProcessor = buildBulkProcessor();
+        return bulkProcessor;
+    }
+
+    /**
+     * Retrieves the controller holding the bulk metrics and the current bulk settings.
+     *
+     * @return the bulk controller, or {@code null} if the persistence service is not started
+     */
+    public AdaptiveBulkController getBulkController() {
+        return bulkController;
+    }
+
+    private BulkProcessor buildBulkProcessor() {
         BulkProcessor.Builder bulkProcessorBuilder = BulkProcessor.builder(
                 client,
                 new BulkProcessor.Listener() {
@@ -406,6 +567,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     public void beforeBulk(long executionId,
                                            BulkRequest request) {
                         logger.debug("Before Bulk");
+                        bulkController.beforeBulk(executionId);
                     }
 
                     @Override
@@ -413,6 +575,50 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                           BulkRequest request,
                                           BulkResponse response) {
                         logger.debug("After Bulk");
+                        int failedItems = 0;
+                        int rejectedItems = 0;
+                        Set<ActionRequest> retriedRequests = null;
+                        for (BulkItemResponse itemResponse : response.getItems()) {
+                            // items are numbered in the order of the requests of the bulk
+                            ActionRequest itemRequest = request.requests().get(itemResponse.getItemId());
+                            ActionRequest retriedRequest = null;
+                            if (itemResponse.isFailed()) {
+                                failedItems++;
+                                RestStatus status = itemResponse.getFailure().getStatus();
+                                if (status == RestStatus.TOO_MANY_REQUESTS) {
+                                    rejectedItems++;
+                                }
+                                if (status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE || status == RestStatus.GATEWAY_TIMEOUT) {
+                                    if (retryBulkItem(itemRequest)) {
+                                        retriedRequest = itemRequest;
+                                        if (retriedRequests == null) {
+                                            retriedRequests = new HashSet<>();
+                                        }
+                                        retriedRequests.add(itemRequest);
+                                    }
+                                }
+                            }
+                            if (retriedRequest == null && !pendingWrites.isEmpty()) {
+                                PendingWrite pendingWrite = pendingWrites.remove(itemRequest);
+                                if (pendingWrite != null) {
+                                    pendingWrite.complete(itemResponse.isFailed() ? itemResponse.getFailure().getCause() : null);
+                                }
+                            }
+                        }
+                        if (response.hasFailures()) {
+                            logger.warn("Bulk request {} had {} failures : {}", executionId, failedItems, response.buildFailureMessage());
+                        }
+                        if (!bulkItemRetries.isEmpty()) {
+                            // forget the retries of the items that went through or failed for good
+                            for (ActionRequest actionRequest : request.requests()) {
+                                if (retriedRequests == null || !retriedRequests.contains(actionRequest)) {
+                                    bulkItemRetries.remove(actionRequest);
+                                }
+                            }
+                        }
+                        long size = estimateSize(request);
+                        bulkController.release(size);
+                        bulkController.afterBulk(executionId, request.numberOfActions(), size, failedItems, rejectedItems, false);
                     }
 
                     @Override
@@ -420,21 +626,27 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                           BulkRequest request,
                                           Throwable failure) {
                         logger.error("After Bulk (failure)", failure);
+                        for (ActionRequest actionRequest : request.requests()) {
+                            if (!retryBulkItem(actionRequest) && !pendingWrites.isEmpty()) {
+                                PendingWrite pendingWrite = pendingWrites.remove(actionRequest);
+                                if (pendingWrite != null) {
+                                    pendingWrite.complete(failure);
+                                }
+                            }
+                        }
+                        long size = estimateSize(request);
+                        bulkController.release(size);
+                        bulkController.afterBulk(executionId, request.numberOfActions(), size, request.numberOfActions(), 0, true);
                     }
                 });
         if (bulkProcessorName != null && bulkProcessorName.length() > 0) {
             bulkProcessorBuilder.setName(bulkProcessorName);
         }
-        if (bulkProcessorConcurrentRequests != null) {
-            int concurrentRequests = Integer.parseInt(bulkProcessorConcurrentRequests);
-            if (concurrentRequests > 1) {
-                bulkProcessorBuilder.setConcurrentRequests(concurrentRequests);
-            }
-        }
-        if (bulkProcessorBulkActions != null) {
-            int bulkActions = Integer.parseInt(bulkProcessorBulkActions);
-            bulkProcessorBuilder.setBulkActions(bulkActions);
+        int concurrentRequests = bulkController.getConcurrentRequests();
+        if (concurrentRequests > 1) {
+            bulkProcessorBuilder.setConcurrentRequests(concurrentRequests);
         }
+        bulkProcessorBuilder.setBulkActions(bulkController.getBulkActions());
         if (bulkProcessorBulkSize != null) {
             bulkProcessorBuilder.setBulkSize(ByteSizeValue.parseBytesSizeValue(bulkProcessorBulkSize, new ByteSizeValue(5, ByteSizeUnit.MB), BULK_PROCESSOR_BULK_SIZE));
         }
@@ -473,8 +685,129 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
             }
         }
 
-        bulkProcessor = bulkProcessorBuilder.build();
-        return bulkProcessor;
+        return bulkProcessorBuilder.build();
+    }
+
+    private void startBulkMaintenance() {
+        bulkMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unomi-bulk-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        bulkRetryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unomi-bulk-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (Boolean.parseBoolean(bulkProcessorAdaptive)) {
+            long adjustInterval = Long.parseLong(bulkProcessorAdjustInterval);
+            bulkMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (bulkController.adjust()) {
+                            replaceBulkProcessor();
+                        }
+                    } catch (Throwable t) {
+                        logger.error("Error adjusting bulk settings", t);
+                    }
+                }
+            }, adjustInterval, adjustInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces the bulk processor by one using the current settings of the bulk controller. The previous processor is flushed and closed.
+     */
+    private void replaceBulkProcessor() {
+        BulkProcessor previousBulkProcessor = bulkProcessor;
+        bulkProcessor = new InClassLoaderExecute<BulkProcessor>() {
+            protected BulkProcessor execute(Object... args) {
+                return buildBulkProcessor();
+            }
+        }.catchingExecuteInClassLoader(true);
+        if (bulkProcessor == null) {
+            bulkProcessor = previousBulkProcessor;
+            return;
+        }
+        try {
+            previousBulkProcessor.awaitClose(2, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a request to the current bulk, waiting if too many bytes are already waiting to be written.
+     */
+    private void addToBulk(ActionRequest request) {
+        bulkController.acquire(estimateSize(request));
+        try {
+            bulkProcessor.add(request);
+        } catch (IllegalStateException e) {
+            // the bulk processor was closed while being replaced, use the new one
+            bulkProcessor.add(request);
+        }
+    }
+
+    /**
+     * Schedules a new attempt of a bulk item that failed with a transient error, with an exponential delay.
+     *
+     * @return {@code true} if the item will be retried, {@code false} if it was retried too many times already
+     */
+    private boolean retryBulkItem(final ActionRequest request) {
+        Integer retries = bulkItemRetries.get(request);
+        int attempt = retries != null ? retries : 0;
+        if (attempt >= Integer.parseInt(bulkProcessorItemRetries) || bulkRetryExecutor == null || bulkRetryExecutor.isShutdown()) {
+            bulkItemRetries.remove(request);
+            return false;
+        }
+        bulkItemRetries.put(request, attempt + 1);
+        bulkController.itemRetried();
+        bulkRetryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    addToBulk(request);
+                } catch (Exception e) {
+                    logger.error("Error retrying bulk item", e);
+                }
+            }
+        }, Long.parseLong(bulkProcessorItemRetryDelay) << attempt, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private static long estimateSize(BulkRequest request) {
+        long size = 0;
+        for (ActionRequest actionRequest : request.requests()) {
+            size += estimateSize(actionRequest);
+        }
+        return size;
+    }
+
+    private static long estimateSize(ActionRequest request) {
+        long size = BULK_REQUEST_OVERHEAD;
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            if (indexRequest.source() != null) {
+                size += indexRequest.source().length();
+            }
+        } else if (request instanceof UpdateRequest) {
+            UpdateRequest updateRequest = (UpdateRequest) request;
+            if (updateRequest.doc() != null && updateRequest.doc().source() != null) {
+                size += updateRequest.doc().source().length();
+            }
+            if (updateRequest.upsertRequest() != null && updateRequest.upsertRequest().source() != null) {
+                size += updateRequest.upsertRequest().source().length();
+            }
+        }
+        return size;
     }
 
     public void stop() {
@@ -482,6 +815,12 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         new InClassLoaderExecute<Object>() {
             protected Object execute(Object... args) {
                 logger.info("Closing ElasticSearch persistence backend...");
+                if (bulkMaintenanceExecutor != null) {
+                    bulkMaintenanceExecutor.shutdownNow();
+                }
+                if (bulkRetryExecutor != null) {
+                    bulkRetryExecutor.shutdownNow();
+                }
                 if (bulkProcessor != null) {
                     try {
                         bulkProcessor.awaitClose(2, TimeUnit.MINUTES);
@@ -538,32 +877,59 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
     }
 
     private String getMonthlyIndex(Date date) {
-        return getMonthlyIndex(date, false);
+        String d = new SimpleDateFormat("-YYYY-MM").format(date);
+        return indexName + d;
     }
 
-    private String getMonthlyIndex(Date date, boolean checkAndCreate) {
-        String d = new SimpleDateFormat("-YYYY-MM").format(date);
-        String monthlyIndexName = indexName + d;
-
-        if (checkAndCreate) {
-            IndicesExistsResponse indicesExistsResponse = client.admin().indices().prepareExists(monthlyIndexName).execute().actionGet();
-            boolean indexExists = indicesExistsResponse.isExists();
-            if (!indexExists) {
-                logger.info("{} index doesn't exist yet, creating it...", monthlyIndexName);
-
-                Map<String,String> indexMappings = new HashMap<String,String>();
-                indexMappings.put("_default_",mappings.get("_default_"));
-                for (Map.Entry<String, String> entry : mappings.entrySet()) {
-                    if (itemsMonthlyIndexed.contains(entry.getKey())) {
-                        indexMappings.put(entry.getKey(), entry.getValue());
+    /**
+     * Creates the monthly index for the specified date if it doesn't exist yet. Settings and mappings come from the monthly index template, so a concurrent
+     * creation by another node (or an automatic creation by ElasticSearch on first write) results in the same index.
+     */
+    private void createMonthlyIndex(final Date date) {
+        new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) throws Exception {
+                String monthlyIndexName = getMonthlyIndex(date);
+                if (existingIndexNames.contains(monthlyIndexName)) {
+                    return false;
+                }
+                if (!client.admin().indices().prepareExists(monthlyIndexName).execute().actionGet().isExists()) {
+                    logger.info("{} index doesn't exist yet, creating it...", monthlyIndexName);
+                    try {
+                        client.admin().indices().prepareCreate(monthlyIndexName).execute().actionGet();
+                        logger.info("{} index created.", monthlyIndexName);
+                    } catch (ResourceAlreadyExistsException e) {
+                        logger.debug("{} index was created concurrently", monthlyIndexName);
                     }
                 }
+                existingIndexNames.add(monthlyIndexName);
+                return true;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
 
-                internalCreateIndex(monthlyIndexName, indexMappings);
-                logger.info("{} index created.", monthlyIndexName);
+    /**
+     * Registers (or updates) the index template applied to all the monthly indices, with the mappings of the monthly indexed item types known so far.
+     * The template is only sent again when these mappings changed since it was last registered.
+     */
+    private synchronized void putMonthlyIndexTemplate() {
+        Map<String, String> templateMappings = new HashMap<>();
+        for (Map.Entry<String, String> entry : mappings.entrySet()) {
+            if (entry.getKey().equals("_default_") || itemsMonthlyIndexed.contains(entry.getKey())) {
+                templateMappings.put(entry.getKey(), entry.getValue());
             }
         }
-        return monthlyIndexName;
+        if (templateMappings.equals(monthlyIndexTemplateMappings)) {
+            return;
+        }
+        PutIndexTemplateRequestBuilder builder = client.admin().indices().preparePutTemplate(indexName + "_monthlyindex")
+                .setTemplate(indexName + "-*")
+                .setOrder(1)
+                .setSettings(getIndexSettings(monthlyIndexNumberOfShards, monthlyIndexNumberOfReplicas));
+        for (Map.Entry<String, String> entry : templateMappings.entrySet()) {
+            builder.addMapping(entry.getKey(), entry.getValue());
+        }
+        builder.execute().actionGet();
+        monthlyIndexTemplateMappings = templateMappings;
     }
 
     private void loadPredefinedMappings(BundleContext bundleContext, boolean createMapping) {
@@ -640,6 +1006,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                             String sourceAsString = response.getSourceAsString();
                             final T value = CustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
                             value.setItemId(response.getId());
+                            value.setVersion(response.getVersion());
                             return value;
                         } else {
                             return null;
@@ -678,30 +1045,67 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                         indexBuilder = indexBuilder.setRouting(routingByType.get(itemType));
                     }
 
-                    if (!existingIndexNames.contains(index)) {
-                        // index probably doesn't exist, unless something else has already created it.
-                        if (itemsMonthlyIndexed.contains(itemType)) {
-                            Date timeStamp = ((TimestampedItem) item).getTimeStamp();
-                            if (timeStamp != null) {
-                                getMonthlyIndex(timeStamp, true);
-                            } else {
-                                logger.warn("Missing time stamp on item " + item + " id=" + item.getItemId() + " can't create related monthly index !");
-                            }
-                        } else {
-                            // this is not a timestamped index, should we create it anyway ?
-                            createIndex(index);
-                        }
-                    }
-
+                    // indices are never created here : monthly indices are created ahead of time (or by ElasticSearch from the
+                    // monthly index template on first write) and dedicated indices are created on startup.
                     try {
                         if (bulkProcessor == null || !useBatching) {
-                            indexBuilder.execute().actionGet();
+                            IndexResponse response = indexBuilder.execute().actionGet();
+                            item.setVersion(response.getVersion());
                         } else {
-                            bulkProcessor.add(indexBuilder.request());
+                            addToBulk(indexBuilder.request());
                         }
                     } catch (IndexNotFoundException e) {
-                        if (existingIndexNames.contains(index)) {
-                            existingIndexNames.remove(index);
+                        existingIndexNames.remove(index);
+                        logger.error("No index found for item " + item + " id=" + item.getItemId(), e);
+                        return false;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new Exception("Error saving item " + item, e);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+
+    }
+
+    @Override
+    public boolean saveAsync(final Item item, final boolean useBatching, final ItemWriteListener listener) {
+        Boolean result = new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) throws Exception {
+                try {
+                    String source = CustomObjectMapper.getObjectMapper().writeValueAsString(item);
+                    String itemType = item.getItemType();
+                    String index = indexNames.containsKey(itemType) ? indexNames.get(itemType) :
+                            (itemsMonthlyIndexed.contains(itemType) ? getMonthlyIndex(((TimestampedItem) item).getTimeStamp()) : indexName);
+                    IndexRequestBuilder indexBuilder = client.prepareIndex(index, itemType, item.getItemId())
+                            .setSource(source);
+                    if (routingByType.containsKey(itemType)) {
+                        indexBuilder = indexBuilder.setRouting(routingByType.get(itemType));
+                    }
+
+                    final PendingWrite pendingWrite = new PendingWrite(item, listener);
+                    if (bulkProcessor == null || !useBatching) {
+                        indexBuilder.execute(new ActionListener<IndexResponse>() {
+                            @Override
+                            public void onResponse(IndexResponse indexResponse) {
+                                pendingWrite.complete(null);
+                            }
+
+                            @Override
+                            public void onFailure(Exception e) {
+                                pendingWrite.complete(e);
+                            }
+                        });
+                    } else {
+                        IndexRequest indexRequest = indexBuilder.request();
+                        if (listener != null) {
+                            pendingWrites.put(indexRequest, pendingWrite);
+                        }
+                        try {
+                            addToBulk(indexRequest);
+                        } catch (RuntimeException e) {
+                            pendingWrites.remove(indexRequest);
+                            throw e;
                         }
                     }
                     return true;
@@ -710,7 +1114,50 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                 }
             }
         }.catchingExecuteInClassLoader(true);
+        return Boolean.TRUE.equals(result);
+    }
+
+    /**
+     * Whether the specified write failure is caused by the request itself (mapping or parsing error, ...) rather than by the cluster state, so that
+     * retrying the same request will fail again. Unknown failures, and missing indices that may be created since, are considered transient.
+     */
+    private static boolean isPermanentFailure(Throwable failure) {
+        RestStatus status = ExceptionsHelper.status(failure);
+        return status.getStatus() >= 400 && status.getStatus() < 500
+                && status != RestStatus.NOT_FOUND && status != RestStatus.REQUEST_TIMEOUT && status != RestStatus.TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * An item saved asynchronously, waiting for its write to be acknowledged.
+     */
+    private static class PendingWrite {
+        private final Item item;
+        private final ItemWriteListener listener;
+
+        PendingWrite(Item item, ItemWriteListener listener) {
+            this.item = item;
+            this.listener = listener;
+        }
 
+        void complete(Throwable failure) {
+            if (failure != null) {
+                logger.warn("Error writing item " + item.getItemType() + "/" + item.getItemId() + " : " + failure.getMessage());
+            }
+            if (listener == null) {
+                return;
+            }
+            try {
+                if (failure == null) {
+                    listener.onSuccess(item);
+                } else if (isPermanentFailure(failure)) {
+                    listener.onFailure(item, new PermanentWriteException("Item " + item.getItemType() + "/" + item.getItemId() + " was rejected", failure));
+                } else {
+                    listener.onFailure(item, failure);
+                }
+            } catch (Exception e) {
+                logger.error("Error notifying write listener for item " + item.getItemId(), e);
+            }
+        }
     }
 
     @Override
@@ -734,7 +1181,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                 .actionGet();
                     } else {
                         UpdateRequest updateRequest = client.prepareUpdate(index, itemType, itemId).setDoc(source).request();
-                        bulkProcessor.add(updateRequest);
+                        addToBulk(updateRequest);
                     }
                     return true;
                 } catch (IndexNotFoundException e) {
@@ -748,6 +1195,37 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    @Override
+    public boolean update(final Item item, final Map<String, Object> changes) {
+        Boolean result = new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) throws Exception {
+                try {
+                    String source = CustomObjectMapper.getObjectMapper().writeValueAsString(changes);
+                    String itemType = item.getItemType();
+                    String index = indexNames.containsKey(itemType) ? indexNames.get(itemType) :
+                            (itemsMonthlyIndexed.contains(itemType) ? getMonthlyIndex(((TimestampedItem) item).getTimeStamp()) : indexName);
+                    // the document is merged into its latest version : on a version conflict, the update is applied again on top of the concurrent
+                    // write instead of overwriting it
+                    UpdateRequestBuilder updateBuilder = client.prepareUpdate(index, itemType, item.getItemId())
+                            .setDoc(source)
+                            .setRetryOnConflict(UPDATE_RETRIES_ON_CONFLICT);
+                    if (routingByType.containsKey(itemType)) {
+                        updateBuilder = updateBuilder.setRouting(routingByType.get(itemType));
+                    }
+                    UpdateResponse response = updateBuilder.execute().actionGet();
+                    item.setVersion(response.getVersion());
+                    return true;
+                } catch (DocumentMissingException | VersionConflictEngineException e) {
+                    logger.debug("Couldn't update item {}/{} : {}", item.getItemType(), item.getItemId(), e.getMessage());
+                    return false;
+                } catch (IOException e) {
+                    throw new Exception("Error updating item " + item, e);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+        return Boolean.TRUE.equals(result);
+    }
+
     @Override
     public boolean updateWithScript(final String itemId, final Date dateHint, final Class<?> clazz, final String script, final Map<String, Object> scriptParams) {
         return new InClassLoaderExecute<Boolean>() {
@@ -765,7 +1243,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                 .actionGet();
                     } else {
                         UpdateRequest updateRequest = client.prepareUpdate(index, itemType, itemId).setScript(actualScript).request();
-                        bulkProcessor.add(updateRequest);
+                        addToBulk(updateRequest);
                     }
                     return true;
                 } catch (IndexNotFoundException e) {
@@ -802,48 +1280,192 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
             protected Boolean execute(Object... args) throws Exception {
                 try {
                     String itemType = (String) clazz.getField("ITEM_TYPE").get(null);
+                    QueryBuilder queryBuilder = conditionESQueryBuilderDispatcher.getQueryBuilder(query);
 
-                    BulkRequestBuilder deleteByScope = client.prepareBulk();
+                    if (nativeByQuerySupported) {
+                        return deleteByQuery(itemType, queryBuilder, query);
+                    } else {
+                        return bulkByScroll(itemType, queryBuilder, query, "Removed", new ScrollBulkAction() {
+                            @Override
+                            public void add(BulkRequestBuilder bulkRequestBuilder, SearchHit hit) {
+                                bulkRequestBuilder.add(Requests.deleteRequest(hit.index()).type(hit.type()).id(hit.id()));
+                            }
+                        });
+                    }
+                } catch (Exception e) {
+                    throw new Exception("Cannot remove by query", e);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
 
-                    final TimeValue keepAlive = TimeValue.timeValueHours(1);
-                    SearchResponse response = client.prepareSearch(indexName + "*")
-                            .setIndices(getIndexNameForQuery(itemType))
-                            .setScroll(keepAlive)
-                            .setQuery(conditionESQueryBuilderDispatcher.getQueryBuilder(query))
-                            .setSize(100).execute().actionGet();
+    private boolean deleteByQuery(String itemType, QueryBuilder queryBuilder, Condition query) {
+        long startTime = System.currentTimeMillis();
+        DeleteByQueryRequestBuilder deleteByQueryRequestBuilder = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+                .source(getIndexNameForQuery(itemType))
+                .filter(queryBuilder)
+                .abortOnVersionConflict(false)
+                .setSlices(Math.max(1, removeByQuerySlices))
+                .setRequestsPerSecond(removeByQueryRequestsPerSecond > 0 ? removeByQueryRequestsPerSecond : Float.POSITIVE_INFINITY);
+        deleteByQueryRequestBuilder.source().setTypes(itemType).setSize(removeByQueryBulkSize);
+
+        BulkIndexByScrollResponse response = deleteByQueryRequestBuilder.get();
+        long failures = response.getBulkFailures().size() + response.getSearchFailures().size();
+        logger.info("Removed {} items of type {} in {} batches in {}ms ({} version conflicts, {} failures)", response.getDeleted(), itemType,
+                response.getBatches(), System.currentTimeMillis() - startTime, response.getVersionConflicts(), failures);
+        if (failures > 0) {
+            logger.warn("Couldn't remove all items matching query {}, bulk failures: {}, search failures: {}", query, response.getBulkFailures(), response.getSearchFailures());
+            return false;
+        }
+        return true;
+    }
 
-                    // Scroll until no more hits are returned
-                    while (true) {
+    @Override
+    public <T extends Item> boolean updateByQuery(final Condition query, final Class<T> clazz, final String propertyName, final Object propertyValue) {
+        return new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) throws Exception {
+                try {
+                    String itemType = (String) clazz.getField("ITEM_TYPE").get(null);
+                    QueryBuilder queryBuilder = conditionESQueryBuilderDispatcher.getQueryBuilder(query);
 
-                        for (SearchHit hit : response.getHits().getHits()) {
-                            // add hit to bulk delete
-                            deleteByScope.add(Requests.deleteRequest(hit.index()).type(hit.type()).id(hit.id()));
-                        }
+                    if (nativeByQuerySupported) {
+                        return updateByQuery(itemType, queryBuilder, query, propertyName, propertyValue);
+                    } else {
+                        final Map<String, Object> source = Collections.singletonMap(propertyName, propertyValue);
+                        return bulkByScroll(itemType, queryBuilder, query, "Updated", new ScrollBulkAction() {
+                            @Override
+                            public void add(BulkRequestBuilder bulkRequestBuilder, SearchHit hit) {
+                                bulkRequestBuilder.add(client.prepareUpdate(hit.index(), hit.type(), hit.id()).setDoc(source));
+                            }
+                        });
+                    }
+                } catch (Exception e) {
+                    throw new Exception("Cannot update by query", e);
+                }
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    private boolean updateByQuery(String itemType, QueryBuilder queryBuilder, Condition query, String propertyName, Object propertyValue) {
+        long startTime = System.currentTimeMillis();
+        Map<String, Object> scriptParams = new HashMap<>();
+        scriptParams.put("property", propertyName);
+        scriptParams.put("value", propertyValue);
+        UpdateByQueryRequestBuilder updateByQueryRequestBuilder = UpdateByQueryAction.INSTANCE.newRequestBuilder(client)
+                .source(getIndexNameForQuery(itemType))
+                .filter(queryBuilder)
+                .script(new Script(ScriptType.INLINE, "painless", "ctx._source[params.property] = params.value", scriptParams))
+                .abortOnVersionConflict(false)
+                .setSlices(Math.max(1, removeByQuerySlices))
+                .setRequestsPerSecond(removeByQueryRequestsPerSecond > 0 ? removeByQueryRequestsPerSecond : Float.POSITIVE_INFINITY);
+        updateByQueryRequestBuilder.source().setTypes(itemType).setSize(removeByQueryBulkSize);
+
+        BulkIndexByScrollResponse response = updateByQueryRequestBuilder.get();
+        long failures = response.getBulkFailures().size() + response.getSearchFailures().size();
+        logger.info("Updated {} items of type {} in {} batches in {}ms ({} version conflicts, {} failures)", response.getUpdated(), itemType,
+                response.getBatches(), System.currentTimeMillis() - startTime, response.getVersionConflicts(), failures);
+        if (failures > 0 || response.getVersionConflicts() > 0) {
+            // items modified concurrently were skipped, callers should retry
+            logger.warn("Couldn't update all items matching query {}, bulk failures: {}, search failures: {}", query, response.getBulkFailures(), response.getSearchFailures());
+            return false;
+        }
+        return true;
+    }
 
-                        response = client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).execute().actionGet();
+    /**
+     * Builds the bulk request items for the hits retrieved by {@link #bulkByScroll(String, QueryBuilder, Condition, String, ScrollBulkAction)}.
+     */
+    private interface ScrollBulkAction {
+        void add(BulkRequestBuilder bulkRequestBuilder, SearchHit hit);
+    }
 
-                        // If we have no more hits, exit
-                        if (response.getHits().getHits().length == 0) {
-                            break;
-                        }
+    /**
+     * Processes matching items by scrolling on them (using parallel slices) and sending bulk requests as they are retrieved, so that memory stays
+     * bounded whatever the number of matching items. Used when the cluster doesn't support delete or update by query.
+     */
+    private boolean bulkByScroll(final String itemType, final QueryBuilder queryBuilder, final Condition query, final String operation,
+                                 final ScrollBulkAction bulkAction) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final int slices = Math.max(1, removeByQuerySlices);
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(slices);
+        try {
+            List<Future<Object>> futures = new ArrayList<>(slices);
+            for (int i = 0; i < slices; i++) {
+                final int sliceId = i;
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        bulkSliceByScroll(itemType, queryBuilder, sliceId, slices, operation, bulkAction, processed, failures);
+                        return null;
                     }
-                    client.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
-
-                    // we're done with the scrolling, delete now
-                    if (deleteByScope.numberOfActions() > 0) {
-                        final BulkResponse deleteResponse = deleteByScope.get();
-                        if (deleteResponse.hasFailures()) {
-                            // do something
-                            logger.debug("Couldn't remove by query " + query + ":\n{}", deleteResponse.buildFailureMessage());
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        logger.info("{} {} items of type {} in {}ms ({} failures)", operation, processed.get(), itemType, System.currentTimeMillis() - startTime, failures.get());
+        if (failures.get() > 0) {
+            logger.warn("Couldn't process {} items matching query {}", failures.get(), query);
+            return false;
+        }
+        return true;
+    }
+
+    private void bulkSliceByScroll(String itemType, QueryBuilder queryBuilder, int sliceId, int slices, String operation, ScrollBulkAction bulkAction,
+                                   AtomicLong processed, AtomicLong failures) throws InterruptedException {
+        final TimeValue keepAlive = TimeValue.timeValueMinutes(5);
+        SearchRequestBuilder searchRequestBuilder = client.prepareSearch(getIndexNameForQuery(itemType))
+                .setTypes(itemType)
+                .setScroll(keepAlive)
+                .setQuery(queryBuilder)
+                .setFetchSource(false)
+                .setSize(removeByQueryBulkSize);
+        if (slices > 1) {
+            searchRequestBuilder.slice(new SliceBuilder(sliceId, slices));
+        }
+        SearchResponse response = searchRequestBuilder.execute().actionGet();
+
+        try {
+            while (response.getHits().getHits().length > 0) {
+                long bulkStartTime = System.currentTimeMillis();
+                BulkRequestBuilder bulkRequestBuilder = client.prepareBulk();
+                for (SearchHit hit : response.getHits().getHits()) {
+                    bulkAction.add(bulkRequestBuilder, hit);
+                }
+                BulkResponse bulkResponse = bulkRequestBuilder.get();
+                long bulkFailures = 0;
+                if (bulkResponse.hasFailures()) {
+                    for (BulkItemResponse itemResponse : bulkResponse.getItems()) {
+                        if (itemResponse.isFailed()) {
+                            bulkFailures++;
                         }
                     }
-
-                    return true;
-                } catch (Exception e) {
-                    throw new Exception("Cannot remove by query", e);
+                    logger.warn("Failures while processing items of type {}: {}", itemType, bulkResponse.buildFailureMessage());
                 }
+                failures.addAndGet(bulkFailures);
+                long total = processed.addAndGet(bulkResponse.getItems().length - bulkFailures);
+                logger.debug("{} {} items of type {} so far", operation, total, itemType);
+
+                if (removeByQueryRequestsPerSecond > 0) {
+                    long minimalDuration = (long) (bulkResponse.getItems().length * 1000 / removeByQueryRequestsPerSecond);
+                    long waitTime = minimalDuration - (System.currentTimeMillis() - bulkStartTime);
+                    if (waitTime > 0) {
+                        Thread.sleep(waitTime);
+                    }
+                }
+
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).execute().actionGet();
             }
-        }.catchingExecuteInClassLoader(true);
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
+        }
     }
 
     public boolean createIndex(final String indexName) {
@@ -880,23 +1502,69 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    public boolean startBulkLoad(final String indexName) {
+        return new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) {
+                logger.info("Disabling refresh and replicas of index {} for bulk load", indexName);
+                client.admin().indices().prepareUpdateSettings(indexName)
+                        .setSettings(Settings.builder()
+                                .put("index.refresh_interval", "-1")
+                                .put("index." + NUMBER_OF_REPLICAS, 0)
+                                .build())
+                        .execute().actionGet();
+                return true;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    public boolean endBulkLoad(final String indexName) {
+        return new InClassLoaderExecute<Boolean>() {
+            protected Boolean execute(Object... args) throws Exception {
+                if (!awaitPendingBulks(BULK_LOAD_COMPLETION_TIMEOUT)) {
+                    logger.warn("Bulk requests still pending after {}ms, ending the bulk load of index {} anyway", BULK_LOAD_COMPLETION_TIMEOUT, indexName);
+                }
+                logger.info("Restoring refresh and replicas of index {} after bulk load", indexName);
+                client.admin().indices().prepareUpdateSettings(indexName)
+                        .setSettings(Settings.builder()
+                                .put("index.refresh_interval", "1s")
+                                .put("index." + NUMBER_OF_REPLICAS, Integer.parseInt(numberOfReplicas))
+                                .build())
+                        .execute().actionGet();
+                client.admin().indices().prepareRefresh(indexName).execute().actionGet();
+                long startTime = System.currentTimeMillis();
+                client.admin().indices().prepareForceMerge(indexName).setMaxNumSegments(1).execute().actionGet();
+                logger.info("Index {} merged in {}ms", indexName, System.currentTimeMillis() - startTime);
+                return true;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
+    /**
+     * Flushes the bulk processor and waits until all the bulk requests sent, and the items scheduled for a retry, are completed : flushing alone
+     * doesn't wait for the bulks being executed.
+     *
+     * @return {@code true} if no bulk request is pending anymore, {@code false} if the timeout elapsed
+     */
+    private boolean awaitPendingBulks(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            BulkProcessor currentBulkProcessor = bulkProcessor;
+            if (currentBulkProcessor != null) {
+                currentBulkProcessor.flush();
+            }
+            if (bulkController == null || (bulkController.getInFlightBytes() == 0 && bulkItemRetries.isEmpty())) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+    }
+
     private void internalCreateIndex(String indexName, Map<String,String> mappings) {
         CreateIndexRequestBuilder builder = client.admin().indices().prepareCreate(indexName)
-                .setSettings("{\n" +
-                        "    \"index\" : {\n" +
-                        "        \"number_of_shards\" : " + numberOfShards + ",\n" +
-                        "        \"number_of_replicas\" : " + numberOfReplicas + "\n" +
-                        "    },\n" +
-                        "    \"analysis\": {\n" +
-                        "      \"analyzer\": {\n" +
-                        "        \"folding\": {\n" +
-                        "          \"type\":\"custom\",\n" +
-                        "          \"tokenizer\": \"keyword\",\n" +
-                        "          \"filter\":  [ \"lowercase\", \"asciifolding\" ]\n" +
-                        "        }\n" +
-                        "      }\n" +
-                        "    }\n" +
-                        "}\n");
+                .setSettings(getIndexSettings(numberOfShards, numberOfReplicas));
 
         for (Map.Entry<String, String> entry : mappings.entrySet()) {
             builder.addMapping(entry.getKey(), entry.getValue());
@@ -907,6 +1575,24 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
     }
 
+    private String getIndexSettings(String numberOfShards, String numberOfReplicas) {
+        return "{\n" +
+                "    \"index\" : {\n" +
+                "        \"number_of_shards\" : " + numberOfShards + ",\n" +
+                "        \"number_of_replicas\" : " + numberOfReplicas + "\n" +
+                "    },\n" +
+                "    \"analysis\": {\n" +
+                "      \"analyzer\": {\n" +
+                "        \"folding\": {\n" +
+                "          \"type\":\"custom\",\n" +
+                "          \"tokenizer\": \"keyword\",\n" +
+                "          \"filter\":  [ \"lowercase\", \"asciifolding\" ]\n" +
+                "        }\n" +
+                "      }\n" +
+                "    }\n" +
+                "}\n";
+    }
+
 
     private void createMapping(final String type, final String source, final String indexName) {
         client.admin().indices()
@@ -923,6 +1609,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }
         if (itemsMonthlyIndexed.contains(type)) {
             createMapping(type, source, indexName + "-*");
+            putMonthlyIndexTemplate();
         } else if (indexNames.containsKey(type)) {
             if (client.admin().indices().prepareExists(indexNames.get(type)).execute().actionGet().isExists()) {
                 createMapping(type, source, indexNames.get(type));
@@ -1054,8 +1741,13 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
 
     @Override
     public boolean testMatch(Condition query, Item item) {
+        return testMatch(query, item, null);
+    }
+
+    @Override
+    public boolean testMatch(Condition query, Item item, ConditionMatches matches) {
         try {
-            return conditionEvaluatorDispatcher.eval(query, item);
+            return conditionEvaluatorDispatcher.eval(query, item, matches);
         } catch (UnsupportedOperationException e) {
             logger.error("Eval not supported, continue with query", e);
         }
@@ -1149,6 +1841,35 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    @Override
+    public List<Long> queryCountBatch(final List<Condition> queries, final String itemType) {
+        return new InClassLoaderExecute<List<Long>>() {
+
+            @Override
+            protected List<Long> execute(Object... args) throws Exception {
+                List<Long> counts = new ArrayList<Long>(queries.size());
+                if (queries.isEmpty()) {
+                    return counts;
+                }
+                MultiSearchRequestBuilder multiSearchRequestBuilder = client.prepareMultiSearch();
+                for (Condition query : queries) {
+                    multiSearchRequestBuilder.add(client.prepareSearch(getIndexNameForQuery(itemType))
+                            .setTypes(itemType)
+                            .setSize(0)
+                            .setQuery(conditionESQueryBuilderDispatcher.buildFilter(query)));
+                }
+                MultiSearchResponse multiSearchResponse = multiSearchRequestBuilder.execute().actionGet();
+                for (MultiSearchResponse.Item responseItem : multiSearchResponse.getResponses()) {
+                    if (responseItem.isFailure()) {
+                        throw new Exception("Error counting itemType=" + itemType + " in batch query: " + responseItem.getFailureMessage());
+                    }
+                    counts.add(responseItem.getResponse().getHits().getTotalHits());
+                }
+                return counts;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
     private <T extends Item> PartialList<T> query(final QueryBuilder query, final String sortBy, final Class<T> clazz, final int offset, final int size, final String[] routing, final String scrollTimeValidity) {
         return new InClassLoaderExecute<PartialList<T>>() {
 
@@ -1195,32 +1916,8 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                     if (routing != null) {
                         requestBuilder.setRouting(routing);
                     }
-                    if (sortBy != null) {
-                        String[] sortByArray = sortBy.split(",");
-                        for (String sortByElement : sortByArray) {
-                            if (sortByElement.startsWith("geo:")) {
-                                String[] elements = sortByElement.split(":");
-                                GeoDistanceSortBuilder distanceSortBuilder = SortBuilders.geoDistanceSort(elements[1], Double.parseDouble(elements[2]), Double.parseDouble(elements[3])).unit(DistanceUnit.KILOMETERS);
-                                if (elements.length > 4 && elements[4].equals("desc")) {
-                                    requestBuilder = requestBuilder.addSort(distanceSortBuilder.order(SortOrder.DESC));
-                                } else {
-                                    requestBuilder = requestBuilder.addSort(distanceSortBuilder.order(SortOrder.ASC));
-                                }
-                            } else {
-                                String name = getPropertyNameWithData(StringUtils.substringBeforeLast(sortByElement,":"), itemType);
-                                if (name != null) {
-                                    if (sortByElement.endsWith(":desc")) {
-                                        requestBuilder = requestBuilder.addSort(name, SortOrder.DESC);
-                                    } else {
-                                        requestBuilder = requestBuilder.addSort(name, SortOrder.ASC);
-                                    }
-                                } else {
-                                    // in the case of no data existing for the property, we will not add the sorting to the request.
-                                }
-
-                            }
-                        }
-                    }
+                    requestBuilder.setVersion(true);
+                    addSort(requestBuilder, sortBy, itemType);
                     SearchResponse response = requestBuilder
                             .execute()
                             .actionGet();
@@ -1233,6 +1930,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                                 String sourceAsString = searchHit.getSourceAsString();
                                 final T value = CustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
                                 value.setItemId(searchHit.getId());
+                                value.setVersion(searchHit.getVersion());
                                 results.add(value);
                             }
 
@@ -1252,6 +1950,7 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
                             String sourceAsString = searchHit.getSourceAsString();
                             final T value = CustomObjectMapper.getObjectMapper().readValue(sourceAsString, clazz);
                             value.setItemId(searchHit.getId());
+                            value.setVersion(searchHit.getVersion());
                             results.add(value);
                         }
                     }
@@ -1269,6 +1968,77 @@ public class ElasticSearchPersistenceServiceImpl implements PersistenceService,
         }.catchingExecuteInClassLoader(true);
     }
 
+    private void addSort(SearchRequestBuilder requestBuilder, String sortBy, String itemType) {
+        if (sortBy != null) {
+            String[] sortByArray = sortBy.split(",");
+            for (String sortByElement : sortByArray) {
+                if (sortByElement.startsWith("geo:")) {
+                    String[] elements = sortByElement.split(":");
+                    GeoDistanceSortBuilder distanceSortBuilder = SortBuilders.geoDistanceSort(elements[1], Double.parseDouble(elements[2]), Double.parseDouble(elements[3])).unit(DistanceUnit.KILOMETERS);
+                    if (elements.length > 4 && elements[4].equals("desc")) {
+                        requestBuilder.addSort(distanceSortBuilder.order(SortOrder.DESC));
+                    } else {
+                        requestBuilder.addSort(distanceSortBuilder.order(SortOrder.ASC));
+                    }
+                } else {
+                    String name = getPropertyNameWithData(StringUtils.substringBeforeLast(sortByElement,":"), itemType);
+                    if (name != null) {
+                        if (sortByElement.endsWith(":desc")) {
+                            requestBuilder.addSort(name, SortOrder.DESC);
+                        } else {
+                            requestBuilder.addSort(name, SortOrder.ASC);
+                        }
+                    } else {
+                        // in the case of no data existing for the property, we will not add the sorting to the request.
+                    }
+
+                }
+            }
+        }
+    }
+
+    @Override
+    public <T extends Item> List<PartialList<T>> queryBatch(final List<Condition> queries, final String sortBy, final Class<T> clazz, final int offset, final int size) {
+        return new InClassLoaderExecute<List<PartialList<T>>>() {
+
+            @Override
+            protected List<PartialList<T>> execute(Object... args) throws Exception {
+                List<PartialList<T>> results = new ArrayList<PartialList<T>>(queries.size());
+                if (queries.isEmpty()) {
+                    return results;
+                }
+                String itemType = getItemType(clazz);
+                int pageSize = size < 0 ? defaultQueryLimit : size;
+                MultiSearchRequestBuilder multiSearchRequestBuilder = client.prepareMultiSearch();
+                for (Condition query : queries) {
+                    SearchRequestBuilder requestBuilder = client.prepareSearch(getIndexNameForQuery(itemType))
+                            .setTypes(itemType)
+                            .setFetchSource(true)
+                            .setQuery(conditionESQueryBuilderDispatcher.getQueryBuilder(query))
+                            .setFrom(offset)
+                            .setSize(pageSize);
+                    addSort(requestBuilder, sortBy, itemType);
+                    multiSearchRequestBuilder.add(requestBuilder);
+                }
+                MultiSearchResponse multiSearchResponse = multiSearchRequestBuilder.execute().actionGet();
+                for (MultiSearchResponse.Item responseItem : multiSearchResponse.getResponses()) {
+                    if (responseItem.isFailure()) {
+                        throw new Exception("Error loading itemType=" + clazz.getName() + " in batch query: " + responseItem.getFailureMessage());
+                    }
+                    SearchHits searchHits = responseItem.getResponse().getHits();
+                    List<T> items = new ArrayList<T>();
+                    for (SearchHit searchHit : searchHits) {
+                        final T value = CustomObjectMapper.getObjectMapper().readValue(searchHit.getSourceAsString(), clazz);
+                        value.setItemId(searchHit.getId());
+                        items.add(value);
+                    }
+                    results.add(new PartialList<T>(items, offset, pageSize, searchHits.getTotalHits()));
+                }
+                return results;
+            }
+        }.catchingExecuteInClassLoader(true);
+    }
+
     @Override
     public <T extends Item> PartialList<T> continueScrollQuery(final Class<T> clazz, final String scrollIdentifier, final String scrollTimeValidity) {
         return new InClassLoaderExecute<PartialList<T>>() {
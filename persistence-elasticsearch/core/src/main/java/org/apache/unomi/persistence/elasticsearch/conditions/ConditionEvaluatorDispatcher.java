@@ -19,6 +19,7 @@ package org.apache.unomi.persistence.elasticsearch.conditions;
 
 import org.apache.unomi.api.Item;
 import org.apache.unomi.api.conditions.Condition;
+import org.apache.unomi.persistence.spi.ConditionMatches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +33,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ConditionEvaluatorDispatcher {
     private static final Logger logger = LoggerFactory.getLogger(ConditionEvaluatorDispatcher.class.getName());
 
+    private static final String MATCHES_CONTEXT_KEY = ConditionMatches.class.getName();
+
     private Map<String, ConditionEvaluator> evaluators = new ConcurrentHashMap<>();
 
     public void addEvaluator(String name, ConditionEvaluator evaluator) {
@@ -46,7 +49,39 @@ public class ConditionEvaluatorDispatcher {
         return eval(condition, item, new HashMap<String, Object>());
     }
 
+    /**
+     * Evaluates the specified condition, reusing and keeping the results of the context free shared conditions of its tree.
+     *
+     * @param condition the condition to evaluate
+     * @param item      the evaluated item
+     * @param matches   the results of the shared conditions already evaluated against this item, or {@code null}
+     * @return {@code true} if the item satisfies the condition, {@code false} otherwise
+     */
+    public boolean eval(Condition condition, Item item, ConditionMatches matches) {
+        Map<String, Object> context = new HashMap<String, Object>();
+        if (matches != null) {
+            context.put(MATCHES_CONTEXT_KEY, matches);
+        }
+        return eval(condition, item, context);
+    }
+
     public boolean eval(Condition condition, Item item, Map<String, Object> context) {
+        ConditionMatches matches = (ConditionMatches) context.get(MATCHES_CONTEXT_KEY);
+        if (matches != null && matches.isShared(condition)) {
+            Boolean match = matches.get(condition);
+            if (match == null) {
+                // evaluated in its own context, so that the result doesn't depend on the conditions evaluated before
+                Map<String, Object> sharedContext = new HashMap<String, Object>();
+                sharedContext.put(MATCHES_CONTEXT_KEY, matches);
+                match = evalCondition(condition, item, sharedContext);
+                matches.put(condition, match);
+            }
+            return match;
+        }
+        return evalCondition(condition, item, context);
+    }
+
+    private boolean evalCondition(Condition condition, Item item, Map<String, Object> context) {
         String conditionEvaluatorKey = condition.getConditionType().getConditionEvaluator();
         if (condition.getConditionType().getParentCondition() != null) {
             context.putAll(condition.getParameterValues());
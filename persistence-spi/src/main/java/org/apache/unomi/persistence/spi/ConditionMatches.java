@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.conditions.Condition;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The results of the context free {@link SharedConditions} already evaluated against an item, so that each distinct sub-condition is only
+ * evaluated once when many shared conditions are tested against the same item. Instances are used for a single item, by a single thread.
+ */
+public class ConditionMatches {
+
+    private final SharedConditions sharedConditions;
+    private Map<Condition, Boolean> matches;
+
+    public ConditionMatches(SharedConditions sharedConditions) {
+        this.sharedConditions = sharedConditions;
+    }
+
+    /**
+     * Checks whether the result of the specified condition can be kept.
+     *
+     * @param condition a condition
+     * @return {@code true} if the condition is a context free shared condition
+     */
+    public boolean isShared(Condition condition) {
+        return sharedConditions.isContextFree(condition);
+    }
+
+    /**
+     * Retrieves the result of the specified condition.
+     *
+     * @param condition a shared condition
+     * @return the result of the condition, or {@code null} if it was not evaluated yet
+     */
+    public Boolean get(Condition condition) {
+        return matches != null ? matches.get(condition) : null;
+    }
+
+    /**
+     * Keeps the result of the specified condition, if it is a context free shared condition.
+     *
+     * @param condition a condition
+     * @param match     the result of the condition
+     */
+    public void put(Condition condition, boolean match) {
+        if (isShared(condition)) {
+            if (matches == null) {
+                matches = new IdentityHashMap<>();
+            }
+            matches.put(condition, match);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.Item;
+
+/**
+ * Notified when an item saved with {@link PersistenceService#saveAsync(Item, boolean, ItemWriteListener)} has been written to, or rejected by, the
+ * persistence backend. Methods are called from the backend threads and should return quickly.
+ */
+public interface ItemWriteListener {
+
+    /**
+     * Called once the write of the specified item has been acknowledged.
+     *
+     * @param item the written item
+     */
+    void onSuccess(Item item);
+
+    /**
+     * Called if the specified item could not be written.
+     *
+     * @param item    the item that wasn't written
+     * @param failure the cause of the failure, a {@link PermanentWriteException} if writing the item again would fail again
+     */
+    void onFailure(Item item, Throwable failure);
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+/**
+ * The failure of a write rejected because of the item itself, such as a mapping or parsing error : writing the same item again will fail again.
+ * Other failures passed to {@link ItemWriteListener#onFailure(org.apache.unomi.api.Item, Throwable)}, such as an unavailable or overloaded backend,
+ * may succeed if retried later.
+ */
+public class PermanentWriteException extends RuntimeException {
+
+    private static final long serialVersionUID = -3507632911563240381L;
+
+    public PermanentWriteException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -78,6 +78,28 @@ public interface PersistenceService {
      */
     boolean save(Item item, boolean useBatching);
 
+    /**
+     * Persists the specified Item in the context server without waiting for the write to complete, either as part of the next bulk request or as a
+     * single asynchronous request.
+     *
+     * @param item        the item to persist
+     * @param useBatching whether to add the item to the next bulk request (if batching is available) or to send it right away
+     * @param listener    an optional listener notified once the write is acknowledged or failed
+     * @return {@code true} if the item was accepted for persistence, {@code false} otherwise
+     */
+    boolean saveAsync(Item item, boolean useBatching, ItemWriteListener listener);
+
+    /**
+     * Updates the specified Item with a partial document containing only its changed fields, which is merged into the persisted Item. The update is
+     * applied on the latest version of the persisted Item, and applied again if the Item was concurrently modified, so that concurrent partial updates
+     * don't overwrite each other. On success, the version of the specified Item is updated.
+     *
+     * @param item    the Item to update
+     * @param changes the changed fields, as field name - value pairs
+     * @return {@code true} if the update was successful, {@code false} otherwise, for example if the Item doesn't exist
+     */
+    boolean update(Item item, Map<String, Object> changes);
+
     /**
      * Updates the item of the specified class and identified by the specified identifier with new property values provided as name - value pairs in the specified Map.
      *
@@ -115,6 +137,20 @@ public interface PersistenceService {
      */
     boolean updateWithScript(String itemId, Date dateHint, Class<?> clazz, String script, Map<String, Object> scriptParams);
 
+    /**
+     * Updates the specified property on all the items with the specified Item subclass matching the specified {@link Condition}, without loading them.
+     * The items are updated in batches by the persistence backend, so that memory usage doesn't depend on the number of matching items. Items that are
+     * modified concurrently may be skipped, in which case {@code false} is returned and the update can safely be retried.
+     *
+     * @param <T>           the type of the Item subclass we want to update
+     * @param query         a {@link Condition} identifying which elements we want to update
+     * @param clazz         the {@link Item} subclass of the items we want to update
+     * @param propertyName  the name of the property to update
+     * @param propertyValue the new value of the property
+     * @return {@code true} if all the matching items were updated, {@code false} otherwise
+     */
+    <T extends Item> boolean updateByQuery(Condition query, Class<T> clazz, String propertyName, Object propertyValue);
+
     /**
      * Retrieves the item identified with the specified identifier and with the specified Item subclass if it exists.
      *
@@ -212,6 +248,17 @@ public interface PersistenceService {
      */
     boolean testMatch(Condition query, Item item);
 
+    /**
+     * Checks whether the specified item satisfies the provided condition, reusing and keeping the results of the context free shared
+     * sub-conditions already evaluated against this item.
+     *
+     * @param query   the condition we're testing the specified item against, usually a condition of a {@link SharedConditions}
+     * @param item    the item we're checking against the specified condition
+     * @param matches the results of the shared conditions already evaluated against this item, or {@code null}
+     * @return {@code true} if the item satisfies the condition, {@code false} otherwise
+     */
+    boolean testMatch(Condition query, Item item, ConditionMatches matches);
+
     /**
      * Same as {@code query(fieldName, fieldValue, sortBy, clazz, 0, -1).getList()}
      *
@@ -309,6 +356,25 @@ public interface PersistenceService {
      */
     <T extends Item> PartialList<T> query(Condition query, String sortBy, Class<T> clazz, int offset, int size);
 
+    /**
+     * Retrieves, in a single round trip to the persistence backend, the lists of items satisfying each of the specified {@link Condition}s, ordered according to the specified
+     * {@code sortBy} String and paged: only {@code size} of them are retrieved for each condition, starting with the {@code offset}-th one.
+     *
+     * @param <T>     the type of the Item subclass we want to retrieve
+     * @param queries the {@link Condition}s the items must satisfy to be retrieved, one list being retrieved for each of them
+     * @param sortBy  an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed, ordering
+     *                elements according to the property order in the
+     *                String, considering each in turn and moving on to the next one in case of equality of all preceding ones. Each property name is optionally followed by
+     *                a column ({@code :}) and an order specifier: {@code asc} or {@code desc}.
+     * @param clazz   the {@link Item} subclass of the items we want to retrieve
+     * @param offset  zero or a positive integer specifying the position of the first item in the total ordered collection of matching items
+     * @param size    a positive integer specifying how many matching items should be retrieved for each condition. Retrieving all matching items is not supported in
+     *                batches, a negative value will use the default query limit.
+     * @return a list of {@link PartialList}s of items matching each condition, in the same order as the specified conditions
+     * @see #query(Condition, String, Class, int, int)
+     */
+    <T extends Item> List<PartialList<T>> queryBatch(List<Condition> queries, String sortBy, Class<T> clazz, int offset, int size);
+
     /**
      * Retrieves a list of items satisfying the specified {@link Condition}, ordered according to the specified {@code sortBy} String and and paged: only {@code size} of them
      * are retrieved, starting with the {@code offset}-th one. If a scroll identifier and time validity are specified, they will be used to perform a scrolling query, meaning
@@ -370,6 +436,17 @@ public interface PersistenceService {
      */
     long queryCount(Condition query, String itemType);
 
+    /**
+     * Retrieves, in a single round trip to the persistence backend, the number of items of the specified type as defined by the Item subclass public field {@code ITEM_TYPE}
+     * matching each of the specified {@link Condition}s.
+     *
+     * @param queries  the conditions the items must satisfy, one count being computed for each of them
+     * @param itemType the String representation of the item type we want to retrieve the counts of, as defined by its class' {@code ITEM_TYPE} field
+     * @return a list of the number of items matching each condition, in the same order as the specified conditions
+     * @see #queryCount(Condition, String)
+     */
+    List<Long> queryCountBatch(List<Condition> queries, String itemType);
+
     /**
      * Retrieves the number of items with the specified type as defined by the Item subclass public field {@code ITEM_TYPE}.
      *
@@ -453,6 +530,24 @@ public interface PersistenceService {
      */
     boolean removeIndex(final String indexName);
 
+    /**
+     * Prepares the index with the specified name for a bulk load, disabling its periodic refresh and its replicas until {@link #endBulkLoad(String)}
+     * is called.
+     *
+     * @param indexName the index name
+     * @return {@code true} if the operation was successful, {@code false} otherwise
+     */
+    boolean startBulkLoad(final String indexName);
+
+    /**
+     * Ends a bulk load started with {@link #startBulkLoad(String)} : pending batched items are flushed, the refresh and replicas settings of the
+     * index are restored and its segments are merged.
+     *
+     * @param indexName the index name
+     * @return {@code true} if the operation was successful, {@code false} otherwise
+     */
+    boolean endBulkLoad(final String indexName);
+
     /**
      * Removes all data associated with the provided scope.
      *
@@ -18,16 +18,17 @@
 package org.apache.unomi.persistence.spi;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.JsonTokenId;
 import com.fasterxml.jackson.core.ObjectCodec;
-import com.fasterxml.jackson.core.TreeNode;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.deser.std.UntypedObjectDeserializer;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * This Jackson deserializer makes it possible to register field matching
@@ -53,23 +54,25 @@ public class PropertyTypedObjectDeserializer extends UntypedObjectDeserializer {
 
     private static final long serialVersionUID = -2561171359946902967L;
 
-    private Map<String, Class<? extends Object>> registry =
-            new LinkedHashMap<String, Class<? extends Object>>();
+    private static final String REGEX_CHARACTERS = "\\[](){}.*+?^$|";
 
-    private Map<String,Set<String>> fieldValuesToMatch = new LinkedHashMap<String,Set<String>>();
+    private Map<String, FieldMatcher> fieldMatchers = new HashMap<String, FieldMatcher>();
 
     public void registerMapping(String matchExpression,
                                 Class<? extends Object> mappedClass) {
-        registry.put(matchExpression, mappedClass);
         String[] fieldParts = matchExpression.split("=");
-        Set<String> valuesToMatch = fieldValuesToMatch.get(fieldParts[0]);
-        if (valuesToMatch == null) {
-            valuesToMatch = new LinkedHashSet<String>();
+        FieldMatcher fieldMatcher = fieldMatchers.get(fieldParts[0]);
+        if (fieldMatcher == null) {
+            fieldMatcher = new FieldMatcher();
+            fieldMatchers.put(fieldParts[0], fieldMatcher);
         }
-        valuesToMatch.add(fieldParts[1]);
-        fieldValuesToMatch.put(fieldParts[0], valuesToMatch);
+        fieldMatcher.add(fieldParts[1], mappedClass);
     }
 
+    /**
+     * Objects are read field by field without building a tree : as long as no field matches a registered expression, values are directly
+     * deserialized into a map. When a field matches, the object is buffered and bound to the mapped class.
+     */
     @Override
     public Object deserialize(
             JsonParser jp, DeserializationContext ctxt)
@@ -77,38 +80,94 @@ public class PropertyTypedObjectDeserializer extends UntypedObjectDeserializer {
         if (jp.getCurrentTokenId() != JsonTokenId.ID_START_OBJECT) {
             return super.deserialize(jp, ctxt);
         }
-        ObjectCodec codec = jp.getCodec();
-        TreeNode treeNode = codec.readTree(jp);
-        Class<? extends Object> objectClass = null;
-        if (treeNode instanceof ObjectNode) {
-            ObjectNode root = (ObjectNode) treeNode;
-            Iterator<Map.Entry<String, JsonNode>> elementsIterator =
-                    root.fields();
-            while (elementsIterator.hasNext()) {
-                Map.Entry<String, JsonNode> element = elementsIterator.next();
-                String name = element.getKey();
-                if (fieldValuesToMatch.containsKey(name)) {
-                    Set<String> valuesToMatch = fieldValuesToMatch.get(name);
-                    for (String valueToMatch : valuesToMatch) {
-                        if (element.getValue().asText().matches(valueToMatch)) {
-                            objectClass = registry.get(name + "=" + valueToMatch);
-                            break;
-                        }
-                    }
-                    if (objectClass != null) {
-                        break;
-                    }
+        Map<String, Object> values = new HashMap<String, Object>();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String name = jp.getCurrentName();
+            JsonToken valueToken = jp.nextToken();
+            FieldMatcher fieldMatcher = fieldMatchers.get(name);
+            if (fieldMatcher != null) {
+                Class<? extends Object> objectClass = fieldMatcher.match(valueToken.isScalarValue() ? jp.getText() : "");
+                if (objectClass != null) {
+                    return deserializeMappedObject(jp, values, name, objectClass);
                 }
             }
-            if (objectClass == null) {
-                objectClass = HashMap.class;
+            values.put(name, deserialize(jp, ctxt));
+        }
+        return values;
+    }
+
+    private Object deserializeMappedObject(JsonParser jp, Map<String, Object> previousValues, String matchedName,
+                                           Class<? extends Object> objectClass) throws IOException {
+        ObjectCodec codec = jp.getCodec();
+        TokenBuffer buffer = new TokenBuffer(codec, false);
+        buffer.writeStartObject();
+        // fields read before the matching one, usually none as type fields come first
+        for (Map.Entry<String, Object> previousValue : previousValues.entrySet()) {
+            buffer.writeFieldName(previousValue.getKey());
+            codec.writeValue(buffer, previousValue.getValue());
+        }
+        buffer.writeFieldName(matchedName);
+        buffer.copyCurrentStructure(jp);
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            buffer.copyCurrentStructure(jp);
+        }
+        buffer.writeEndObject();
+
+        JsonParser bufferParser = buffer.asParser(codec);
+        bufferParser.nextToken();
+        return codec.readValue(bufferParser, objectClass);
+    }
+
+    /**
+     * Matches the values of a field against the registered expressions, in registration order. Expressions without regular expression characters
+     * are looked up in a hash map, the other ones are compiled once.
+     */
+    private static class FieldMatcher implements Serializable {
+
+        private static final long serialVersionUID = 6093628245563171484L;
+
+        private List<String> expressions = new ArrayList<String>();
+        private List<Class<? extends Object>> classes = new ArrayList<Class<? extends Object>>();
+        private Map<String, Integer> literalRanks = new HashMap<String, Integer>();
+        private List<Pattern> patterns = new ArrayList<Pattern>();
+        private List<Integer> patternRanks = new ArrayList<Integer>();
+
+        void add(String expression, Class<? extends Object> mappedClass) {
+            int rank = expressions.indexOf(expression);
+            if (rank >= 0) {
+                classes.set(rank, mappedClass);
+                return;
+            }
+            rank = expressions.size();
+            expressions.add(expression);
+            classes.add(mappedClass);
+            if (isLiteral(expression)) {
+                literalRanks.put(expression, rank);
+            } else {
+                patterns.add(Pattern.compile(expression));
+                patternRanks.add(rank);
             }
-        } else {
+        }
 
+        Class<? extends Object> match(String value) {
+            Integer literalRank = literalRanks.get(value);
+            int rank = literalRank != null ? literalRank : Integer.MAX_VALUE;
+            for (int i = 0; i < patterns.size() && patternRanks.get(i) < rank; i++) {
+                if (patterns.get(i).matcher(value).matches()) {
+                    rank = patternRanks.get(i);
+                    break;
+                }
+            }
+            return rank != Integer.MAX_VALUE ? classes.get(rank) : null;
         }
-        if (objectClass == null) {
-            return super.deserialize(codec.treeAsTokens(treeNode), ctxt);
+
+        private static boolean isLiteral(String expression) {
+            for (int i = 0; i < expression.length(); i++) {
+                if (REGEX_CHARACTERS.indexOf(expression.charAt(i)) >= 0) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return codec.treeToValue(treeNode, objectClass);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.persistence.spi;
+
+import org.apache.unomi.api.conditions.Condition;
+
+import java.util.*;
+
+/**
+ * A set of canonical conditions : identical conditions and sub-conditions of the shared condition trees are replaced by a single instance, so
+ * that the condition trees of many rules or segments form a DAG. The result of a shared condition that doesn't depend on the evaluation context
+ * (no {@code parameter::} or {@code script::} references in its tree) can be kept in {@link ConditionMatches} and reused while the same item is
+ * evaluated.
+ * <p>
+ * Instances are filled by a single thread and are read only once published.
+ */
+public class SharedConditions {
+
+    private final Map<Condition, Condition> canonicalConditions = new HashMap<>();
+    private final Set<Condition> contextFreeConditions = Collections.newSetFromMap(new IdentityHashMap<Condition, Boolean>());
+
+    /**
+     * Retrieves the canonical instance of the specified condition, creating it and the canonical instances of its sub-conditions if needed. The
+     * specified condition is not modified.
+     *
+     * @param condition the condition to share, with its condition types resolved
+     * @return the canonical condition, or the specified condition if it cannot be shared
+     */
+    public Condition share(Condition condition) {
+        if (condition == null || condition.getConditionTypeId() == null || condition.getConditionType() == null) {
+            return condition;
+        }
+        boolean[] contextFree = {true};
+        @SuppressWarnings("unchecked")
+        Map<String, Object> parameterValues = (Map<String, Object>) shareValue(condition.getParameterValues(), contextFree);
+        Condition sharedCondition = new Condition(condition.getConditionType());
+        sharedCondition.setParameterValues(parameterValues);
+        Condition canonicalCondition = canonicalConditions.get(sharedCondition);
+        if (canonicalCondition == null) {
+            canonicalCondition = sharedCondition;
+            canonicalConditions.put(canonicalCondition, canonicalCondition);
+            if (contextFree[0]) {
+                contextFreeConditions.add(canonicalCondition);
+            }
+        }
+        return canonicalCondition;
+    }
+
+    /**
+     * Checks whether the result of the specified condition only depends on the evaluated item.
+     *
+     * @param condition a condition
+     * @return {@code true} if the condition is a canonical condition of this set that doesn't depend on the evaluation context
+     */
+    public boolean isContextFree(Condition condition) {
+        return contextFreeConditions.contains(condition);
+    }
+
+    /**
+     * Retrieves the number of distinct conditions and sub-conditions in this set.
+     *
+     * @return the number of canonical conditions
+     */
+    public int size() {
+        return canonicalConditions.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object shareValue(Object value, boolean[] contextFree) {
+        if (value instanceof Condition) {
+            Condition condition = share((Condition) value);
+            if (!contextFreeConditions.contains(condition)) {
+                contextFree[0] = false;
+            }
+            return condition;
+        } else if (value instanceof Map) {
+            Map<Object, Object> values = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                values.put(entry.getKey(), shareValue(entry.getValue(), contextFree));
+            }
+            return values;
+        } else if (value instanceof List) {
+            List<Object> values = new ArrayList<>(((List<Object>) value).size());
+            for (Object o : (List<Object>) value) {
+                values.add(shareValue(o, contextFree));
+            }
+            return values;
+        } else if (value instanceof String && (((String) value).startsWith("parameter::") || ((String) value).startsWith("script::"))) {
+            contextFree[0] = false;
+        }
+        return value;
+    }
+}
@@ -40,6 +40,10 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class MergeProfilesOnPropertyAction implements ActionExecutor {
 
@@ -59,6 +63,12 @@ public class MergeProfilesOnPropertyAction implements ActionExecutor {
 
     private PrivacyService privacyService;
 
+    private boolean compactMergedProfiles = false;
+    private int reassignmentMaxRetries = 5;
+    private long reassignmentRetryDelay = 1000L;
+
+    private ScheduledExecutorService reassignmentExecutor;
+
     public void setCookieAgeInSeconds(int cookieAgeInSeconds) {
         this.cookieAgeInSeconds = cookieAgeInSeconds;
     }
@@ -99,6 +109,52 @@ public class MergeProfilesOnPropertyAction implements ActionExecutor {
         this.definitionsService = definitionsService;
     }
 
+    /**
+     * Sets whether the sessions and events of merged profiles are reassigned to the master profile in the background. Merged profiles are recorded as
+     * aliases of their master profile so this is not required, but it keeps queries by profile simple for profiles with a long merge history.
+     * Sessions and events are always reassigned when the master profile requires anonymous browsing.
+     *
+     * @param compactMergedProfiles {@code true} to reassign sessions and events of merged profiles
+     */
+    public void setCompactMergedProfiles(boolean compactMergedProfiles) {
+        this.compactMergedProfiles = compactMergedProfiles;
+    }
+
+    /**
+     * Sets how many times the reassignment of the sessions and events of a merged profile is retried when it fails.
+     *
+     * @param reassignmentMaxRetries the maximum number of retries
+     */
+    public void setReassignmentMaxRetries(int reassignmentMaxRetries) {
+        this.reassignmentMaxRetries = reassignmentMaxRetries;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry of a failed reassignment, doubled for each following retry.
+     *
+     * @param reassignmentRetryDelay the initial retry delay in milliseconds
+     */
+    public void setReassignmentRetryDelay(long reassignmentRetryDelay) {
+        this.reassignmentRetryDelay = reassignmentRetryDelay;
+    }
+
+    public void postConstruct() {
+        reassignmentExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unomi-merge-reassignment");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void preDestroy() {
+        if (reassignmentExecutor != null) {
+            reassignmentExecutor.shutdown();
+        }
+    }
+
     public int execute(Action action, Event event) {
 
         Profile profile = event.getProfile();
@@ -212,22 +268,16 @@ public class MergeProfilesOnPropertyAction implements ActionExecutor {
                             for (Profile profile : profiles) {
                                 String profileId = profile.getItemId();
                                 if (!StringUtils.equals(profileId, masterProfileId)) {
-                                    List<Session> sessions = persistenceService.query("profileId", profileId, null, Session.class);
-                                    if (masterProfileId.equals(profileId) && !sessions.contains(currentSession)) {
-                                        sessions.add(currentSession);
-                                    }
-                                    for (Session session : sessions) {
-                                        persistenceService.update(session.getItemId(), session.getTimeStamp(), Session.class, "profileId", anonymousBrowsing ? null : masterProfileId);
-                                    }
-
-                                    List<Event> events = persistenceService.query("profileId", profileId, null, Event.class);
-                                    for (Event event : events) {
-                                        persistenceService.update(event.getItemId(), event.getTimeStamp(), Event.class, "profileId", anonymousBrowsing ? null : masterProfileId);
-                                    }
                                     // we must mark all the profiles that we merged into the master as merged with the master, and they will
                                     // be deleted upon next load
                                     profile.setMergedWith(masterProfileId);
                                     persistenceService.update(profile.getItemId(), null, Profile.class, "mergedWith", masterProfileId);
+                                    // past sessions and events keep their profile id, queries on the master profile include its aliases
+                                    profileService.addProfileAlias(profileId, masterProfileId);
+                                    if (anonymousBrowsing || compactMergedProfiles) {
+                                        // the current session is saved with the request
+                                        scheduleReassignment(profileId, anonymousBrowsing ? null : masterProfileId, 0);
+                                    }
                                 }
                             }
                         } catch (Exception e) {
@@ -244,6 +294,40 @@ public class MergeProfilesOnPropertyAction implements ActionExecutor {
         }
     }
 
+    private void scheduleReassignment(final String profileId, final String newProfileId, final int attempt) {
+        long delay = attempt == 0 ? 0 : reassignmentRetryDelay << Math.min(attempt - 1, 16);
+        reassignmentExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    success = reassign(profileId, newProfileId);
+                } catch (Exception e) {
+                    logger.warn("Error while reassigning sessions and events of profile " + profileId, e);
+                }
+                if (!success) {
+                    if (attempt < reassignmentMaxRetries) {
+                        logger.info("Reassignment of sessions and events of profile {} to {} failed, retrying (attempt {})", profileId, newProfileId, attempt + 1);
+                        scheduleReassignment(profileId, newProfileId, attempt + 1);
+                    } else {
+                        logger.error("Couldn't reassign sessions and events of profile {} to {} after {} retries", profileId, newProfileId, attempt);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean reassign(String profileId, String newProfileId) {
+        Condition profileIdCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
+        profileIdCondition.setParameter("comparisonOperator", "equals");
+        profileIdCondition.setParameter("propertyName", "profileId");
+        profileIdCondition.setParameter("propertyValue", profileId);
+
+        boolean sessionsUpdated = persistenceService.updateByQuery(profileIdCondition, Session.class, "profileId", newProfileId);
+        boolean eventsUpdated = persistenceService.updateByQuery(profileIdCondition, Event.class, "profileId", newProfileId);
+        return sessionsUpdated && eventsUpdated;
+    }
+
     public void sendProfileCookie(Profile profile, ServletResponse response) {
         if (response instanceof HttpServletResponse) {
             HttpServletResponse httpServletResponse = (HttpServletResponse) response;
@@ -23,21 +23,30 @@ import org.apache.unomi.api.actions.ActionExecutor;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.persistence.spi.PersistenceService;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class SetEventOccurenceCountAction implements ActionExecutor {
     private DefinitionsService definitionsService;
 
     private PersistenceService persistenceService;
 
+    private ProfileService profileService;
+
     public void setDefinitionsService(DefinitionsService definitionsService) {
         this.definitionsService = definitionsService;
     }
 
+    public void setProfileService(ProfileService profileService) {
+        this.profileService = profileService;
+    }
+
     public void setPersistenceService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
     }
@@ -56,8 +65,17 @@ public class SetEventOccurenceCountAction implements ActionExecutor {
 
         Condition c = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
         c.setParameter("propertyName","profileId");
-        c.setParameter("comparisonOperator", "equals");
-        c.setParameter("propertyValue",event.getProfileId());
+        // events of merged profiles keep their original profile id
+        Set<String> aliases = profileService.getProfileAliases(event.getProfileId());
+        if (aliases.isEmpty()) {
+            c.setParameter("comparisonOperator", "equals");
+            c.setParameter("propertyValue",event.getProfileId());
+        } else {
+            List<String> profileIds = new ArrayList<String>(aliases);
+            profileIds.add(event.getProfileId());
+            c.setParameter("comparisonOperator", "in");
+            c.setParameter("propertyValues", profileIds);
+        }
         conditions.add(c);
 
         if (pastEventCondition.getParameter("numberOfDays") != null) {
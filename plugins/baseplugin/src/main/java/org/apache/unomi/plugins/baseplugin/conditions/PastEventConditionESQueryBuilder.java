@@ -21,6 +21,7 @@ import org.apache.unomi.api.Event;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilder;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionESQueryBuilderDispatcher;
@@ -34,6 +35,7 @@ import java.util.*;
 public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder {
     private DefinitionsService definitionsService;
     private PersistenceService persistenceService;
+    private ProfileService profileService;
 
     public void setDefinitionsService(DefinitionsService definitionsService) {
         this.definitionsService = definitionsService;
@@ -43,6 +45,10 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
         this.persistenceService = persistenceService;
     }
 
+    public void setProfileService(ProfileService profileService) {
+        this.profileService = profileService;
+    }
+
     public QueryBuilder buildQuery(Condition condition, Map<String, Object> context, ConditionESQueryBuilderDispatcher dispatcher) {
         Condition eventCondition;
         try {
@@ -77,11 +83,23 @@ public class PastEventConditionESQueryBuilder implements ConditionESQueryBuilder
 
         Map<String, Long> eventCountByProfile = persistenceService.aggregateQuery(andCondition, new TermsAggregate("profileId"), Event.ITEM_TYPE);
         if (eventCountByProfile != null) {
-            for (Map.Entry<String, Long> entry : eventCountByProfile.entrySet()) {
-                if (!entry.getKey().startsWith("_")) {
-                    if (entry.getValue() >= minimumEventCount && entry.getValue() <= maximumEventCount) {
-                        ids.add(entry.getKey());
-                    }
+            // events of merged profiles keep their original profile id, count them for the profile they were merged into
+            Set<String> profileIds = new HashSet<String>();
+            for (String profileId : eventCountByProfile.keySet()) {
+                if (!profileId.startsWith("_")) {
+                    profileIds.add(profileId);
+                }
+            }
+            Map<String, String> masterProfileIds = profileService.resolveProfileIds(profileIds);
+            Map<String, Long> eventCountByMasterProfile = new HashMap<String, Long>();
+            for (String profileId : profileIds) {
+                String masterProfileId = masterProfileIds.get(profileId);
+                Long count = eventCountByMasterProfile.get(masterProfileId);
+                eventCountByMasterProfile.put(masterProfileId, (count != null ? count : 0L) + eventCountByProfile.get(profileId));
+            }
+            for (Map.Entry<String, Long> entry : eventCountByMasterProfile.entrySet()) {
+                if (entry.getValue() >= minimumEventCount && entry.getValue() <= maximumEventCount) {
+                    ids.add(entry.getKey());
                 }
             }
         }
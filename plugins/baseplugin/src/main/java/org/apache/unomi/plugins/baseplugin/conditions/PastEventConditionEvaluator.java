@@ -22,6 +22,7 @@ import org.apache.unomi.api.Item;
 import org.apache.unomi.api.Profile;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.api.services.ProfileService;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionContextHelper;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluator;
 import org.apache.unomi.persistence.elasticsearch.conditions.ConditionEvaluatorDispatcher;
@@ -30,6 +31,7 @@ import org.apache.unomi.persistence.spi.PersistenceService;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PastEventConditionEvaluator implements ConditionEvaluator {
 
@@ -37,6 +39,8 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
 
     private DefinitionsService definitionsService;
 
+    private ProfileService profileService;
+
     public void setPersistenceService(PersistenceService persistenceService) {
         this.persistenceService = persistenceService;
     }
@@ -45,6 +49,10 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
         this.definitionsService = definitionsService;
     }
 
+    public void setProfileService(ProfileService profileService) {
+        this.profileService = profileService;
+    }
+
     @Override
     public boolean eval(Condition condition, Item item, Map<String, Object> context, ConditionEvaluatorDispatcher dispatcher) {
 
@@ -81,8 +89,17 @@ public class PastEventConditionEvaluator implements ConditionEvaluator {
             Condition profileCondition = new Condition();
             profileCondition.setConditionType(definitionsService.getConditionType("sessionPropertyCondition"));
             profileCondition.setParameter("propertyName", "profileId");
-            profileCondition.setParameter("comparisonOperator", "equals");
-            profileCondition.setParameter("propertyValue", item.getItemId());
+            // events of merged profiles keep their original profile id
+            Set<String> aliases = profileService.getProfileAliases(item.getItemId());
+            if (aliases.isEmpty()) {
+                profileCondition.setParameter("comparisonOperator", "equals");
+                profileCondition.setParameter("propertyValue", item.getItemId());
+            } else {
+                List<String> profileIds = new ArrayList<String>(aliases);
+                profileIds.add(item.getItemId());
+                profileCondition.setParameter("comparisonOperator", "in");
+                profileCondition.setParameter("propertyValues", profileIds);
+            }
             l.add(profileCondition);
 
             Integer numberOfDays = (Integer) condition.getParameter("numberOfDays");
@@ -17,6 +17,7 @@
 
 package org.apache.unomi.plugins.request.actions;
 
+import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
 import com.maxmind.geoip2.model.CityResponse;
@@ -36,15 +37,32 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class SetRemoteHostInfoAction implements ActionExecutor {
     public static final Pattern IPV4 = Pattern.compile("[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}");
     private static final Logger logger = LoggerFactory.getLogger(SetRemoteHostInfoAction.class.getName());
+    private static final long STATISTICS_LOG_INTERVAL = 10000;
+
     private DatabaseReader databaseReader;
     private String pathToGeoLocationDatabase;
+    private boolean memoryMappedDatabase = true;
+
+    private int userAgentCacheSize = 10000;
+    private int ipCacheSize = 50000;
+    private boolean ipCacheBySubnet = false;
+
+    private LruCache<Map<String, String>> userAgentCache;
+    private LruCache<Map<String, Object>> ipCache;
+    private final AtomicLong userAgentCacheHits = new AtomicLong();
+    private final AtomicLong userAgentCacheMisses = new AtomicLong();
+    private final AtomicLong ipCacheHits = new AtomicLong();
+    private final AtomicLong ipCacheMisses = new AtomicLong();
 
     private String defaultSessionCountryCode = "CH";
     private String defaultSessionCountryName = "Switzerland";
@@ -59,6 +77,51 @@ public class SetRemoteHostInfoAction implements ActionExecutor {
         this.pathToGeoLocationDatabase = pathToGeoLocationDatabase;
     }
 
+    /**
+     * Sets whether the IP database is memory mapped (the default) or fully loaded in the heap.
+     *
+     * @param memoryMappedDatabase {@code true} to memory map the database file, {@code false} to load it in memory
+     */
+    public void setMemoryMappedDatabase(boolean memoryMappedDatabase) {
+        this.memoryMappedDatabase = memoryMappedDatabase;
+    }
+
+    /**
+     * Sets the maximum number of parsed User-Agent headers kept in memory, 0 disables the cache.
+     *
+     * @param userAgentCacheSize the maximum number of cached User-Agent headers
+     */
+    public void setUserAgentCacheSize(int userAgentCacheSize) {
+        this.userAgentCacheSize = userAgentCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of IP lookups kept in memory, 0 disables the cache.
+     *
+     * @param ipCacheSize the maximum number of cached IP lookups
+     */
+    public void setIpCacheSize(int ipCacheSize) {
+        this.ipCacheSize = ipCacheSize;
+    }
+
+    /**
+     * Sets whether IP lookups are cached by /24 subnet instead of by address. This greatly improves the hit ratio, at the cost of resolving all the
+     * addresses of a subnet to the location of the first address looked up.
+     *
+     * @param ipCacheBySubnet {@code true} to cache the lookups by /24 subnet
+     */
+    public void setIpCacheBySubnet(boolean ipCacheBySubnet) {
+        this.ipCacheBySubnet = ipCacheBySubnet;
+    }
+
+    public double getUserAgentCacheHitRatio() {
+        return getHitRatio(userAgentCacheHits.get(), userAgentCacheMisses.get());
+    }
+
+    public double getIpCacheHitRatio() {
+        return getHitRatio(ipCacheHits.get(), ipCacheMisses.get());
+    }
+
     public void setDefaultSessionCountryCode(String defaultSessionCountryCode) {
         this.defaultSessionCountryCode = defaultSessionCountryCode;
     }
@@ -137,18 +200,38 @@ public class SetRemoteHostInfoAction implements ActionExecutor {
             logger.error("Cannot lookup IP", e);
         }
 
-        UserAgentStringParser parser = UADetectorServiceFactory.getResourceModuleParser();
-        ReadableUserAgent agent = parser.parse(httpServletRequest.getHeader("User-Agent"));
-        session.setProperty("operatingSystemFamily", agent.getOperatingSystem().getFamilyName());
-        session.setProperty("operatingSystemName", agent.getOperatingSystem().getName());
-        session.setProperty("userAgentName", agent.getName());
-        session.setProperty("userAgentVersion", agent.getVersionNumber().toVersionString());
-        session.setProperty("userAgentNameAndVersion", session.getProperty("userAgentName") + "@@" + session.getProperty("userAgentVersion"));
-        session.setProperty("deviceCategory", agent.getDeviceCategory().getName());
+        for (Map.Entry<String, String> entry : getUserAgentProperties(httpServletRequest.getHeader("User-Agent")).entrySet()) {
+            session.setProperty(entry.getKey(), entry.getValue());
+        }
 
         return EventService.SESSION_UPDATED;
     }
 
+    private Map<String, String> getUserAgentProperties(String userAgent) {
+        String key = userAgent != null ? userAgent : "";
+        Map<String, String> properties = userAgentCache != null ? userAgentCache.get(key) : null;
+        if (properties != null) {
+            userAgentCacheHits.incrementAndGet();
+            return properties;
+        }
+        logStatistics(userAgentCacheMisses.incrementAndGet());
+
+        UserAgentStringParser parser = UADetectorServiceFactory.getResourceModuleParser();
+        ReadableUserAgent agent = parser.parse(userAgent);
+        properties = new LinkedHashMap<>();
+        properties.put("operatingSystemFamily", agent.getOperatingSystem().getFamilyName());
+        properties.put("operatingSystemName", agent.getOperatingSystem().getName());
+        properties.put("userAgentName", agent.getName());
+        properties.put("userAgentVersion", agent.getVersionNumber().toVersionString());
+        properties.put("userAgentNameAndVersion", agent.getName() + "@@" + agent.getVersionNumber().toVersionString());
+        properties.put("deviceCategory", agent.getDeviceCategory().getName());
+        properties = Collections.unmodifiableMap(properties);
+        if (userAgentCache != null) {
+            userAgentCache.put(key, properties);
+        }
+        return properties;
+    }
+
     private boolean ipLookup(String remoteAddr, Session session) {
         if (databaseReader != null) {
             return ipLookupInDatabase(remoteAddr, session);
@@ -158,6 +241,9 @@ public class SetRemoteHostInfoAction implements ActionExecutor {
 
     @PostConstruct
     public void postConstruct() {
+        userAgentCache = createCache(userAgentCacheSize);
+        ipCache = createCache(ipCacheSize);
+
         // A File object pointing to your GeoIP2 or GeoLite2 database
         if (pathToGeoLocationDatabase == null) {
             return;
@@ -170,7 +256,9 @@ public class SetRemoteHostInfoAction implements ActionExecutor {
         // This creates the DatabaseReader object, which should be reused across
         // lookups.
         try {
-            this.databaseReader = new DatabaseReader.Builder(database).build();
+            this.databaseReader = new DatabaseReader.Builder(database)
+                    .fileMode(memoryMappedDatabase ? Reader.FileMode.MEMORY_MAPPED : Reader.FileMode.MEMORY)
+                    .build();
         } catch (IOException e) {
             logger.error("Cannot read IP database", e);
         }
@@ -182,42 +270,143 @@ public class SetRemoteHostInfoAction implements ActionExecutor {
             return false;
         }
 
+        String key = ipCacheBySubnet && remoteAddr.lastIndexOf('.') > 0 ? remoteAddr.substring(0, remoteAddr.lastIndexOf('.')) : remoteAddr;
+        Map<String, Object> properties = ipCache != null ? ipCache.get(key) : null;
+        if (properties != null) {
+            ipCacheHits.incrementAndGet();
+        } else {
+            logStatistics(ipCacheMisses.incrementAndGet());
+            properties = lookupInDatabase(remoteAddr);
+            if (ipCache != null) {
+                // failed lookups are cached as well, as an empty map
+                ipCache.put(key, properties);
+            }
+        }
+        if (properties.isEmpty()) {
+            return false;
+        }
+
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                // don't share the cached location between sessions
+                value = new HashMap<>((Map<?, ?>) value);
+            }
+            session.setProperty(entry.getKey(), value);
+        }
+        return true;
+    }
+
+    private Map<String, Object> lookupInDatabase(String remoteAddr) {
+        Map<String, Object> properties = new LinkedHashMap<>();
+
         // Replace "city" with the appropriate method for your database, e.g.,
         // "country".
         CityResponse cityResponse = null;
+        InetAddress address;
         try {
-            cityResponse = databaseReader.city(InetAddress.getByName(remoteAddr));
+            address = InetAddress.getByName(remoteAddr);
+            cityResponse = databaseReader.city(address);
 
             if (cityResponse.getCountry().getName() != null) {
-                session.setProperty("sessionCountryCode", cityResponse.getCountry().getIsoCode());
-                session.setProperty("sessionCountryName", cityResponse.getCountry().getName());
+                properties.put("sessionCountryCode", cityResponse.getCountry().getIsoCode());
+                properties.put("sessionCountryName", cityResponse.getCountry().getName());
             }
             if (cityResponse.getCity().getName() != null) {
-                session.setProperty("sessionCity", cityResponse.getCity().getName());
-                session.setProperty("sessionCityId", cityResponse.getCity().getGeoNameId());
+                properties.put("sessionCity", cityResponse.getCity().getName());
+                properties.put("sessionCityId", cityResponse.getCity().getGeoNameId());
             }
 
             if (cityResponse.getSubdivisions().size() > 0) {
-                session.setProperty("sessionAdminSubDiv1", cityResponse.getSubdivisions().get(0).getGeoNameId());
+                properties.put("sessionAdminSubDiv1", cityResponse.getSubdivisions().get(0).getGeoNameId());
             }
             if (cityResponse.getSubdivisions().size() > 1) {
-                session.setProperty("sessionAdminSubDiv2", cityResponse.getSubdivisions().get(1).getGeoNameId());
-            }
-            String isp = databaseReader.isp(InetAddress.getByName(remoteAddr)).getIsp();
-            if (isp != null) {
-                session.setProperty("sessionIsp", isp);
+                properties.put("sessionAdminSubDiv2", cityResponse.getSubdivisions().get(1).getGeoNameId());
             }
-
-            Map<String, Double> locationMap = new HashMap<String, Double>();
             if (cityResponse.getLocation().getLatitude() != null && cityResponse.getLocation().getLongitude() != null) {
+                Map<String, Double> locationMap = new HashMap<String, Double>();
                 locationMap.put("lat", cityResponse.getLocation().getLatitude());
                 locationMap.put("lon", cityResponse.getLocation().getLongitude());
-                session.setProperty("location", locationMap);
+                properties.put("location", Collections.unmodifiableMap(locationMap));
             }
-            return true;
         } catch (IOException | GeoIp2Exception e) {
             logger.debug("Cannot resolve IP", e);
+            return Collections.emptyMap();
+        }
+
+        // the ISP is optional, not finding it (or using a database without ISP data) must not discard the location
+        try {
+            String isp = databaseReader.isp(address).getIsp();
+            if (isp != null) {
+                properties.put("sessionIsp", isp);
+            }
+        } catch (IOException | GeoIp2Exception | UnsupportedOperationException e) {
+            logger.debug("Cannot resolve ISP of IP", e);
+        }
+        return Collections.unmodifiableMap(properties);
+    }
+
+    private void logStatistics(long misses) {
+        if (misses % STATISTICS_LOG_INTERVAL == 0 && logger.isDebugEnabled()) {
+            logger.debug("User-Agent cache hit ratio: {}, IP cache hit ratio: {}", getUserAgentCacheHitRatio(), getIpCacheHitRatio());
+        }
+    }
+
+    private static double getHitRatio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Creates a cache that evicts its least recently used entries once it holds more than the specified number of entries, or {@code null} if the
+     * cache is disabled.
+     */
+    private static <V> LruCache<V> createCache(int maxSize) {
+        return maxSize > 0 ? new LruCache<V>(maxSize) : null;
+    }
+
+    /**
+     * A cache split in segments, each one being an access ordered map evicting its least recently used entry once it holds more than its share of
+     * the maximum size : a lookup only locks the segment of its key, so that concurrent requests don't all contend on a single lock. The eviction is
+     * therefore approximate, an entry is evicted according to its segment only.
+     */
+    private static class LruCache<V> {
+        private static final int SEGMENTS = 16;
+
+        private final Map<String, V>[] segments;
+
+        @SuppressWarnings("unchecked")
+        LruCache(int maxSize) {
+            int segmentCount = Math.min(SEGMENTS, maxSize);
+            final int segmentMaxSize = (maxSize + segmentCount - 1) / segmentCount;
+            segments = new Map[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new LinkedHashMap<String, V>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                        return size() > segmentMaxSize;
+                    }
+                };
+            }
+        }
+
+        V get(String key) {
+            Map<String, V> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.get(key);
+            }
+        }
+
+        void put(String key, V value) {
+            Map<String, V> segment = segmentFor(key);
+            synchronized (segment) {
+                segment.put(key, value);
+            }
+        }
+
+        private Map<String, V> segmentFor(String key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return segments[(h & 0x7fffffff) % segments.length];
         }
-        return false;
     }
 }
@@ -30,6 +30,8 @@ import javax.jws.WebMethod;
 import javax.jws.WebService;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -133,4 +135,16 @@ public class GoalsServiceEndPoint {
     public GoalReport getGoalReport(@PathParam("goalID") String goalId, AggregateQuery query) {
         return goalsService.getGoalReport(goalId, query);
     }
+
+    /**
+     * Retrieves the reports for the goals identified with the specified identifiers, the underlying counts being retrieved in a single batch.
+     *
+     * @param goalIds the identifiers of the goals which reports we want to retrieve
+     * @return a Map associating the identifier of each existing goal with its report
+     */
+    @POST
+    @Path("/reports")
+    public Map<String, GoalReport> getGoalReports(List<String> goalIds) {
+        return goalsService.getGoalReports(goalIds);
+    }
 }
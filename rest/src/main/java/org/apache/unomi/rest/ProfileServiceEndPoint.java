@@ -389,6 +389,37 @@ public class ProfileServiceEndPoint {
         return profileService.saveSession(session);
     }
 
+    /**
+     * Starts rewriting the persisted sessions in the background, so that they only store the profile fields configured for sessions instead of a full
+     * copy of their profile. The progress can be retrieved with a GET on the same path.
+     *
+     * @return a 202 response if the migration was started, a 409 response if sessions are configured to embed their profile or if a migration is
+     * already running
+     */
+    @POST
+    @Path("/sessions/migrateProfiles")
+    public Response migrateSessionProfiles() {
+        if (profileService.startSessionProfilesMigration()) {
+            return Response.accepted(getSessionProfilesMigrationStatus()).build();
+        }
+        return Response.status(Response.Status.CONFLICT).entity(getSessionProfilesMigrationStatus()).build();
+    }
+
+    /**
+     * Retrieves the progress of the migration of the session profiles.
+     *
+     * @return whether the migration is {@code running}, and the number of {@code migratedSessions} by the running or last migration (-1 if none was
+     * started)
+     */
+    @GET
+    @Path("/sessions/migrateProfiles")
+    public Map<String, Object> getSessionProfilesMigrationStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", profileService.isSessionProfilesMigrationRunning());
+        status.put("migratedSessions", profileService.getMigratedSessionProfilesCount());
+        return status;
+    }
+
     /**
      * Retrieves {@link Event}s for the {@link Session} identified by the provided session identifier, matching any of the provided event types,
      * ordered according to the specified {@code sortBy} String and paged: only {@code size} of them are retrieved, starting with the {@code offset}-th one.
@@ -33,6 +33,7 @@ import javax.jws.WebService;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A JAX-RS endpoint to manage {@link Segment}s.
@@ -90,6 +91,33 @@ public class SegmentServiceEndPoint {
         return segmentService.getMatchingIndividualsCount(segmentId);
     }
 
+    /**
+     * Retrieves the number of profiles matching each of the segments identified by the specified identifiers, in a single round trip to the persistence backend.
+     *
+     * @param segmentIds the identifiers of the segments for which we want to retrieve the number of matching profiles
+     * @return a Map associating each specified segment identifier to the number of profiles matching it
+     */
+    @POST
+    @Path("/count")
+    public Map<String, Long> getMatchingIndividualsCounts(List<String> segmentIds) {
+        return segmentService.getMatchingIndividualsCounts(segmentIds);
+    }
+
+    /**
+     * Retrieves the profiles matching each of the segments identified by the specified identifiers, in a single round trip to the persistence backend.
+     *
+     * @param segmentIds the identifiers of the segments for which we want to retrieve matching profiles
+     * @param offset     zero or a positive integer specifying the position of the first element in the total ordered collection of matching elements
+     * @param size       a positive integer specifying how many matching elements should be retrieved for each segment
+     * @param sortBy     an optional ({@code null} if no sorting is required) String of comma ({@code ,}) separated property names on which ordering should be performed
+     * @return a Map associating each specified segment identifier to a {@link PartialList} of profiles matching it
+     */
+    @POST
+    @Path("/match")
+    public Map<String, PartialList<Profile>> getMatchingIndividuals(List<String> segmentIds, @QueryParam("offset") @DefaultValue("0") int offset, @QueryParam("size") @DefaultValue("50") int size, @QueryParam("sort") String sortBy) {
+        return segmentService.getMatchingIndividuals(segmentIds, offset, size, sortBy);
+    }
+
     /**
      * Determines whether the specified profile is part of the segment identified by the specified identifier.
      *
@@ -17,6 +17,7 @@
 
 package org.apache.unomi.services.actions;
 
+import org.apache.commons.beanutils.NestedNullException;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Event;
@@ -31,8 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ActionExecutorDispatcher {
@@ -41,57 +41,100 @@ public class ActionExecutorDispatcher {
     private final Map<String, Serializable> mvelExpressions = new ConcurrentHashMap<>();
     private final Map<String, ValueExtractor> valueExtractors = new HashMap<>(11);
     private Map<String, ActionExecutor> executors = new ConcurrentHashMap<>();
+    // actions don't override equals, so this is an identity map, entries are released with the rules owning the actions
+    private final Map<Action, ActionTemplate> actionTemplates = Collections.synchronizedMap(new WeakHashMap<Action, ActionTemplate>());
 
     public ActionExecutorDispatcher() {
         valueExtractors.put("profileProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event.getProfile(), "properties." + valueAsString);
+            public CompiledValueExtractor compile(String valueAsString) {
+                final PropertyPath path = new PropertyPath(valueAsString);
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+                        return path.getValue(event.getProfile().getProperties(), event.getProfile(), "properties.");
+                    }
+                };
             }
         });
         valueExtractors.put("simpleProfileProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return event.getProfile().getProperty(valueAsString);
+            public CompiledValueExtractor compile(final String valueAsString) {
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) {
+                        return event.getProfile().getProperty(valueAsString);
+                    }
+                };
             }
         });
         valueExtractors.put("sessionProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event.getSession(), "properties." + valueAsString);
+            public CompiledValueExtractor compile(String valueAsString) {
+                final PropertyPath path = new PropertyPath(valueAsString);
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+                        return path.getValue(event.getSession().getProperties(), event.getSession(), "properties.");
+                    }
+                };
             }
         });
         valueExtractors.put("simpleSessionProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return event.getSession().getProperty(valueAsString);
+            public CompiledValueExtractor compile(final String valueAsString) {
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) {
+                        return event.getSession().getProperty(valueAsString);
+                    }
+                };
             }
         });
         valueExtractors.put("eventProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return PropertyUtils.getProperty(event, valueAsString);
+            public CompiledValueExtractor compile(String valueAsString) {
+                final PropertyPath path = new PropertyPath(valueAsString);
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+                        return path.getValue(event, event, "");
+                    }
+                };
             }
         });
         valueExtractors.put("simpleEventProperty", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                return event.getProperty(valueAsString);
+            public CompiledValueExtractor compile(final String valueAsString) {
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) {
+                        return event.getProperty(valueAsString);
+                    }
+                };
             }
         });
         valueExtractors.put("script", new ValueExtractor() {
             @Override
-            public Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-                if (!mvelExpressions.containsKey(valueAsString)) {
+            public CompiledValueExtractor compile(String valueAsString) {
+                Serializable compiledExpression = mvelExpressions.get(valueAsString);
+                if (compiledExpression == null) {
                     ParserConfiguration parserConfiguration = new ParserConfiguration();
                     parserConfiguration.setClassLoader(getClass().getClassLoader());
-                    mvelExpressions.put(valueAsString, MVEL.compileExpression(valueAsString, new ParserContext(parserConfiguration)));
+                    compiledExpression = MVEL.compileExpression(valueAsString, new ParserContext(parserConfiguration));
+                    mvelExpressions.put(valueAsString, compiledExpression);
                 }
-                Map<String, Object> ctx = new HashMap<>();
-                ctx.put("event", event);
-                ctx.put("session", event.getSession());
-                ctx.put("profile", event.getProfile());
-                return MVEL.executeExpression(mvelExpressions.get(valueAsString), ctx);
+                final Serializable expression = compiledExpression;
+                return new CompiledValueExtractor() {
+                    @Override
+                    public Object extract(Event event) {
+                        Map<String, Object> ctx = new HashMap<>(4);
+                        ctx.put("event", event);
+                        ctx.put("session", event.getSession());
+                        ctx.put("profile", event.getProfile());
+                        return MVEL.executeExpression(expression, ctx);
+                    }
+                };
             }
         });
     }
@@ -105,62 +148,75 @@ public class ActionExecutorDispatcher {
     }
 
     public Action getContextualAction(Action action, Event event) {
-        if (!hasContextualParameter(action.getParameterValues())) {
+        ActionTemplate template = getActionTemplate(action);
+        if (template.parameters == null) {
             return action;
         }
 
-        Map<String, Object> values = parseMap(event, action.getParameterValues());
+        Map<String, Object> values;
+        try {
+            values = template.parameters.fill(event);
+        } catch (UnsupportedOperationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(e);
+        }
         Action n = new Action(action.getActionType());
         n.setParameterValues(values);
         return n;
     }
 
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> parseMap(Event event, Map<String, Object> map) {
-        Map<String, Object> values = new HashMap<>();
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            Object value = entry.getValue();
-            if (value instanceof String) {
-                String s = (String) value;
-                try {
-                    // check if we have special values
-                    if (s.contains(VALUE_NAME_SEPARATOR)) {
-                        final String valueType = StringUtils.substringBefore(s, VALUE_NAME_SEPARATOR);
-                        final String valueAsString = StringUtils.substringAfter(s, VALUE_NAME_SEPARATOR);
-                        final ValueExtractor extractor = valueExtractors.get(valueType);
-                        if (extractor != null) {
-                            value = extractor.extract(valueAsString, event);
-                        }
-                    }
-                } catch (UnsupportedOperationException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new UnsupportedOperationException(e);
-                }
-            } else if (value instanceof Map) {
-                value = parseMap(event, (Map<String, Object>) value);
+    /**
+     * Retrieves the template compiled from the parameters of the specified action, compiling it on first use or if the parameters were replaced since.
+     */
+    private ActionTemplate getActionTemplate(Action action) {
+        ActionTemplate template = actionTemplates.get(action);
+        if (template == null || template.parameterValues != action.getParameterValues()) {
+            MapTemplate parameters;
+            try {
+                parameters = compileMap(action.getParameterValues());
+            } catch (UnsupportedOperationException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new UnsupportedOperationException(e);
             }
-            values.put(entry.getKey(), value);
+            template = new ActionTemplate(action.getParameterValues(), parameters);
+            actionTemplates.put(action, template);
         }
-        return values;
+        return template;
     }
 
+    /**
+     * Compiles the specified parameters, returning {@code null} if none of them (including nested maps) is contextual.
+     */
     @SuppressWarnings("unchecked")
-    private boolean hasContextualParameter(Map<String, Object> values) {
-        for (Map.Entry<String, Object> entry : values.entrySet()) {
+    private MapTemplate compileMap(Map<String, Object> map) {
+        List<String> keys = new ArrayList<>(map.size());
+        List<Object> constants = new ArrayList<>(map.size());
+        List<Object> slots = new ArrayList<>(map.size());
+        boolean contextual = false;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
             Object value = entry.getValue();
+            Object slot = null;
             if (value instanceof String) {
                 String s = (String) value;
-                if (s.contains(VALUE_NAME_SEPARATOR) && valueExtractors.containsKey(StringUtils.substringBefore(s, VALUE_NAME_SEPARATOR))) {
-                    return true;
+                // check if we have special values
+                if (s.contains(VALUE_NAME_SEPARATOR)) {
+                    final ValueExtractor extractor = valueExtractors.get(StringUtils.substringBefore(s, VALUE_NAME_SEPARATOR));
+                    if (extractor != null) {
+                        slot = extractor.compile(StringUtils.substringAfter(s, VALUE_NAME_SEPARATOR));
+                    }
                 }
             } else if (value instanceof Map) {
-                if (hasContextualParameter((Map<String, Object>) value)) {
-                    return true;
-                }
+                // nested maps that only hold constants are shared as well
+                slot = compileMap((Map<String, Object>) value);
             }
+            contextual |= slot != null;
+            keys.add(entry.getKey());
+            constants.add(value);
+            slots.add(slot);
         }
-        return false;
+        return contextual ? new MapTemplate(keys, constants, slots) : null;
     }
 
     public int execute(Action action, Event event) {
@@ -177,7 +233,92 @@ public class ActionExecutorDispatcher {
     }
 
     private interface ValueExtractor {
-        Object extract(String valueAsString, Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException;
+        CompiledValueExtractor compile(String valueAsString);
+    }
+
+    private interface CompiledValueExtractor {
+        Object extract(Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException;
+    }
+
+    private static class ActionTemplate {
+        private final Map<String, Object> parameterValues;
+        private final MapTemplate parameters;
+
+        ActionTemplate(Map<String, Object> parameterValues, MapTemplate parameters) {
+            this.parameterValues = parameterValues;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * The compiled parameters of an action : constant values are shared between executions, contextual values and nested maps are slots filled for each
+     * event.
+     */
+    private static class MapTemplate {
+        private final String[] keys;
+        private final Object[] constants;
+        private final Object[] slots;
+
+        MapTemplate(List<String> keys, List<Object> constants, List<Object> slots) {
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.constants = constants.toArray();
+            this.slots = slots.toArray();
+        }
+
+        Map<String, Object> fill(Event event) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+            Map<String, Object> values = new HashMap<>((int) (keys.length / 0.75f) + 1);
+            for (int i = 0; i < keys.length; i++) {
+                Object slot = slots[i];
+                Object value;
+                if (slot instanceof CompiledValueExtractor) {
+                    value = ((CompiledValueExtractor) slot).extract(event);
+                } else if (slot instanceof MapTemplate) {
+                    value = ((MapTemplate) slot).fill(event);
+                } else {
+                    value = constants[i];
+                }
+                values.put(keys[i], value);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * A pre-split property path. Map values are looked up directly, other beans go through commons-beanutils, with the same results and errors as
+     * {@link PropertyUtils#getProperty(Object, String)} on the full path.
+     */
+    private static class PropertyPath {
+        private final String path;
+        private final String[] segments;
+
+        PropertyPath(String path) {
+            this.path = path;
+            // indexed and mapped properties are left to commons-beanutils
+            this.segments = StringUtils.containsAny(path, "[]()") ? null : StringUtils.splitPreserveAllTokens(path, '.');
+        }
+
+        /**
+         * @param root       the value to resolve the path from
+         * @param bean       the bean the full path is relative to, used when the path cannot be resolved directly
+         * @param rootPrefix the path of the root value within the bean
+         */
+        Object getValue(Object root, Object bean, String rootPrefix) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+            if (segments == null) {
+                return PropertyUtils.getProperty(bean, rootPrefix + path);
+            }
+            Object value = root;
+            for (int i = 0; i < segments.length; i++) {
+                if (value == null) {
+                    throw new NestedNullException("Null property value for '" + rootPrefix + StringUtils.join(segments, '.', 0, i) + "' on bean class '" + bean.getClass() + "'");
+                }
+                if (value instanceof Map) {
+                    value = ((Map<?, ?>) value).get(segments[i]);
+                } else {
+                    value = PropertyUtils.getSimpleProperty(value, segments[i]);
+                }
+            }
+            return value;
+        }
     }
 
 }
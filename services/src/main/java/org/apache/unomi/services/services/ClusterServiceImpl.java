@@ -24,48 +24,50 @@ import org.apache.karaf.cellar.core.control.SwitchStatus;
 import org.apache.karaf.cellar.core.event.EventProducer;
 import org.apache.karaf.cellar.core.event.EventType;
 import org.apache.unomi.api.ClusterNode;
+import org.apache.unomi.api.Event;
 import org.apache.unomi.api.services.ClusterService;
+import org.apache.unomi.api.services.EventListenerService;
+import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.management.*;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
-import java.io.IOException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Serializable;
 import java.lang.management.ManagementFactory;
-import java.lang.management.OperatingSystemMXBean;
-import java.lang.management.RuntimeMXBean;
-import java.net.MalformedURLException;
+import java.lang.management.MemoryUsage;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the persistence service interface
  */
-public class ClusterServiceImpl implements ClusterService {
+public class ClusterServiceImpl implements ClusterService, EventListenerService {
 
     private static final Logger logger = LoggerFactory.getLogger(ClusterServiceImpl.class.getName());
 
     public static final String KARAF_CELLAR_CLUSTER_NODE_CONFIGURATION = "org.apache.unomi.nodes";
     public static final String KARAF_CLUSTER_CONFIGURATION_PUBLIC_ENDPOINTS = "publicEndpoints";
     public static final String KARAF_CLUSTER_CONFIGURATION_SECURE_ENDPOINTS = "secureEndpoints";
+    public static final String KARAF_CELLAR_CLUSTER_NODE_STATISTICS = "org.apache.unomi.nodes.statistics";
 
     private ClusterManager karafCellarClusterManager;
     private EventProducer karafCellarEventProducer;
     private GroupManager karafCellarGroupManager;
     private String karafCellarGroupName = Configurations.DEFAULT_GROUP_NAME;
     private ConfigurationAdmin osgiConfigurationAdmin;
-    private String karafJMXUsername = "karaf";
-    private String karafJMXPassword = "karaf";
-    private int karafJMXPort = 1099;
     private String address;
     private String port;
     private String secureAddress;
     private String securePort;
 
-    private Map<String,JMXConnector> jmxConnectors = new LinkedHashMap<>();
+    private long nodeStatisticsUpdateFrequency = 10000;
+    private Timer nodeStatisticsTimer;
+    private final AtomicLong eventCount = new AtomicLong();
+    private long lastEventCount = 0;
+    private long lastStatisticsUpdate = System.currentTimeMillis();
 
     PersistenceService persistenceService;
 
@@ -93,16 +95,8 @@ public class ClusterServiceImpl implements ClusterService {
         this.osgiConfigurationAdmin = osgiConfigurationAdmin;
     }
 
-    public void setKarafJMXUsername(String karafJMXUsername) {
-        this.karafJMXUsername = karafJMXUsername;
-    }
-
-    public void setKarafJMXPassword(String karafJMXPassword) {
-        this.karafJMXPassword = karafJMXPassword;
-    }
-
-    public void setKarafJMXPort(int karafJMXPort) {
-        this.karafJMXPort = karafJMXPort;
+    public void setNodeStatisticsUpdateFrequency(long nodeStatisticsUpdateFrequency) {
+        this.nodeStatisticsUpdateFrequency = nodeStatisticsUpdateFrequency;
     }
 
     public void setAddress(String address) {
@@ -167,22 +161,82 @@ public class ClusterServiceImpl implements ClusterService {
                 karafCellarEventProducer.produce(clusterConfigurationEvent);
             }
         }
+
+        if (karafCellarClusterManager != null) {
+            nodeStatisticsTimer = new Timer("unomi-node-statistics", true);
+            nodeStatisticsTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        updateNodeStatistics();
+                    } catch (Throwable t) {
+                        logger.error("Error updating node statistics", t);
+                    }
+                }
+            }, 0, nodeStatisticsUpdateFrequency);
+        }
         logger.info("Cluster service initialized.");
     }
 
     public void destroy() {
-        for (Map.Entry<String,JMXConnector> jmxConnectorEntry : jmxConnectors.entrySet()) {
-            String url = jmxConnectorEntry.getKey();
-            JMXConnector jmxConnector = jmxConnectorEntry.getValue();
+        if (nodeStatisticsTimer != null) {
+            nodeStatisticsTimer.cancel();
+            nodeStatisticsTimer = null;
+        }
+        if (karafCellarClusterManager != null) {
             try {
-                jmxConnector.close();
-            } catch (IOException e) {
-                logger.error("Error closing JMX connector for url {}", url, e);
+                karafCellarClusterManager.getMap(KARAF_CELLAR_CLUSTER_NODE_STATISTICS).remove(karafCellarClusterManager.getNode().getId());
+            } catch (Exception e) {
+                logger.warn("Error removing node statistics from the cluster", e);
             }
         }
         logger.info("Cluster service shutdown.");
     }
 
+    /**
+     * Publishes a snapshot of the statistics of this node in the cluster map, from which {@link #getClusterNodes()} reads the statistics of all nodes.
+     */
+    private void updateNodeStatistics() {
+        long now = System.currentTimeMillis();
+        long currentEventCount = eventCount.get();
+        double eventsPerSecond = now > lastStatisticsUpdate ? (currentEventCount - lastEventCount) * 1000.0 / (now - lastStatisticsUpdate) : 0;
+        lastEventCount = currentEventCount;
+        lastStatisticsUpdate = now;
+
+        Map<String, Serializable> nodeStatistics = new HashMap<>();
+        nodeStatistics.put("uptime", ManagementFactory.getRuntimeMXBean().getUptime());
+        nodeStatistics.put("loadAverage", new double[] { ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage() });
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            Object systemCpuLoad = mBeanServer.getAttribute(new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME), "SystemCpuLoad");
+            if (systemCpuLoad instanceof Double) {
+                nodeStatistics.put("cpuLoad", (Double) systemCpuLoad);
+            }
+        } catch (Exception e) {
+            logger.debug("System CPU load is not available", e);
+        }
+        MemoryUsage heapMemoryUsage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        nodeStatistics.put("heapUsed", heapMemoryUsage.getUsed());
+        nodeStatistics.put("heapMax", heapMemoryUsage.getMax());
+        nodeStatistics.put("eventCount", currentEventCount);
+        nodeStatistics.put("eventsPerSecond", eventsPerSecond);
+        nodeStatistics.put("lastUpdate", now);
+
+        Map<String, Map<String, Serializable>> clusterNodeStatistics = karafCellarClusterManager.getMap(KARAF_CELLAR_CLUSTER_NODE_STATISTICS);
+        clusterNodeStatistics.put(karafCellarClusterManager.getNode().getId(), nodeStatistics);
+    }
+
+    @Override
+    public boolean canHandle(Event event) {
+        return true;
+    }
+
+    @Override
+    public int onEvent(Event event) {
+        eventCount.incrementAndGet();
+        return EventService.NO_CHANGE;
+    }
+
     @Override
     public List<ClusterNode> getClusterNodes() {
         Map<String, ClusterNode> clusterNodes = new LinkedHashMap<String, ClusterNode>();
@@ -191,6 +245,7 @@ public class ClusterServiceImpl implements ClusterService {
         org.apache.karaf.cellar.core.Node thisKarafNode = karafCellarClusterManager.getNode();
         Map<String, Properties> clusterConfigurations = karafCellarClusterManager.getMap(Constants.CONFIGURATION_MAP + Configurations.SEPARATOR + karafCellarGroupName);
         Properties karafCellarClusterNodeConfiguration = clusterConfigurations.get(KARAF_CELLAR_CLUSTER_NODE_CONFIGURATION);
+        Map<String, Map<String, Serializable>> clusterNodeStatistics = karafCellarClusterManager.getMap(KARAF_CELLAR_CLUSTER_NODE_STATISTICS);
         Map<String, String> publicNodeEndpoints = new TreeMap<>();
         Map<String, String> secureNodeEndpoints = new TreeMap<>();
         if (karafCellarClusterNodeConfiguration != null) {
@@ -213,37 +268,9 @@ public class ClusterServiceImpl implements ClusterService {
                 clusterNode.setMaster(false);
                 clusterNode.setData(false);
             }
-            try {
-                String serviceUrl = "service:jmx:rmi:///jndi/rmi://"+karafCellarNode.getHost() + ":"+karafJMXPort+"/karaf-root";
-                JMXConnector jmxConnector = getJMXConnector(serviceUrl);
-                MBeanServerConnection mbsc = jmxConnector.getMBeanServerConnection();
-                final RuntimeMXBean remoteRuntime = ManagementFactory.newPlatformMXBeanProxy(mbsc, ManagementFactory.RUNTIME_MXBEAN_NAME, RuntimeMXBean.class);
-                clusterNode.setUptime(remoteRuntime.getUptime());
-                ObjectName operatingSystemMXBeanName = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
-                Double systemCpuLoad = null;
-                try {
-                    systemCpuLoad = (Double) mbsc.getAttribute(operatingSystemMXBeanName, "SystemCpuLoad");
-                } catch (MBeanException e) {
-                    logger.error("Error retrieving system CPU load", e);
-                } catch (AttributeNotFoundException e) {
-                    logger.error("Error retrieving system CPU load", e);
-                }
-                final OperatingSystemMXBean remoteOperatingSystemMXBean = ManagementFactory.newPlatformMXBeanProxy(mbsc, ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, OperatingSystemMXBean.class);
-                clusterNode.setLoadAverage(new double[] { remoteOperatingSystemMXBean.getSystemLoadAverage()});
-                if (systemCpuLoad != null) {
-                    clusterNode.setCpuLoad(systemCpuLoad);
-                }
-
-            } catch (MalformedURLException e) {
-                logger.error("Error connecting to remote JMX server", e);
-            } catch (IOException e) {
-                logger.error("Error retrieving remote JMX data", e);
-            } catch (MalformedObjectNameException e) {
-                logger.error("Error retrieving remote JMX data", e);
-            } catch (InstanceNotFoundException e) {
-                logger.error("Error retrieving remote JMX data", e);
-            } catch (ReflectionException e) {
-                logger.error("Error retrieving remote JMX data", e);
+            Map<String, Serializable> nodeStatistics = clusterNodeStatistics.get(karafCellarNode.getId());
+            if (nodeStatistics != null) {
+                setNodeStatistics(clusterNode, nodeStatistics);
             }
             clusterNodes.put(karafCellarNode.getId(), clusterNode);
         }
@@ -278,36 +305,31 @@ public class ClusterServiceImpl implements ClusterService {
         return support.isAllowed(group, category, pid, type);
     }
 
-    private JMXConnector getJMXConnector(String url) throws IOException {
-        if (jmxConnectors.containsKey(url)) {
-            JMXConnector jmxConnector = jmxConnectors.get(url);
-            try {
-                jmxConnector.getMBeanServerConnection();
-                return jmxConnector;
-            } catch (IOException e) {
-                jmxConnectors.remove(url);
-                try {
-                    jmxConnector.close();
-                } catch (IOException e1) {
-                    logger.error("Error closing invalid JMX connection", e1);
-                }
-                if (e.getMessage() != null && e.getMessage().contains("Connection closed")) {
-                    logger.warn("JMX connection to url {} was closed (Cause:{}). Reconnecting...", url, e.getMessage());
-                } else {
-                    logger.error("Error using the JMX connection to url {}, closed and will reconnect", url, e);
-                }
-            }
+    private void setNodeStatistics(ClusterNode clusterNode, Map<String, Serializable> nodeStatistics) {
+        if (nodeStatistics.get("uptime") instanceof Long) {
+            clusterNode.setUptime((Long) nodeStatistics.get("uptime"));
+        }
+        if (nodeStatistics.get("loadAverage") instanceof double[]) {
+            clusterNode.setLoadAverage((double[]) nodeStatistics.get("loadAverage"));
+        }
+        if (nodeStatistics.get("cpuLoad") instanceof Double) {
+            clusterNode.setCpuLoad((Double) nodeStatistics.get("cpuLoad"));
+        }
+        if (nodeStatistics.get("heapUsed") instanceof Long) {
+            clusterNode.setHeapUsed((Long) nodeStatistics.get("heapUsed"));
+        }
+        if (nodeStatistics.get("heapMax") instanceof Long) {
+            clusterNode.setHeapMax((Long) nodeStatistics.get("heapMax"));
+        }
+        if (nodeStatistics.get("eventCount") instanceof Long) {
+            clusterNode.setEventCount((Long) nodeStatistics.get("eventCount"));
+        }
+        if (nodeStatistics.get("eventsPerSecond") instanceof Double) {
+            clusterNode.setEventsPerSecond((Double) nodeStatistics.get("eventsPerSecond"));
         }
-        // if we reach this point either we didn't have a connector or it didn't validate
-        // now let's connect to remote JMX service to retrieve information from the runtime and operating system MX beans
-        JMXServiceURL jmxServiceURL = new JMXServiceURL(url);
-        Map<String,Object> environment=new HashMap<String,Object>();
-        if (karafJMXUsername != null && karafJMXPassword != null) {
-            environment.put(JMXConnector.CREDENTIALS,new String[]{karafJMXUsername,karafJMXPassword});
+        if (nodeStatistics.get("lastUpdate") instanceof Long) {
+            clusterNode.setLastUpdate((Long) nodeStatistics.get("lastUpdate"));
         }
-        JMXConnector jmxConnector = JMXConnectorFactory.connect(jmxServiceURL, environment);
-        jmxConnectors.put(url, jmxConnector);
-        return jmxConnector;
     }
 
     private Map<String,String> getMapProperty(Properties properties, String propertyName, String defaultValue) {
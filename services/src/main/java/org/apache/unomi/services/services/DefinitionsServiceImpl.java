@@ -37,13 +37,24 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBundleListener {
 
     private static final Logger logger = LoggerFactory.getLogger(DefinitionsServiceImpl.class.getName());
 
+    private static final int MAX_EXTRACTED_CONDITIONS = 10000;
+    // types created on other nodes are only found once the persistence service is queried again
+    private static final long MISSING_TYPE_TTL = 10000L;
+    private static final Condition NO_CONDITION = new Condition();
+
     private PersistenceService persistenceService;
 
+    // the maps below are only modified while holding the definitions lock, readers use the published snapshot
+    private final Object definitionsLock = new Object();
+    private volatile DefinitionsSnapshot snapshot = new DefinitionsSnapshot(0);
+
     private Map<String, Tag> tags = new HashMap<>();
     private Set<Tag> rootTags = new LinkedHashSet<>();
     private Map<String, ConditionType> conditionTypeById = new HashMap<>();
@@ -69,13 +80,16 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
 
-        processBundleStartup(bundleContext);
+        synchronized (definitionsLock) {
+            processBundleStartup(bundleContext);
 
-        // process already started bundles
-        for (Bundle bundle : bundleContext.getBundles()) {
-            if (bundle.getBundleContext() != null) {
-                processBundleStartup(bundle.getBundleContext());
+            // process already started bundles
+            for (Bundle bundle : bundleContext.getBundles()) {
+                if (bundle.getBundleContext() != null) {
+                    processBundleStartup(bundle.getBundleContext());
+                }
             }
+            publishSnapshot();
         }
 
         bundleContext.addBundleListener(this);
@@ -169,7 +183,8 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
 
             try {
                 ConditionType conditionType = CustomObjectMapper.getObjectMapper().readValue(predefinedConditionURL, ConditionType.class);
-                setConditionType(conditionType);
+                conditionTypeById.put(conditionType.getMetadata().getId(), conditionType);
+                persistenceService.save(conditionType);
             } catch (IOException e) {
                 logger.error("Error while loading condition definition " + predefinedConditionURL, e);
             }
@@ -188,7 +203,8 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
 
             try {
                 ActionType actionType = CustomObjectMapper.getObjectMapper().readValue(predefinedActionURL, ActionType.class);
-                setActionType(actionType);
+                actionTypeById.put(actionType.getMetadata().getId(), actionType);
+                persistenceService.save(actionType);
             } catch (Exception e) {
                 logger.error("Error while loading action definition " + predefinedActionURL, e);
             }
@@ -234,23 +250,25 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public Set<Tag> getAllTags() {
-        return new HashSet<Tag>(tags.values());
+        return new HashSet<Tag>(snapshot.tags.values());
     }
 
     public Set<Tag> getRootTags() {
-        return rootTags;
+        return snapshot.rootTags;
     }
 
     public Tag getTag(String tagId) {
-        Tag completeTag = tags.get(tagId);
-        return completeTag;
+        return snapshot.tags.get(tagId);
     }
 
     public void addTag(Tag tag) {
         tag.setPluginId(bundleContext.getBundle().getBundleId());
-        tags.put(tag.getId(), tag);
-        // now let's resolve all the children.
-        resolveTagsChildren();
+        synchronized (definitionsLock) {
+            tags.put(tag.getId(), tag);
+            // now let's resolve all the children.
+            resolveTagsChildren();
+            publishSnapshot();
+        }
     }
 
     public Map<Long, List<PluginType>> getTypesByPlugin() {
@@ -286,24 +304,45 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public ConditionType getConditionType(String id) {
-        ConditionType type = conditionTypeById.get(id);
+        DefinitionsSnapshot currentSnapshot = snapshot;
+        ConditionType type = currentSnapshot.conditionTypeById.get(id);
         if (type == null) {
+            if (id == null || currentSnapshot.isMissingType(ConditionType.ITEM_TYPE + ":" + id)) {
+                return null;
+            }
             type = persistenceService.load(id, ConditionType.class);
-            conditionTypeById.put(id, type);
+            if (type == null) {
+                currentSnapshot.missingTypeIds.put(ConditionType.ITEM_TYPE + ":" + id, System.currentTimeMillis() + MISSING_TYPE_TTL);
+                return null;
+            }
+            synchronized (definitionsLock) {
+                conditionTypeById.put(id, type);
+                publishSnapshot();
+            }
+            currentSnapshot = snapshot;
         }
-        if (type != null && type.getParentCondition() != null) {
-            ParserHelper.resolveConditionType(this, type.getParentCondition());
+        if (type.getParentCondition() != null && !currentSnapshot.resolvedConditionTypeIds.contains(id)) {
+            // parent was not resolved when the snapshot was published, its type may have been loaded since
+            if (ParserHelper.resolveConditionType(this, type.getParentCondition())) {
+                currentSnapshot.resolvedConditionTypeIds.add(id);
+            }
         }
         return type;
     }
 
     public void removeConditionType(String id) {
         persistenceService.remove(id, ConditionType.class);
-        conditionTypeById.remove(id);
+        synchronized (definitionsLock) {
+            conditionTypeById.remove(id);
+            publishSnapshot();
+        }
     }
 
     public void setConditionType(ConditionType conditionType) {
-        conditionTypeById.put(conditionType.getMetadata().getId(), conditionType);
+        synchronized (definitionsLock) {
+            conditionTypeById.put(conditionType.getMetadata().getId(), conditionType);
+            publishSnapshot();
+        }
         persistenceService.save(conditionType);
     }
 
@@ -325,31 +364,48 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public ActionType getActionType(String id) {
-        ActionType type = actionTypeById.get(id);
+        DefinitionsSnapshot currentSnapshot = snapshot;
+        ActionType type = currentSnapshot.actionTypeById.get(id);
         if (type == null) {
+            if (id == null || currentSnapshot.isMissingType(ActionType.ITEM_TYPE + ":" + id)) {
+                return null;
+            }
             type = persistenceService.load(id, ActionType.class);
-            actionTypeById.put(id, type);
+            if (type == null) {
+                currentSnapshot.missingTypeIds.put(ActionType.ITEM_TYPE + ":" + id, System.currentTimeMillis() + MISSING_TYPE_TTL);
+                return null;
+            }
+            synchronized (definitionsLock) {
+                actionTypeById.put(id, type);
+                publishSnapshot();
+            }
         }
         return type;
     }
 
     public void removeActionType(String id) {
         persistenceService.remove(id, ActionType.class);
-        actionTypeById.remove(id);
+        synchronized (definitionsLock) {
+            actionTypeById.remove(id);
+            publishSnapshot();
+        }
     }
 
     public void setActionType(ActionType actionType) {
-        actionTypeById.put(actionType.getMetadata().getId(), actionType);
+        synchronized (definitionsLock) {
+            actionTypeById.put(actionType.getMetadata().getId(), actionType);
+            publishSnapshot();
+        }
         persistenceService.save(actionType);
     }
 
     public Collection<ValueType> getAllValueTypes() {
-        return valueTypeById.values();
+        return snapshot.valueTypeById.values();
     }
 
     public Set<ValueType> getValueTypeByTag(Tag tag, boolean includeFromSubtags) {
         Set<ValueType> valueTypes = new LinkedHashSet<ValueType>();
-        Set<ValueType> directValueTypes = valueTypeByTag.get(tag);
+        Set<ValueType> directValueTypes = snapshot.valueTypeByTag.get(tag);
         if (directValueTypes != null) {
             valueTypes.addAll(directValueTypes);
         }
@@ -363,20 +419,54 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public ValueType getValueType(String id) {
-        return valueTypeById.get(id);
+        return snapshot.valueTypeById.get(id);
     }
 
     public void bundleChanged(BundleEvent event) {
         switch (event.getType()) {
             case BundleEvent.STARTED:
-                processBundleStartup(event.getBundle().getBundleContext());
+                synchronized (definitionsLock) {
+                    processBundleStartup(event.getBundle().getBundleContext());
+                    publishSnapshot();
+                }
                 break;
             case BundleEvent.STOPPING:
-                processBundleStop(event.getBundle().getBundleContext());
+                synchronized (definitionsLock) {
+                    processBundleStop(event.getBundle().getBundleContext());
+                    publishSnapshot();
+                }
                 break;
         }
     }
 
+    /**
+     * Publishes an immutable copy of the current definitions, with the parent conditions of the condition types resolved. Must be called while holding the
+     * definitions lock.
+     */
+    private void publishSnapshot() {
+        DefinitionsSnapshot newSnapshot = new DefinitionsSnapshot(snapshot.version + 1);
+        newSnapshot.tags = Collections.unmodifiableMap(new HashMap<>(tags));
+        newSnapshot.rootTags = Collections.unmodifiableSet(new LinkedHashSet<>(rootTags));
+        newSnapshot.conditionTypeById = Collections.unmodifiableMap(new HashMap<>(conditionTypeById));
+        newSnapshot.actionTypeById = Collections.unmodifiableMap(new HashMap<>(actionTypeById));
+        newSnapshot.valueTypeById = Collections.unmodifiableMap(new LinkedHashMap<>(valueTypeById));
+        Map<Tag, Set<ValueType>> newValueTypeByTag = new HashMap<>();
+        for (Map.Entry<Tag, Set<ValueType>> entry : valueTypeByTag.entrySet()) {
+            newValueTypeByTag.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(entry.getValue())));
+        }
+        newSnapshot.valueTypeByTag = Collections.unmodifiableMap(newValueTypeByTag);
+        newSnapshot.propertyMergeStrategyTypeById = Collections.unmodifiableMap(new HashMap<>(propertyMergeStrategyTypeById));
+        snapshot = newSnapshot;
+
+        // parents are resolved against the new snapshot, so that condition types defined in other bundles are found
+        for (ConditionType conditionType : newSnapshot.conditionTypeById.values()) {
+            if (conditionType.getParentCondition() == null || ParserHelper.resolveConditionType(this, conditionType.getParentCondition())) {
+                newSnapshot.resolvedConditionTypeIds.add(conditionType.getMetadata().getId());
+            }
+        }
+        logger.debug("Published definitions snapshot version {}", newSnapshot.version);
+    }
+
     private void loadPredefinedPropertyMergeStrategies(BundleContext bundleContext) {
         Enumeration<URL> predefinedPropertyMergeStrategyEntries = bundleContext.getBundle().findEntries("META-INF/cxs/mergers", "*.json", true);
         if (predefinedPropertyMergeStrategyEntries == null) {
@@ -400,7 +490,7 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public PropertyMergeStrategyType getPropertyMergeStrategyType(String id) {
-        return propertyMergeStrategyTypeById.get(id);
+        return snapshot.propertyMergeStrategyTypeById.get(id);
     }
 
     public Set<Condition> extractConditionsByType(Condition rootCondition, String typeId) {
@@ -420,12 +510,31 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     }
 
     public Condition extractConditionByTag(Condition rootCondition, String tagId) {
+        Map<ExtractedConditionKey, Condition> extractedConditions = snapshot.extractedConditions;
+        // conditions are compared by value, a condition without type can't be
+        ExtractedConditionKey key = rootCondition.getConditionTypeId() != null ? new ExtractedConditionKey(rootCondition, tagId) : null;
+        Condition extractedCondition = key != null ? extractedConditions.get(key) : null;
+        if (extractedCondition == null) {
+            boolean[] resolved = {true};
+            extractedCondition = extractConditionByTag(rootCondition, tagId, resolved);
+            if (extractedCondition == null) {
+                extractedCondition = NO_CONDITION;
+            }
+            // results depending on unresolved condition types may change, don't keep them
+            if (key != null && resolved[0]) {
+                extractedConditions.put(key, extractedCondition);
+            }
+        }
+        return extractedCondition == NO_CONDITION ? null : extractedCondition;
+    }
+
+    private Condition extractConditionByTag(Condition rootCondition, String tagId, boolean[] resolved) {
         if (rootCondition.containsParameter("subConditions")) {
             @SuppressWarnings("unchecked")
             List<Condition> subConditions = (List<Condition>) rootCondition.getParameter("subConditions");
             List<Condition> matchingConditions = new ArrayList<Condition>();
             for (Condition condition : subConditions) {
-                Condition c = extractConditionByTag(condition, tagId);
+                Condition c = extractConditionByTag(condition, tagId, resolved);
                 if (c != null) {
                     matchingConditions.add(c);
                 }
@@ -449,6 +558,9 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
         } else if (rootCondition.getConditionType() != null && rootCondition.getConditionType().getMetadata().getTags().contains(tagId)) {
             return rootCondition;
         } else {
+            if (rootCondition.getConditionType() == null) {
+                resolved[0] = false;
+            }
             return null;
         }
     }
@@ -457,4 +569,65 @@ public class DefinitionsServiceImpl implements DefinitionsService, SynchronousBu
     public boolean resolveConditionType(Condition rootCondition) {
         return ParserHelper.resolveConditionType(this, rootCondition);
     }
+
+    /**
+     * An immutable view of the definitions, replaced as a whole when definitions change. The resolution state and memoized results it holds are only valid
+     * for this version of the definitions.
+     */
+    private static class DefinitionsSnapshot {
+        private final long version;
+        private Map<String, Tag> tags = Collections.emptyMap();
+        private Set<Tag> rootTags = Collections.emptySet();
+        private Map<String, ConditionType> conditionTypeById = Collections.emptyMap();
+        private Map<String, ActionType> actionTypeById = Collections.emptyMap();
+        private Map<String, ValueType> valueTypeById = Collections.emptyMap();
+        private Map<Tag, Set<ValueType>> valueTypeByTag = Collections.emptyMap();
+        private Map<String, PropertyMergeStrategyType> propertyMergeStrategyTypeById = Collections.emptyMap();
+        private final Set<String> resolvedConditionTypeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // expiration time of the types that couldn't be found, by item type and identifier
+        private final ConcurrentMap<String, Long> missingTypeIds = new ConcurrentHashMap<>();
+        private final Map<ExtractedConditionKey, Condition> extractedConditions = ProfileServiceImpl.createCache(MAX_EXTRACTED_CONDITIONS);
+
+        DefinitionsSnapshot(long version) {
+            this.version = version;
+        }
+
+        boolean isMissingType(String typeKey) {
+            Long expirationTime = missingTypeIds.get(typeKey);
+            if (expirationTime == null) {
+                return false;
+            }
+            if (expirationTime < System.currentTimeMillis()) {
+                missingTypeIds.remove(typeKey, expirationTime);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Identifies a condition (by value, as equal conditions extract equal conditions) and a tag for which conditions were extracted.
+     */
+    private static class ExtractedConditionKey {
+        private final Condition condition;
+        private final String tagId;
+
+        ExtractedConditionKey(Condition condition, String tagId) {
+            this.condition = condition;
+            this.tagId = tagId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ExtractedConditionKey)) return false;
+            ExtractedConditionKey that = (ExtractedConditionKey) o;
+            return condition.equals(that.condition) && tagId.equals(that.tagId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * condition.hashCode() + tagId.hashCode();
+        }
+    }
 }
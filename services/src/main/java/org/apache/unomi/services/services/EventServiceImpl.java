@@ -20,6 +20,7 @@ package org.apache.unomi.services.services;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.unomi.api.Event;
 import org.apache.unomi.api.EventProperty;
+import org.apache.unomi.api.Item;
 import org.apache.unomi.api.PartialList;
 import org.apache.unomi.api.Session;
 import org.apache.unomi.api.actions.ActionPostExecutor;
@@ -27,6 +28,9 @@ import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventListenerService;
 import org.apache.unomi.api.services.EventService;
+import org.apache.unomi.api.services.ProfileService;
+import org.apache.unomi.persistence.spi.ItemWriteListener;
+import org.apache.unomi.persistence.spi.PermanentWriteException;
 import org.apache.unomi.persistence.spi.PersistenceService;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.osgi.framework.BundleContext;
@@ -34,19 +38,39 @@ import org.osgi.framework.ServiceReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EventServiceImpl implements EventService {
     private static final Logger logger = LoggerFactory.getLogger(SegmentServiceImpl.class.getName());
 
+    /**
+     * Events are indexed before {@link #send(Event)} returns.
+     */
+    public static final String PERSISTENCE_MODE_SYNC = "sync";
+    /**
+     * Events are added to the next bulk request of the persistence service.
+     */
+    public static final String PERSISTENCE_MODE_BATCHED = "batched";
+    /**
+     * Events are indexed by a single request, without waiting for the response.
+     */
+    public static final String PERSISTENCE_MODE_ASYNC = "async";
+
     private List<EventListenerService> eventListeners = new ArrayList<EventListenerService>();
 
     private PersistenceService persistenceService;
 
     private DefinitionsService definitionsService;
 
+    private ProfileService profileService;
+
     private BundleContext bundleContext;
 
     private Set<String> predefinedEventTypeIds = new LinkedHashSet<String>();
@@ -55,14 +79,112 @@ public class EventServiceImpl implements EventService {
 
     private Map<String, ThirdPartyServer> thirdPartyServers = new HashMap<>();
 
+    private String defaultPersistenceMode = PERSISTENCE_MODE_SYNC;
+    private Map<String, String> persistenceModeByEventType = new HashMap<>();
+
+    // events written asynchronously and not acknowledged yet, by "profile:" + profileId and "session:" + sessionId
+    private final ConcurrentMap<String, Set<Event>> pendingEvents = new ConcurrentHashMap<>();
+    private final AtomicLong pendingEventsCount = new AtomicLong();
+    private final AtomicLong eventPersistenceFailures = new AtomicLong();
+
+    private final ItemWriteListener pendingEventListener = new ItemWriteListener() {
+        @Override
+        public void onSuccess(Item item) {
+            removePendingEvent((Event) item);
+        }
+
+        @Override
+        public void onFailure(Item item, Throwable failure) {
+            removePendingEvent((Event) item);
+            writeFailed((Event) item, failure);
+        }
+    };
+
+    private boolean spoolEnabled = false;
+    private String spoolDirectory;
+    private long spoolMaxSize = 1024L * 1024 * 1024;
+    private long spoolSegmentSize = 16L * 1024 * 1024;
+    private long spoolReplayInterval = 5000;
+    private long spoolReplayTimeout = 60000;
+    private int spoolRetentionDays = 7;
+    private EventSpool eventSpool;
+    private ScheduledExecutorService spoolReplayExecutor;
+    // set when writes fail, events are then spooled without trying the persistence service until the spool is replayed
+    private volatile boolean persistenceDegraded = false;
+    private final AtomicLong replayedEvents = new AtomicLong();
+    private final AtomicLong expiredEvents = new AtomicLong();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+
     public void init() {
+        if (spoolEnabled) {
+            File directory = StringUtils.isNotBlank(spoolDirectory) ? new File(spoolDirectory) :
+                    new File(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "unomi-event-spool");
+            try {
+                eventSpool = new EventSpool(directory, spoolMaxSize, spoolSegmentSize);
+                spoolReplayExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "unomi-event-spool-replay");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                spoolReplayExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            replaySpool();
+                        } catch (Throwable t) {
+                            logger.error("Error replaying event spool", t);
+                        }
+                    }
+                }, spoolReplayInterval, spoolReplayInterval, TimeUnit.MILLISECONDS);
+                logger.info("Event spool enabled in " + directory);
+            } catch (IOException e) {
+                logger.error("Couldn't open event spool, events that cannot be written will be lost", e);
+            }
+        }
         logger.info("Event service initialized.");
     }
 
     public void destroy() {
+        if (spoolReplayExecutor != null) {
+            spoolReplayExecutor.shutdownNow();
+        }
+        if (eventSpool != null) {
+            eventSpool.close();
+        }
         logger.info("Event service shutdown.");
     }
 
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        this.spoolEnabled = spoolEnabled;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize * 1024 * 1024;
+    }
+
+    public void setSpoolSegmentSize(long spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize * 1024 * 1024;
+    }
+
+    public void setSpoolReplayInterval(long spoolReplayInterval) {
+        this.spoolReplayInterval = spoolReplayInterval;
+    }
+
+    public void setSpoolReplayTimeout(long spoolReplayTimeout) {
+        this.spoolReplayTimeout = spoolReplayTimeout;
+    }
+
+    public void setSpoolRetentionDays(int spoolRetentionDays) {
+        this.spoolRetentionDays = spoolRetentionDays;
+    }
+
     public void setThirdPartyConfiguration(Map<String,String> thirdPartyConfiguration) {
         this.thirdPartyServers = new HashMap<>();
         for (Map.Entry<String, String> entry : thirdPartyConfiguration.entrySet()) {
@@ -93,6 +215,127 @@ public class EventServiceImpl implements EventService {
         }
     }
 
+    public void setDefaultPersistenceMode(String defaultPersistenceMode) {
+        this.defaultPersistenceMode = checkPersistenceMode(defaultPersistenceMode.trim());
+    }
+
+    /**
+     * Sets the persistence mode of specific event types, as a comma separated list of eventType:mode pairs.
+     *
+     * @param persistenceModes the persistence modes, for example {@code view:batched,login:sync}
+     */
+    public void setPersistenceModes(String persistenceModes) {
+        Map<String, String> modes = new HashMap<>();
+        for (String persistenceMode : StringUtils.split(persistenceModes, ',')) {
+            String[] eventTypeAndMode = StringUtils.split(persistenceMode, ':');
+            if (eventTypeAndMode.length != 2) {
+                logger.warn("Ignoring invalid event persistence mode " + persistenceMode);
+                continue;
+            }
+            modes.put(eventTypeAndMode[0].trim(), checkPersistenceMode(eventTypeAndMode[1].trim()));
+        }
+        this.persistenceModeByEventType = modes;
+    }
+
+    private String checkPersistenceMode(String persistenceMode) {
+        if (!PERSISTENCE_MODE_SYNC.equals(persistenceMode) && !PERSISTENCE_MODE_BATCHED.equals(persistenceMode) && !PERSISTENCE_MODE_ASYNC.equals(persistenceMode)) {
+            logger.warn("Unknown event persistence mode " + persistenceMode + ", using " + PERSISTENCE_MODE_SYNC);
+            return PERSISTENCE_MODE_SYNC;
+        }
+        return persistenceMode;
+    }
+
+    /**
+     * Retrieves the number of events that could not be written since the service started.
+     *
+     * @return the number of failed event writes
+     */
+    public long getEventPersistenceFailures() {
+        return eventPersistenceFailures.get();
+    }
+
+    /**
+     * Retrieves the number of events written asynchronously that were not acknowledged yet.
+     *
+     * @return the number of pending event writes
+     */
+    public long getPendingEventsCount() {
+        return pendingEventsCount.get();
+    }
+
+    /**
+     * Retrieves the size of the event spool.
+     *
+     * @return the size of the spool in bytes, 0 if the spool is disabled
+     */
+    public long getSpoolSize() {
+        return eventSpool != null ? eventSpool.getSize() : 0;
+    }
+
+    /**
+     * Retrieves how long the oldest spooled events have been waiting to be replayed.
+     *
+     * @return the replay lag in milliseconds, 0 if the spool is empty or disabled
+     */
+    public long getSpoolReplayLag() {
+        return eventSpool != null ? eventSpool.getReplayLag() : 0;
+    }
+
+    /**
+     * Retrieves the number of events spooled since the service started.
+     *
+     * @return the number of spooled events
+     */
+    public long getSpooledEventsCount() {
+        return eventSpool != null ? eventSpool.getSpooledEvents() : 0;
+    }
+
+    /**
+     * Retrieves the number of spooled events written to the persistence service since the service started.
+     *
+     * @return the number of replayed events
+     */
+    public long getReplayedEventsCount() {
+        return replayedEvents.get();
+    }
+
+    /**
+     * Retrieves the number of spooled events dropped because they were older than the retention period.
+     *
+     * @return the number of expired events
+     */
+    public long getExpiredEventsCount() {
+        return expiredEvents.get();
+    }
+
+    /**
+     * Retrieves the number of events dropped because the persistence service rejected them, such as events that don't match the mappings. These
+     * events are never spooled, as writing them again would fail again.
+     *
+     * @return the number of rejected events
+     */
+    public long getRejectedEventsCount() {
+        return rejectedEvents.get();
+    }
+
+    /**
+     * Retrieves the number of spool segments dropped because the spool exceeded its maximum size.
+     *
+     * @return the number of dropped segments
+     */
+    public long getDroppedSpoolSegmentsCount() {
+        return eventSpool != null ? eventSpool.getDroppedSegments() : 0;
+    }
+
+    /**
+     * Checks whether events are currently spooled instead of being written to the persistence service.
+     *
+     * @return {@code true} if the persistence service is considered unavailable
+     */
+    public boolean isPersistenceDegraded() {
+        return persistenceDegraded;
+    }
+
     public void setPredefinedEventTypeIds(Set<String> predefinedEventTypeIds) {
         this.predefinedEventTypeIds = predefinedEventTypeIds;
     }
@@ -105,6 +348,10 @@ public class EventServiceImpl implements EventService {
         this.persistenceService = persistenceService;
     }
 
+    public void setProfileService(ProfileService profileService) {
+        this.profileService = profileService;
+    }
+
     public void setDefinitionsService(DefinitionsService definitionsService) {
         this.definitionsService = definitionsService;
     }
@@ -138,7 +385,7 @@ public class EventServiceImpl implements EventService {
 
     public int send(Event event) {
         if (event.isPersistent()) {
-            persistenceService.save(event);
+            persist(event);
         }
 
         int changes = NO_CHANGE;
@@ -238,18 +485,236 @@ public class EventServiceImpl implements EventService {
         }
     }
 
+    private void persist(Event event) {
+        if (persistenceDegraded && eventSpool != null) {
+            eventSpool.append(event);
+            return;
+        }
+        String persistenceMode = persistenceModeByEventType.get(event.getEventType());
+        if (persistenceMode == null) {
+            persistenceMode = defaultPersistenceMode;
+        }
+        if (PERSISTENCE_MODE_SYNC.equals(persistenceMode)) {
+            // written without batching and waited for, so that the cause of a failure is known
+            WriteResult writeResult = new WriteResult();
+            if (!persistenceService.saveAsync(event, false, writeResult)) {
+                writeFailed(event, null);
+                return;
+            }
+            try {
+                Throwable failure = writeResult.await();
+                if (failure != null) {
+                    writeFailed(event, failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeFailed(event, e);
+            }
+            return;
+        }
+        addPendingEvent(event);
+        if (!persistenceService.saveAsync(event, PERSISTENCE_MODE_BATCHED.equals(persistenceMode), pendingEventListener)) {
+            removePendingEvent(event);
+            writeFailed(event, null);
+        }
+    }
+
+    /**
+     * Drops an event rejected by the persistence service, or spools it if the failure is transient.
+     */
+    private void writeFailed(Event event, Throwable failure) {
+        eventPersistenceFailures.incrementAndGet();
+        if (failure instanceof PermanentWriteException) {
+            rejectedEvents.incrementAndGet();
+            logger.warn("Event " + event.getItemId() + " of type " + event.getEventType() + " was rejected and is dropped : "
+                    + (failure.getCause() != null ? failure.getCause().getMessage() : failure.getMessage()));
+        } else {
+            spool(event);
+        }
+    }
+
+    /**
+     * Keeps an event that could not be written in the spool, if enabled, and spools the next events until the spool is replayed. Only transient
+     * failures, such as an unavailable or overloaded persistence service, get here.
+     */
+    private void spool(Event event) {
+        if (eventSpool == null) {
+            return;
+        }
+        if (!persistenceDegraded) {
+            logger.warn("Event writes are failing, spooling events until the persistence service is available");
+            persistenceDegraded = true;
+        }
+        eventSpool.append(event);
+    }
+
+    /**
+     * Writes the events of the oldest spool segment to the persistence service. Events that still cannot be written are spooled again, unless the
+     * whole segment failed, in which case it is kept for the next replay. Events rejected by the persistence service are dropped.
+     */
+    private void replaySpool() throws IOException, InterruptedException {
+        File segment = eventSpool.pollSegment();
+        if (segment == null) {
+            if (persistenceDegraded) {
+                // nothing left to replay, the next events will try the persistence service again
+                persistenceDegraded = false;
+            }
+            return;
+        }
+        List<Event> events = eventSpool.read(segment);
+        long retentionLimit = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(spoolRetentionDays);
+        List<Event> eventsToReplay = new ArrayList<>(events.size());
+        for (Event event : events) {
+            if (event.getTimeStamp() != null && event.getTimeStamp().getTime() < retentionLimit) {
+                expiredEvents.incrementAndGet();
+            } else {
+                eventsToReplay.add(event);
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(eventsToReplay.size());
+        final List<Event> failedEvents = Collections.synchronizedList(new ArrayList<Event>());
+        final AtomicInteger rejectedCount = new AtomicInteger();
+        ItemWriteListener replayListener = new ItemWriteListener() {
+            @Override
+            public void onSuccess(Item item) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Item item, Throwable failure) {
+                if (failure instanceof PermanentWriteException) {
+                    logger.warn("Spooled event " + item.getItemId() + " was rejected and is dropped : "
+                            + (failure.getCause() != null ? failure.getCause().getMessage() : failure.getMessage()));
+                    rejectedCount.incrementAndGet();
+                } else {
+                    failedEvents.add((Event) item);
+                }
+                latch.countDown();
+            }
+        };
+        for (Event event : eventsToReplay) {
+            if (!persistenceService.saveAsync(event, true, replayListener)) {
+                failedEvents.add(event);
+                latch.countDown();
+            }
+        }
+        if (!latch.await(spoolReplayTimeout, TimeUnit.MILLISECONDS)) {
+            logger.warn("Timeout replaying event spool segment " + segment + ", it will be replayed again");
+            return;
+        }
+
+        if (!eventsToReplay.isEmpty() && failedEvents.size() == eventsToReplay.size()) {
+            logger.debug("Persistence service still unavailable, keeping event spool segment " + segment);
+            return;
+        }
+        synchronized (failedEvents) {
+            for (Event failedEvent : failedEvents) {
+                eventSpool.append(failedEvent);
+            }
+        }
+        eventSpool.remove(segment);
+        int replayedCount = eventsToReplay.size() - failedEvents.size() - rejectedCount.get();
+        replayedEvents.addAndGet(replayedCount);
+        rejectedEvents.addAndGet(rejectedCount.get());
+        logger.info("Replayed " + replayedCount + " spooled events from " + segment + ", " + failedEvents.size() + " failed, " + rejectedCount.get() + " rejected");
+        // rejected events don't tell anything about the availability of the persistence service
+        persistenceDegraded = !failedEvents.isEmpty();
+    }
+
+    private void addPendingEvent(Event event) {
+        for (String key : getPendingEventKeys(event)) {
+            Set<Event> events = pendingEvents.get(key);
+            if (events == null) {
+                Set<Event> newEvents = Collections.newSetFromMap(new ConcurrentHashMap<Event, Boolean>());
+                events = pendingEvents.putIfAbsent(key, newEvents);
+                if (events == null) {
+                    events = newEvents;
+                }
+            }
+            events.add(event);
+        }
+        pendingEventsCount.incrementAndGet();
+    }
+
+    private void removePendingEvent(Event event) {
+        for (String key : getPendingEventKeys(event)) {
+            Set<Event> events = pendingEvents.get(key);
+            if (events != null) {
+                events.remove(event);
+                if (events.isEmpty()) {
+                    pendingEvents.remove(key, events);
+                }
+            }
+        }
+        pendingEventsCount.decrementAndGet();
+    }
+
+    private List<String> getPendingEventKeys(Event event) {
+        List<String> keys = new ArrayList<>(2);
+        if (event.getProfileId() != null) {
+            keys.add("profile:" + event.getProfileId());
+        }
+        if (event.getSessionId() != null) {
+            keys.add("session:" + event.getSessionId());
+        }
+        return keys;
+    }
+
+    /**
+     * Checks whether a similar event was sent but is not visible in the persistence service yet because its write was not acknowledged.
+     */
+    private boolean hasPendingEvent(Event event, String key) {
+        if (pendingEvents.isEmpty()) {
+            return false;
+        }
+        Set<Event> events = pendingEvents.get(key);
+        if (events == null) {
+            return false;
+        }
+        for (Event pendingEvent : events) {
+            if (!pendingEvent.getItemId().equals(event.getItemId())
+                    && StringUtils.equals(pendingEvent.getEventType(), event.getEventType())
+                    && pendingEvent.getTarget() != null
+                    && StringUtils.equals(pendingEvent.getTarget().getItemId(), event.getTarget().getItemId())
+                    && StringUtils.equals(pendingEvent.getTarget().getItemType(), event.getTarget().getItemType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean hasEventAlreadyBeenRaised(Event event, boolean session) {
+        Set<String> aliases = session || profileService == null ? Collections.<String>emptySet() : profileService.getProfileAliases(event.getProfileId());
+        if (hasPendingEvent(event, session ? "session:" + event.getSessionId() : "profile:" + event.getProfileId())) {
+            return true;
+        }
+        for (String alias : aliases) {
+            // pending events of merged profiles are recorded under their original profile id
+            if (hasPendingEvent(event, "profile:" + alias)) {
+                return true;
+            }
+        }
+
         List<Condition> conditions = new ArrayList<Condition>();
 
         Condition profileIdCondition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
         if (session) {
             profileIdCondition.setParameter("propertyName", "sessionId");
             profileIdCondition.setParameter("propertyValue", event.getSessionId());
-        } else {
+            profileIdCondition.setParameter("comparisonOperator", "equals");
+        } else if (aliases.isEmpty()) {
             profileIdCondition.setParameter("propertyName", "profileId");
             profileIdCondition.setParameter("propertyValue", event.getProfileId());
+            profileIdCondition.setParameter("comparisonOperator", "equals");
+        } else {
+            // events of merged profiles keep their original profile id
+            List<String> profileIds = new ArrayList<String>(aliases);
+            profileIds.add(event.getProfileId());
+            profileIdCondition.setParameter("propertyName", "profileId");
+            profileIdCondition.setParameter("propertyValues", profileIds);
+            profileIdCondition.setParameter("comparisonOperator", "in");
         }
-        profileIdCondition.setParameter("comparisonOperator", "equals");
         conditions.add(profileIdCondition);
 
         Condition condition = new Condition(definitionsService.getConditionType("eventPropertyCondition"));
@@ -289,4 +754,33 @@ public class EventServiceImpl implements EventService {
             eventListeners.remove(eventListenerService);
         }
     }
+
+    /**
+     * Waits for the outcome of an item write.
+     */
+    private static class WriteResult implements ItemWriteListener {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        @Override
+        public void onSuccess(Item item) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Item item, Throwable failure) {
+            this.failure = failure;
+            latch.countDown();
+        }
+
+        /**
+         * Waits until the item is written or rejected.
+         *
+         * @return the cause of the failure, {@code null} if the item was written
+         */
+        Throwable await() throws InterruptedException {
+            latch.await();
+            return failure;
+        }
+    }
 }
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.Event;
+import org.apache.unomi.persistence.spi.CustomObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only spool of events, stored in segment files in a local directory, used to keep events while the persistence service is unavailable.
+ * Each record is made of its length, the CRC32 checksum of its content and the event serialized as JSON. Segments are replayed oldest first, once
+ * closed : the segment being written is closed when there is nothing else to replay.
+ */
+class EventSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventSpool.class.getName());
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+
+    private final LinkedList<File> closedSegments = new LinkedList<>();
+    private long nextSegmentId;
+    private File activeSegment;
+    private FileChannel activeChannel;
+    private long activeSize;
+    private long size;
+
+    private final AtomicLong spooledEvents = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    /**
+     * Opens the spool in the specified directory, existing segments are kept to be replayed.
+     *
+     * @param directory   the directory holding the segment files, created if needed
+     * @param maxSize     the maximum size of the spool in bytes, oldest segments are dropped above this size
+     * @param segmentSize the size in bytes above which a new segment is started
+     * @throws IOException if the directory cannot be created
+     */
+    EventSpool(File directory, long maxSize, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create event spool directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    closedSegments.add(file);
+                    size += file.length();
+                    nextSegmentId = Math.max(nextSegmentId, Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) + 1);
+                }
+            }
+        }
+        if (!closedSegments.isEmpty()) {
+            logger.info("Found {} event spool segments ({} bytes) to replay in {}", closedSegments.size(), size, directory);
+        }
+    }
+
+    /**
+     * Appends the specified event to the spool.
+     *
+     * @param event the event to spool
+     * @return {@code true} if the event was written, {@code false} otherwise
+     */
+    synchronized boolean append(Event event) {
+        try {
+            byte[] content = CustomObjectMapper.getObjectMapper().writeValueAsBytes(event);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + content.length);
+            record.putInt(content.length);
+            record.putInt((int) crc.getValue());
+            record.put(content);
+            record.flip();
+
+            enforceMaxSize(record.remaining());
+            if (activeChannel == null || activeSize >= segmentSize) {
+                rollSegment();
+                openSegment();
+            }
+            while (record.hasRemaining()) {
+                activeChannel.write(record);
+            }
+            activeSize += RECORD_HEADER_SIZE + content.length;
+            size += RECORD_HEADER_SIZE + content.length;
+            spooledEvents.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            logger.error("Error spooling event " + event.getItemId(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the oldest segment to replay, closing the segment being written if there is no other one.
+     *
+     * @return the oldest segment, or {@code null} if the spool is empty
+     */
+    synchronized File pollSegment() {
+        if (closedSegments.isEmpty() && activeSize > 0) {
+            rollSegment();
+        }
+        return closedSegments.peekFirst();
+    }
+
+    /**
+     * Reads the events of the specified segment, stopping at the first incomplete or corrupted record.
+     *
+     * @param segment a segment returned by {@link #pollSegment()}
+     * @return the events of the segment
+     * @throws IOException if the segment cannot be read
+     */
+    List<Event> read(File segment) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (FileChannel channel = new FileInputStream(segment).getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            long position = 0;
+            long length = channel.size();
+            while (position < length) {
+                header.clear();
+                if (readFully(channel, header) < RECORD_HEADER_SIZE) {
+                    break;
+                }
+                header.flip();
+                int contentLength = header.getInt();
+                int checksum = header.getInt();
+                if (contentLength < 0 || position + RECORD_HEADER_SIZE + contentLength > length) {
+                    break;
+                }
+                ByteBuffer content = ByteBuffer.allocate(contentLength);
+                readFully(channel, content);
+                CRC32 crc = new CRC32();
+                crc.update(content.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                events.add(CustomObjectMapper.getObjectMapper().readValue(content.array(), Event.class));
+                position += RECORD_HEADER_SIZE + contentLength;
+            }
+            if (position < length) {
+                logger.warn("Ignoring {} corrupted or incomplete bytes at the end of event spool segment {}", length - position, segment);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Removes a segment once its events were replayed.
+     *
+     * @param segment a segment returned by {@link #pollSegment()}
+     */
+    synchronized void remove(File segment) {
+        if (closedSegments.remove(segment)) {
+            deleteSegment(segment);
+        }
+    }
+
+    synchronized void close() {
+        rollSegment();
+    }
+
+    /**
+     * Retrieves the size of the spool.
+     *
+     * @return the size of the spool, in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Retrieves how long the oldest spooled events have been waiting to be replayed.
+     *
+     * @return the age of the oldest segment in milliseconds, 0 if the spool is empty
+     */
+    synchronized long getReplayLag() {
+        File oldestSegment = closedSegments.isEmpty() ? (activeSize > 0 ? activeSegment : null) : closedSegments.peekFirst();
+        return oldestSegment != null ? Math.max(0, System.currentTimeMillis() - oldestSegment.lastModified()) : 0;
+    }
+
+    /**
+     * Retrieves the number of events spooled since the spool was opened.
+     *
+     * @return the number of spooled events
+     */
+    long getSpooledEvents() {
+        return spooledEvents.get();
+    }
+
+    /**
+     * Retrieves the number of segments dropped because the spool exceeded its maximum size.
+     *
+     * @return the number of dropped segments
+     */
+    long getDroppedSegments() {
+        return droppedSegments.get();
+    }
+
+    private void enforceMaxSize(long recordSize) {
+        while (size + recordSize > maxSize && !closedSegments.isEmpty()) {
+            File oldestSegment = closedSegments.removeFirst();
+            logger.warn("Event spool is full, dropping segment {} ({} bytes)", oldestSegment, oldestSegment.length());
+            deleteSegment(oldestSegment);
+            droppedSegments.incrementAndGet();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        activeSegment = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+        activeChannel = new FileOutputStream(activeSegment, true).getChannel();
+        activeSize = 0;
+    }
+
+    private void rollSegment() {
+        if (activeChannel == null) {
+            return;
+        }
+        try {
+            activeChannel.force(false);
+            activeChannel.close();
+        } catch (IOException e) {
+            logger.error("Error closing event spool segment " + activeSegment, e);
+        }
+        if (activeSize > 0) {
+            closedSegments.add(activeSegment);
+        } else {
+            deleteSegment(activeSegment);
+        }
+        activeChannel = null;
+        activeSegment = null;
+        activeSize = 0;
+    }
+
+    private void deleteSegment(File segment) {
+        long length = segment.length();
+        if (!segment.delete()) {
+            logger.warn("Couldn't delete event spool segment {}", segment);
+            return;
+        }
+        size -= length;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.apache.unomi.services.services;
 
+import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.unomi.api.*;
 import org.apache.unomi.api.actions.Action;
 import org.apache.unomi.api.campaigns.Campaign;
@@ -25,10 +26,14 @@ import org.apache.unomi.api.campaigns.events.CampaignEvent;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.goals.Goal;
 import org.apache.unomi.api.goals.GoalReport;
+import org.apache.unomi.api.goals.ReportRollup;
+import org.apache.unomi.api.query.Aggregate;
 import org.apache.unomi.api.query.AggregateQuery;
 import org.apache.unomi.api.query.Query;
 import org.apache.unomi.api.rules.Rule;
 import org.apache.unomi.api.services.DefinitionsService;
+import org.apache.unomi.api.services.EventListenerService;
+import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.GoalsService;
 import org.apache.unomi.api.services.RulesService;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
@@ -41,14 +46,30 @@ import org.osgi.framework.SynchronousBundleListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
-public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener {
+public class GoalsServiceImpl implements GoalsService, EventListenerService, SynchronousBundleListener {
     private static final Logger logger = LoggerFactory.getLogger(RulesServiceImpl.class.getName());
 
+    /**
+     * Tags of the rules generated for goals and campaigns, identifying the rules counted in the rollups.
+     */
+    private static final String GOAL_START_RULE_TAG = "goalStartRule";
+    private static final String GOAL_TARGET_RULE_TAG = "goalTargetRule";
+    private static final String CAMPAIGN_ENTRY_RULE_TAG = "campaignEntryRule";
+
+    /**
+     * Names of the rollup fields holding the start, target and engaged counters, indexed by counter type.
+     */
+    private static final String[] ROLLUP_COUNTER_FIELDS = {"startCount", "targetCount", "engagedCount"};
+
     private BundleContext bundleContext;
 
     private PersistenceService persistenceService;
@@ -59,6 +80,13 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
     private Map<Tag, Set<Goal>> goalByTag = new HashMap<>();
 
+    private boolean rollupsEnabled = false;
+    private String rollupsDimension;
+    private long rollupsFlushInterval = 10000L;
+    private String rollupsNodeId;
+    private final ConcurrentHashMap<String, RollupCounter> rollupCounters = new ConcurrentHashMap<>();
+    private Timer rollupsTimer;
+
     public void setBundleContext(BundleContext bundleContext) {
         this.bundleContext = bundleContext;
     }
@@ -75,6 +103,22 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         this.rulesService = rulesService;
     }
 
+    public void setRollupsEnabled(boolean rollupsEnabled) {
+        this.rollupsEnabled = rollupsEnabled;
+    }
+
+    public void setRollupsDimension(String rollupsDimension) {
+        this.rollupsDimension = rollupsDimension != null && rollupsDimension.trim().length() > 0 ? rollupsDimension.trim() : null;
+    }
+
+    public void setRollupsFlushInterval(long rollupsFlushInterval) {
+        this.rollupsFlushInterval = rollupsFlushInterval;
+    }
+
+    public void setRollupsNodeId(String rollupsNodeId) {
+        this.rollupsNodeId = rollupsNodeId != null && rollupsNodeId.trim().length() > 0 ? rollupsNodeId.trim() : null;
+    }
+
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
 
@@ -87,14 +131,43 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
             }
         }
         bundleContext.addBundleListener(this);
+        initializeRollupsTimer();
         logger.info("Goal service initialized.");
     }
 
     public void preDestroy() {
         bundleContext.removeBundleListener(this);
+        if (rollupsTimer != null) {
+            rollupsTimer.cancel();
+            rollupsTimer = null;
+        }
+        if (rollupsEnabled) {
+            flushRollups();
+        }
         logger.info("Goal service shutdown.");
     }
 
+    private void initializeRollupsTimer() {
+        if (!rollupsEnabled) {
+            return;
+        }
+        if (rollupsNodeId == null) {
+            rollupsNodeId = loadRollupsNodeId();
+        }
+        rollupsTimer = new Timer();
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    flushRollups();
+                } catch (Throwable t) {
+                    logger.error("Error while flushing goal and campaign rollups", t);
+                }
+            }
+        };
+        rollupsTimer.schedule(task, rollupsFlushInterval, rollupsFlushInterval);
+    }
+
     private void processBundleStartup(BundleContext bundleContext) {
         if (bundleContext == null) {
             return;
@@ -178,6 +251,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
         rule.setCondition(res);
         rule.getMetadata().setHidden(true);
+        rule.getMetadata().setTags(new HashSet<>(Collections.singleton(id.equals("Start") ? GOAL_START_RULE_TAG : GOAL_TARGET_RULE_TAG)));
         Action action1 = new Action();
         action1.setActionType(definitionsService.getActionType("setPropertyAction"));
         String name = "systemProperties.goals." + goal.getMetadata().getId() + id + "Reached";
@@ -317,6 +391,7 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
         rule.setCondition(res);
         rule.getMetadata().setHidden(true);
+        rule.getMetadata().setTags(new HashSet<>(Collections.singleton(CAMPAIGN_ENTRY_RULE_TAG)));
         Action action1 = new Action();
         action1.setActionType(definitionsService.getActionType("setPropertyAction"));
         String name = "systemProperties.campaigns." + campaign.getMetadata().getId() + "Engaged";
@@ -353,55 +428,84 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
     public PartialList<CampaignDetail> getCampaignDetails(Query query) {
         definitionsService.resolveConditionType(query.getCondition());
         PartialList<Campaign> campaigns = persistenceService.query(query.getCondition(), query.getSortby(), Campaign.class, query.getOffset(), query.getLimit());
-        List<CampaignDetail> details = new LinkedList<>();
-        for (Campaign definition : campaigns.getList()) {
-            final CampaignDetail campaignDetail = getCampaignDetail(definition);
-            if (campaignDetail != null) {
-                details.add(campaignDetail);
-            }
-        }
+        List<CampaignDetail> details = new LinkedList<>(getCampaignDetails(campaigns.getList()));
         return new PartialList<>(details, campaigns.getOffset(), campaigns.getPageSize(), campaigns.getTotalSize());
     }
 
     public CampaignDetail getCampaignDetail(String id) {
-        return getCampaignDetail(getCampaign(id));
-    }
-
-    private CampaignDetail getCampaignDetail(Campaign campaign) {
+        Campaign campaign = getCampaign(id);
         if (campaign == null) {
             return null;
         }
+        return getCampaignDetails(Collections.singletonList(campaign)).get(0);
+    }
 
-        CampaignDetail campaignDetail = new CampaignDetail(campaign);
-
-        // engaged profile
-        Condition profileEngagedCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
-        profileEngagedCondition.setParameter("propertyName", "systemProperties.campaigns." + campaign.getMetadata().getId() + "Engaged");
-        profileEngagedCondition.setParameter("comparisonOperator", "exists");
-        campaignDetail.setEngagedProfiles(persistenceService.queryCount(profileEngagedCondition, Profile.ITEM_TYPE));
-
-        // number of goals
-        Condition campaignGoalsCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-        campaignGoalsCondition.setParameter("propertyName", "campaignId");
-        campaignGoalsCondition.setParameter("comparisonOperator", "equals");
-        campaignGoalsCondition.setParameter("propertyValue", campaign.getMetadata().getId());
-        campaignDetail.setNumberOfGoals(persistenceService.queryCount(campaignGoalsCondition, Goal.ITEM_TYPE));
+    /**
+     * Computes the details of the specified campaigns, all the counts of a same item type being retrieved in a single batch.
+     */
+    private List<CampaignDetail> getCampaignDetails(List<Campaign> campaigns) {
+        List<CampaignDetail> campaignDetails = new ArrayList<>(campaigns.size());
+        if (campaigns.isEmpty()) {
+            return campaignDetails;
+        }
 
-        // sessions
-        Condition sessionEngagedCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-        sessionEngagedCondition.setParameter("propertyName", "systemProperties.campaigns." + campaign.getMetadata().getId() + "Engaged");
-        sessionEngagedCondition.setParameter("comparisonOperator", "exists");
-        campaignDetail.setCampaignSessionViews(persistenceService.queryCount(sessionEngagedCondition, Session.ITEM_TYPE));
+        List<Condition> profileEngagedConditions = new ArrayList<>(campaigns.size());
+        List<Condition> campaignGoalsConditions = new ArrayList<>(campaigns.size());
+        List<Condition> sessionConditions = new ArrayList<>(campaigns.size() * 2);
+        for (Campaign campaign : campaigns) {
+            // engaged profile
+            Condition profileEngagedCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+            profileEngagedCondition.setParameter("propertyName", "systemProperties.campaigns." + campaign.getMetadata().getId() + "Engaged");
+            profileEngagedCondition.setParameter("comparisonOperator", "exists");
+            profileEngagedConditions.add(profileEngagedCondition);
+
+            // number of goals
+            Condition campaignGoalsCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+            campaignGoalsCondition.setParameter("propertyName", "campaignId");
+            campaignGoalsCondition.setParameter("comparisonOperator", "equals");
+            campaignGoalsCondition.setParameter("propertyValue", campaign.getMetadata().getId());
+            campaignGoalsConditions.add(campaignGoalsCondition);
+
+            if (!rollupsEnabled) {
+                // sessions
+                Condition sessionEngagedCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+                sessionEngagedCondition.setParameter("propertyName", "systemProperties.campaigns." + campaign.getMetadata().getId() + "Engaged");
+                sessionEngagedCondition.setParameter("comparisonOperator", "exists");
+                sessionConditions.add(sessionEngagedCondition);
+
+                // sessions
+                Condition sessionConvertedCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+                sessionConvertedCondition.setParameter("propertyName", "systemProperties.goals." + campaign.getPrimaryGoal() + "TargetReached");
+                sessionConvertedCondition.setParameter("comparisonOperator", "exists");
+                sessionConditions.add(sessionConvertedCondition);
+            }
+        }
 
-        // sessions
-        Condition sessionConvertedCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-        sessionConvertedCondition.setParameter("propertyName", "systemProperties.goals." + campaign.getPrimaryGoal() + "TargetReached");
-        sessionConvertedCondition.setParameter("comparisonOperator", "exists");
-        campaignDetail.setCampaignSessionSuccess(persistenceService.queryCount(sessionConvertedCondition, Session.ITEM_TYPE));
+        List<Long> engagedProfiles = queryCounts(profileEngagedConditions, Profile.ITEM_TYPE);
+        List<Long> numberOfGoals = queryCounts(campaignGoalsConditions, Goal.ITEM_TYPE);
+        List<Long> sessionCounts = rollupsEnabled ? null : queryCounts(sessionConditions, Session.ITEM_TYPE);
+
+        for (int i = 0; i < campaigns.size(); i++) {
+            Campaign campaign = campaigns.get(i);
+            CampaignDetail campaignDetail = new CampaignDetail(campaign);
+            campaignDetail.setEngagedProfiles(engagedProfiles.get(i));
+            campaignDetail.setNumberOfGoals(numberOfGoals.get(i));
+
+            if (rollupsEnabled) {
+                // sessions, answered from the rollups
+                campaignDetail.setCampaignSessionViews(getRollupCounts(ReportRollup.CAMPAIGN_ROLLUP, campaign.getMetadata().getId(), RollupCounter.ENGAGED, false).get("_all"));
+                campaignDetail.setCampaignSessionSuccess(campaign.getPrimaryGoal() != null ?
+                        getRollupCounts(ReportRollup.GOAL_ROLLUP, campaign.getPrimaryGoal(), RollupCounter.TARGET, false).get("_all") : 0);
+            } else {
+                campaignDetail.setCampaignSessionViews(sessionCounts.get(i * 2));
+                campaignDetail.setCampaignSessionSuccess(sessionCounts.get(i * 2 + 1));
+            }
 
-        // conversion
-        campaignDetail.setConversionRate((double) campaignDetail.getCampaignSessionSuccess() / (campaignDetail.getCampaignSessionViews() > 0  ? (double) campaignDetail.getCampaignSessionViews() : 1));
-        return campaignDetail;
+            // conversion
+            campaignDetail.setConversionRate((double) campaignDetail.getCampaignSessionSuccess() / (campaignDetail.getCampaignSessionViews() > 0  ? (double) campaignDetail.getCampaignSessionViews() : 1));
+            campaignDetails.add(campaignDetail);
+        }
+        return campaignDetails;
     }
 
     public Campaign getCampaign(String id) {
@@ -441,33 +545,19 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
     }
 
     public GoalReport getGoalReport(String goalId, AggregateQuery query) {
-        Condition condition = new Condition(definitionsService.getConditionType("booleanCondition"));
-        final ArrayList<Condition> list = new ArrayList<Condition>();
-        condition.setParameter("operator", "and");
-        condition.setParameter("subConditions", list);
-
         Goal g = getGoal(goalId);
 
-        Condition goalTargetCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-        goalTargetCondition.setParameter("propertyName",  "systemProperties.goals." + goalId+ "TargetReached");
-        goalTargetCondition.setParameter("comparisonOperator", "exists");
-
-        Condition goalStartCondition;
-        if (g.getStartEvent() == null && g.getCampaignId() != null) {
-            goalStartCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-            goalStartCondition.setParameter("propertyName", "systemProperties.campaigns." + g.getCampaignId() + "Engaged");
-            goalStartCondition.setParameter("comparisonOperator", "exists");
-        } else if (g.getStartEvent() == null) {
-            goalStartCondition = new Condition(definitionsService.getConditionType("matchAllCondition"));
-        } else {
-            goalStartCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
-            goalStartCondition.setParameter("propertyName", "systemProperties.goals." + goalId + "StartReached");
-            goalStartCondition.setParameter("comparisonOperator", "exists");
+        if (canUseRollups(g, query)) {
+            return getGoalReportFromRollups(g, query != null && query.getAggregate() != null && query.getAggregate().getProperty() != null);
         }
 
+        Condition goalTargetCondition = getGoalTargetCondition(goalId);
+        Condition goalStartCondition = getGoalStartCondition(g);
+
+        Condition queryCondition = null;
         if (query != null && query.getCondition() != null) {
             ParserHelper.resolveConditionType(definitionsService, query.getCondition());
-            list.add(query.getCondition());
+            queryCondition = query.getCondition();
         }
 
         Map<String, Long> all;
@@ -475,8 +565,8 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
 
         // resolve aggregate
         BaseAggregate aggregate = null;
-        String property = query.getAggregate().getProperty();
-        if(query != null && query.getAggregate() != null && property != null) {
+        String property = query != null && query.getAggregate() != null ? query.getAggregate().getProperty() : null;
+        if(property != null) {
             if (query.getAggregate().getType() != null){
                 // try to guess the aggregate type
                 if(query.getAggregate().getType().equals("date")) {
@@ -499,23 +589,115 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         }
 
         if (aggregate != null) {
-            list.add(goalStartCondition);
-            all = persistenceService.aggregateQuery(condition, aggregate, Session.ITEM_TYPE);
-
-            list.remove(goalStartCondition);
-            list.add(goalTargetCondition);
-            match = persistenceService.aggregateQuery(condition, aggregate, Session.ITEM_TYPE);
+            all = persistenceService.aggregateQuery(getAndCondition(queryCondition, goalStartCondition), aggregate, Session.ITEM_TYPE);
+            match = persistenceService.aggregateQuery(getAndCondition(queryCondition, goalTargetCondition), aggregate, Session.ITEM_TYPE);
         } else {
-            list.add(goalStartCondition);
+            // both counts are retrieved in a single round trip
+            List<Long> counts = queryCounts(Arrays.asList(getAndCondition(queryCondition, goalStartCondition),
+                    getAndCondition(queryCondition, goalTargetCondition)), Session.ITEM_TYPE);
             all = new HashMap<String, Long>();
-            all.put("_filtered", persistenceService.queryCount(condition, Session.ITEM_TYPE));
-
-            list.remove(goalStartCondition);
-            list.add(goalTargetCondition);
+            all.put("_filtered", counts.get(0));
             match = new HashMap<String, Long>();
-            match.put("_filtered", persistenceService.queryCount(condition, Session.ITEM_TYPE));
+            match.put("_filtered", counts.get(1));
+        }
+
+        return getGoalReport(all, match);
+    }
+
+    public Map<String, GoalReport> getGoalReports(List<String> goalIds) {
+        Map<String, GoalReport> reports = new LinkedHashMap<>();
+        if (goalIds == null || goalIds.isEmpty()) {
+            return reports;
         }
 
+        Map<String, Goal> goals = new HashMap<>();
+        for (Goal goal : persistenceService.query("metadata.id", goalIds.toArray(new String[goalIds.size()]), null, Goal.class)) {
+            ParserHelper.resolveConditionType(definitionsService, goal.getStartEvent());
+            ParserHelper.resolveConditionType(definitionsService, goal.getTargetEvent());
+            goals.put(goal.getMetadata().getId(), goal);
+        }
+
+        List<String> countedGoalIds = new ArrayList<>();
+        List<Condition> sessionConditions = new ArrayList<>();
+        for (String goalId : goalIds) {
+            Goal goal = goals.get(goalId);
+            if (goal == null) {
+                continue;
+            }
+            if (canUseRollups(goal, null)) {
+                reports.put(goalId, getGoalReportFromRollups(goal, false));
+            } else {
+                // keep the requested order, the report is filled once the batch is executed
+                reports.put(goalId, null);
+                countedGoalIds.add(goalId);
+                sessionConditions.add(getGoalStartCondition(goal));
+                sessionConditions.add(getGoalTargetCondition(goalId));
+            }
+        }
+
+        if (!countedGoalIds.isEmpty()) {
+            List<Long> counts = queryCounts(sessionConditions, Session.ITEM_TYPE);
+            for (int i = 0; i < countedGoalIds.size(); i++) {
+                Map<String, Long> all = new HashMap<String, Long>();
+                all.put("_filtered", counts.get(i * 2));
+                Map<String, Long> match = new HashMap<String, Long>();
+                match.put("_filtered", counts.get(i * 2 + 1));
+                reports.put(countedGoalIds.get(i), getGoalReport(all, match));
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Counts the items matching each condition in a single round trip, counting them one by one if the batch failed.
+     */
+    private List<Long> queryCounts(List<Condition> conditions, String itemType) {
+        List<Long> counts = persistenceService.queryCountBatch(conditions, itemType);
+        if (counts == null) {
+            counts = new ArrayList<>(conditions.size());
+            for (Condition condition : conditions) {
+                counts.add(persistenceService.queryCount(condition, itemType));
+            }
+        }
+        return counts;
+    }
+
+    private Condition getGoalTargetCondition(String goalId) {
+        Condition goalTargetCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+        goalTargetCondition.setParameter("propertyName",  "systemProperties.goals." + goalId+ "TargetReached");
+        goalTargetCondition.setParameter("comparisonOperator", "exists");
+        return goalTargetCondition;
+    }
+
+    private Condition getGoalStartCondition(Goal g) {
+        Condition goalStartCondition;
+        if (g.getStartEvent() == null && g.getCampaignId() != null) {
+            goalStartCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+            goalStartCondition.setParameter("propertyName", "systemProperties.campaigns." + g.getCampaignId() + "Engaged");
+            goalStartCondition.setParameter("comparisonOperator", "exists");
+        } else if (g.getStartEvent() == null) {
+            goalStartCondition = new Condition(definitionsService.getConditionType("matchAllCondition"));
+        } else {
+            goalStartCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+            goalStartCondition.setParameter("propertyName", "systemProperties.goals." + g.getMetadata().getId() + "StartReached");
+            goalStartCondition.setParameter("comparisonOperator", "exists");
+        }
+        return goalStartCondition;
+    }
+
+    private Condition getAndCondition(Condition queryCondition, Condition goalCondition) {
+        Condition condition = new Condition(definitionsService.getConditionType("booleanCondition"));
+        final ArrayList<Condition> list = new ArrayList<Condition>();
+        condition.setParameter("operator", "and");
+        condition.setParameter("subConditions", list);
+        if (queryCondition != null) {
+            list.add(queryCondition);
+        }
+        list.add(goalCondition);
+        return condition;
+    }
+
+    private GoalReport getGoalReport(Map<String, Long> all, Map<String, Long> match) {
         GoalReport report = new GoalReport();
 
         GoalReport.Stat stat = new GoalReport.Stat();
@@ -540,6 +722,274 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         return report;
     }
 
+    private boolean canUseRollups(Goal goal, AggregateQuery query) {
+        if (!rollupsEnabled || goal == null) {
+            return false;
+        }
+        if (goal.getStartEvent() == null && goal.getCampaignId() == null) {
+            // the start count is the number of all sessions, which is not tracked by the rollups
+            return false;
+        }
+        if (query == null) {
+            return true;
+        }
+        if (query.getCondition() != null) {
+            // ad-hoc filters can only be answered by the raw aggregation
+            return false;
+        }
+        Aggregate aggregate = query.getAggregate();
+        if (aggregate == null || aggregate.getProperty() == null) {
+            return true;
+        }
+        return aggregate.getProperty().equals(rollupsDimension) && (aggregate.getType() == null || aggregate.getType().equals("terms"));
+    }
+
+    private GoalReport getGoalReportFromRollups(Goal goal, boolean split) {
+        Map<String, Long> all;
+        if (goal.getStartEvent() == null) {
+            all = getRollupCounts(ReportRollup.CAMPAIGN_ROLLUP, goal.getCampaignId(), RollupCounter.ENGAGED, split);
+        } else {
+            all = getRollupCounts(ReportRollup.GOAL_ROLLUP, goal.getMetadata().getId(), RollupCounter.START, split);
+        }
+        Map<String, Long> match = getRollupCounts(ReportRollup.GOAL_ROLLUP, goal.getMetadata().getId(), RollupCounter.TARGET, split);
+
+        GoalReport report = new GoalReport();
+
+        GoalReport.Stat stat = new GoalReport.Stat();
+        stat.setStartCount(all.remove("_all"));
+        stat.setTargetCount(match.remove("_all"));
+        stat.setConversionRate(stat.getStartCount() > 0 ? (float) stat.getTargetCount() / (float) stat.getStartCount() : 0);
+        report.setGlobalStats(stat);
+        report.setSplit(new LinkedList<GoalReport.Stat>());
+        for (Map.Entry<String, Long> entry : all.entrySet()) {
+            GoalReport.Stat splitStat = new GoalReport.Stat();
+            splitStat.setKey(entry.getKey());
+            splitStat.setStartCount(entry.getValue());
+            splitStat.setTargetCount(match.containsKey(entry.getKey()) ? match.get(entry.getKey()) : 0);
+            splitStat.setConversionRate(splitStat.getStartCount() > 0 ? (float) splitStat.getTargetCount() / (float) splitStat.getStartCount() : 0);
+            splitStat.setPercentage(stat.getTargetCount() > 0 ? (float) splitStat.getTargetCount() / (float) stat.getTargetCount() : 0);
+            report.getSplit().add(splitStat);
+        }
+        return report;
+    }
+
+    /**
+     * Sums a counter of the rollups of a goal or campaign, adding the increments of this node that have not been flushed yet. The sums are computed by the persistence
+     * service so that reports don't load the daily rollups. The total is returned under the "_all" key and, if split is requested, the sum for each value of the rollups
+     * dimension under that value, "_missing" holding the sum of the rollups without a value.
+     */
+    private Map<String, Long> getRollupCounts(String rollupType, String targetId, int counterType, boolean split) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Condition targetCondition = getAndCondition(getRollupPropertyCondition("rollupType", rollupType), getRollupPropertyCondition("targetId", targetId));
+        counts.put("_all", sumRollups(targetCondition, counterType));
+        split = split && rollupsDimension != null;
+        if (split) {
+            Condition dimensionCondition = getAndCondition(targetCondition, getRollupPropertyCondition("dimension", rollupsDimension));
+            Map<String, Long> dimensionValues = persistenceService.aggregateQuery(dimensionCondition, new TermsAggregate("dimensionValue"), ReportRollup.ITEM_TYPE);
+            dimensionValues.remove("_all");
+            dimensionValues.remove("_filtered");
+            for (String dimensionValue : dimensionValues.keySet()) {
+                Condition valueCondition;
+                if ("_missing".equals(dimensionValue)) {
+                    valueCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+                    valueCondition.setParameter("propertyName", "dimensionValue");
+                    valueCondition.setParameter("comparisonOperator", "missing");
+                } else {
+                    valueCondition = getRollupPropertyCondition("dimensionValue", dimensionValue);
+                }
+                counts.put(dimensionValue, sumRollups(getAndCondition(dimensionCondition, valueCondition), counterType));
+            }
+        }
+        for (RollupCounter counter : rollupCounters.values()) {
+            if (counter.rollupType.equals(rollupType) && counter.targetId.equals(targetId)) {
+                // counters hold the increments not flushed yet
+                long count = counter.getCount(counterType);
+                if (count > 0) {
+                    counts.put("_all", counts.get("_all") + count);
+                    if (split) {
+                        String key = counter.dimensionValue != null ? counter.dimensionValue : "_missing";
+                        counts.put(key, (counts.containsKey(key) ? counts.get(key) : 0L) + count);
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    private long sumRollups(Condition condition, int counterType) {
+        Map<String, Double> metrics = persistenceService.getSingleValuesMetrics(condition, new String[]{"sum"}, ROLLUP_COUNTER_FIELDS[counterType], ReportRollup.ITEM_TYPE);
+        Double sum = metrics != null ? metrics.get("_sum") : null;
+        return sum != null ? sum.longValue() : 0;
+    }
+
+    private Condition getRollupPropertyCondition(String propertyName, String value) {
+        Condition condition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+        condition.setParameter("propertyName", propertyName);
+        condition.setParameter("comparisonOperator", "equals");
+        condition.setParameter("propertyValue", value);
+        return condition;
+    }
+
+    /**
+     * Counts the session of the event in a rollup, the baseline reports counting distinct sessions. The day of the last count of each rollup is kept in the session
+     * system properties so that a session is counted once per day, whatever the number of events firing the rule.
+     *
+     * @return {@code true} if the session was counted and has to be saved
+     */
+    private boolean incrementRollup(String rollupType, String targetId, Event event, int counterType) {
+        Session session = event.getSession();
+        if (session == null) {
+            return false;
+        }
+        Date day = getDay(event.getTimeStamp() != null ? event.getTimeStamp() : new Date());
+        String sessionKey = rollupType + "_" + targetId + "_" + ROLLUP_COUNTER_FIELDS[counterType];
+        Object countedRollups = session.getSystemProperties().get("rollups");
+        Map<String, Object> sessionRollups = new HashMap<>();
+        if (countedRollups instanceof Map) {
+            sessionRollups.putAll((Map<String, Object>) countedRollups);
+        }
+        Object countedDay = sessionRollups.get(sessionKey);
+        if (countedDay instanceof Number && ((Number) countedDay).longValue() == day.getTime()) {
+            return false;
+        }
+        sessionRollups.put(sessionKey, day.getTime());
+        session.getSystemProperties().put("rollups", sessionRollups);
+
+        String dimensionValue = getDimensionValue(event.getSession());
+        addToRollup(rollupType, targetId, day, dimensionValue, counterType == RollupCounter.START ? 1 : 0, counterType == RollupCounter.TARGET ? 1 : 0,
+                counterType == RollupCounter.ENGAGED ? 1 : 0);
+        return true;
+    }
+
+    private void addToRollup(String rollupType, String targetId, Date day, String dimensionValue, long startCount, long targetCount, long engagedCount) {
+        String key = rollupType + "_" + targetId + "_" + day.getTime() + "_" + dimensionValue;
+        while (true) {
+            RollupCounter counter = rollupCounters.get(key);
+            if (counter == null) {
+                counter = new RollupCounter(rollupType, targetId, day, dimensionValue);
+                RollupCounter previousCounter = rollupCounters.putIfAbsent(key, counter);
+                if (previousCounter != null) {
+                    counter = previousCounter;
+                }
+            }
+            synchronized (counter) {
+                if (!counter.retired) {
+                    counter.startCount += startCount;
+                    counter.targetCount += targetCount;
+                    counter.engagedCount += engagedCount;
+                    return;
+                }
+            }
+            // the counter was removed by a flush in the meantime, use a new one
+        }
+    }
+
+    private String getDimensionValue(Session session) {
+        if (rollupsDimension == null || session == null) {
+            return null;
+        }
+        try {
+            Object value = PropertyUtils.getProperty(session, rollupsDimension);
+            return value != null ? value.toString() : null;
+        } catch (Exception e) {
+            logger.debug("Cannot resolve rollup dimension " + rollupsDimension + " on session " + session.getItemId(), e);
+            return null;
+        }
+    }
+
+    private Date getDay(Date date) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+
+    /**
+     * Adds the increments counted since the last flush to the rollups of this node. Each rollup document is only written by its node, so loading it
+     * and adding the increments is safe. Counters that were not incremented since the previous flush and are older than yesterday are removed, a
+     * late event for their day creating a new counter whose increments are added the same way.
+     */
+    private void flushRollups() {
+        long oldestKeptDay = getDay(new Date()).getTime() - 24L * 60L * 60L * 1000L;
+        for (Map.Entry<String, RollupCounter> entry : rollupCounters.entrySet()) {
+            RollupCounter counter = entry.getValue();
+            long startCount;
+            long targetCount;
+            long engagedCount;
+            synchronized (counter) {
+                startCount = counter.startCount;
+                targetCount = counter.targetCount;
+                engagedCount = counter.engagedCount;
+                counter.startCount = 0;
+                counter.targetCount = 0;
+                counter.engagedCount = 0;
+                if (startCount == 0 && targetCount == 0 && engagedCount == 0) {
+                    if (counter.day.getTime() < oldestKeptDay) {
+                        counter.retired = true;
+                        rollupCounters.remove(entry.getKey(), counter);
+                    }
+                    continue;
+                }
+            }
+            ReportRollup rollup = counter.toRollup();
+            ReportRollup storedRollup = persistenceService.load(rollup.getItemId(), ReportRollup.class);
+            rollup.setStartCount(startCount + (storedRollup != null ? storedRollup.getStartCount() : 0));
+            rollup.setTargetCount(targetCount + (storedRollup != null ? storedRollup.getTargetCount() : 0));
+            rollup.setEngagedCount(engagedCount + (storedRollup != null ? storedRollup.getEngagedCount() : 0));
+            if (!persistenceService.save(rollup)) {
+                // keep the increments for the next flush
+                addToRollup(counter.rollupType, counter.targetId, counter.day, counter.dimensionValue, startCount, targetCount, engagedCount);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the identifier of this node in the rollups, generated once and kept in the Karaf data directory so that it survives restarts.
+     */
+    private String loadRollupsNodeId() {
+        File nodeIdFile = new File(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "unomi-rollups-node-id");
+        try {
+            if (nodeIdFile.exists()) {
+                String nodeId = new String(Files.readAllBytes(nodeIdFile.toPath()), StandardCharsets.UTF_8).trim();
+                if (nodeId.length() > 0) {
+                    return nodeId;
+                }
+            }
+            String nodeId = UUID.randomUUID().toString();
+            Files.write(nodeIdFile.toPath(), nodeId.getBytes(StandardCharsets.UTF_8));
+            return nodeId;
+        } catch (IOException e) {
+            logger.error("Couldn't read or store the rollups node identifier in " + nodeIdFile + ", set rollups.nodeId to keep rollups across restarts", e);
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    public boolean canHandle(Event event) {
+        return rollupsEnabled && "ruleFired".equals(event.getEventType()) && event.getTarget() instanceof Rule;
+    }
+
+    public int onEvent(Event event) {
+        Rule rule = (Rule) event.getTarget();
+        String ruleId = rule.getMetadata().getId();
+        Set<String> tags = rule.getMetadata().getTags();
+        if (tags == null || tags.isEmpty()) {
+            return EventService.NO_CHANGE;
+        }
+        // only the rules generated for goals and campaigns are counted
+        boolean counted = false;
+        if (tags.contains(GOAL_START_RULE_TAG) && ruleId.endsWith("StartEvent")) {
+            counted = incrementRollup(ReportRollup.GOAL_ROLLUP, ruleId.substring(0, ruleId.length() - "StartEvent".length()), event, RollupCounter.START);
+        } else if (tags.contains(GOAL_TARGET_RULE_TAG) && ruleId.endsWith("TargetEvent")) {
+            counted = incrementRollup(ReportRollup.GOAL_ROLLUP, ruleId.substring(0, ruleId.length() - "TargetEvent".length()), event, RollupCounter.TARGET);
+        } else if (tags.contains(CAMPAIGN_ENTRY_RULE_TAG) && ruleId.endsWith("EntryEvent")) {
+            counted = incrementRollup(ReportRollup.CAMPAIGN_ROLLUP, ruleId.substring(0, ruleId.length() - "EntryEvent".length()), event, RollupCounter.ENGAGED);
+        }
+        return counted ? EventService.SESSION_UPDATED : EventService.NO_CHANGE;
+    }
+
     public Set<Goal> getGoalByTag(Tag tag, boolean recursive) {
         Set<Goal> goals = new LinkedHashSet<>();
         Set<Goal> directGoals = goalByTag.get(tag);
@@ -586,4 +1036,48 @@ public class GoalsServiceImpl implements GoalsService, SynchronousBundleListener
         }
     }
 
+    private class RollupCounter {
+        static final int START = 0;
+        static final int TARGET = 1;
+        static final int ENGAGED = 2;
+
+        private final String rollupType;
+        private final String targetId;
+        private final Date day;
+        private final String dimensionValue;
+        // increments since the last flush, guarded by the counter
+        private long startCount;
+        private long targetCount;
+        private long engagedCount;
+        private boolean retired;
+
+        RollupCounter(String rollupType, String targetId, Date day, String dimensionValue) {
+            this.rollupType = rollupType;
+            this.targetId = targetId;
+            this.day = day;
+            this.dimensionValue = dimensionValue;
+        }
+
+        synchronized long getCount(int counterType) {
+            return counterType == START ? startCount : counterType == TARGET ? targetCount : engagedCount;
+        }
+
+        ReportRollup toRollup() {
+            ReportRollup rollup = new ReportRollup(rollupType + "_" + targetId + "_" + day.getTime() + "_" + dimensionValue + "_" + rollupsNodeId);
+            rollup.setScope(Metadata.SYSTEM_SCOPE);
+            rollup.setRollupType(rollupType);
+            rollup.setTargetId(targetId);
+            rollup.setDay(day);
+            rollup.setDimension(rollupsDimension);
+            rollup.setDimensionValue(dimensionValue);
+            rollup.setNodeId(rollupsNodeId);
+            synchronized (this) {
+                rollup.setStartCount(startCount);
+                rollup.setTargetCount(targetCount);
+                rollup.setEngagedCount(engagedCount);
+            }
+            return rollup;
+        }
+    }
+
 }
@@ -20,6 +20,7 @@ package org.apache.unomi.services.services;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.karaf.cellar.core.ClusterManager;
 import org.apache.unomi.api.*;
 import org.apache.unomi.api.conditions.Condition;
 import org.apache.unomi.api.conditions.ConditionType;
@@ -39,6 +40,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProfileServiceImpl implements ProfileService, SynchronousBundleListener {
 
@@ -64,7 +68,51 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     private Timer purgeProfileTimer;
 
-    private List<PropertyType> allPropertyTypes;
+    private static final String PROPERTY_TYPES_CLUSTER_MAP = "org.apache.unomi.propertyTypes";
+    private static final String PROPERTY_TYPES_VERSION = "version";
+    private static final String PROFILE_ALIASES_CLUSTER_MAP = "org.apache.unomi.profileAliases";
+    private static final int RESOLVE_BATCH_SIZE = 1000;
+
+    private ClusterManager clusterManager;
+    private long propertyTypesReconcileInterval = 300000L;
+    private volatile PropertyTypes propertyTypes;
+    /**
+     * The version of the property types published in the cluster when they were last loaded.
+     */
+    private volatile String propertyTypesVersion;
+    private volatile long propertyTypesLoadTime;
+
+    private Map<ServiceReference<PropertyMergeStrategyExecutor>, PropertyMergeStrategyExecutor> propertyMergeStrategyExecutors = new ConcurrentHashMap<>();
+    private volatile MergePlan mergePlan;
+    private int profileMergeThreads = 4;
+    private ExecutorService profileMergeExecutor;
+
+    private int profileAliasCacheSize = 100000;
+    private long profileAliasesCacheTimeToLive = 10000L;
+
+    /**
+     * Merged profile id to master profile id. A profile is never unmerged, so these entries never become wrong, they may only point to a profile that
+     * was itself merged since.
+     */
+    private Map<String, String> profileAliasCache;
+    private Map<String, CachedProfileAliases> profileAliasesCache;
+    private Timer profileAliasesTimer;
+
+    private int conditionCacheSize = 1000;
+    /**
+     * Conditions matched against profiles and sessions, such as personalization filters, by value.
+     */
+    private Map<Condition, CompiledCondition> compiledConditions;
+
+    private boolean sessionProfileEmbedded = true;
+    private List<String> sessionProfileFields = Collections.emptyList();
+
+    private long sessionWriteWindow = 0;
+    private ScheduledExecutorService sessionWriteExecutor;
+    private final ConcurrentMap<String, PendingSessionWrite> pendingSessionWrites = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean sessionProfilesMigrationRunning = new AtomicBoolean();
+    private final AtomicInteger migratedSessionProfilesCount = new AtomicInteger(-1);
 
     public ProfileServiceImpl() {
         logger.info("Initializing profile service...");
@@ -89,6 +137,11 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     public void postConstruct() {
         logger.debug("postConstruct {" + bundleContext.getBundle() + "}");
 
+        profileAliasCache = createCache(profileAliasCacheSize);
+        profileAliasesCache = createCache(profileAliasCacheSize);
+        compiledConditions = createCache(conditionCacheSize);
+        profileMergeExecutor = Executors.newFixedThreadPool(Math.max(1, profileMergeThreads));
+
         processBundleStartup(bundleContext);
         for (Bundle bundle : bundleContext.getBundles()) {
             if (bundle.getBundleContext() != null) {
@@ -98,6 +151,28 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         bundleContext.addBundleListener(this);
         initializePurge();
         schedulePropertyTypeLoad();
+        scheduleProfileAliasesInvalidation();
+        if (sessionWriteWindow > 0) {
+            sessionWriteExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "unomi-session-writes");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(100, sessionWriteWindow / 5);
+            sessionWriteExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushSessionWrites(null, sessionWriteWindow);
+                    } catch (Throwable t) {
+                        logger.error("Error writing session changes", t);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
         logger.info("Profile service initialized.");
     }
 
@@ -105,6 +180,19 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         bundleContext.removeBundleListener(this);
         cancelPurge();
         cancelPropertyTypeLoad();
+        if (profileAliasesTimer != null) {
+            profileAliasesTimer.cancel();
+        }
+        profileMergeExecutor.shutdown();
+        if (sessionWriteExecutor != null) {
+            sessionWriteExecutor.shutdown();
+            try {
+                sessionWriteExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushSessionWrites(null, 0);
         logger.info("Profile service shutdown.");
     }
 
@@ -139,20 +227,158 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         this.purgeProfileInterval = purgeProfileInterval;
     }
 
+    public void setProfileMergeThreads(int profileMergeThreads) {
+        this.profileMergeThreads = profileMergeThreads;
+    }
+
+    public void bindPropertyMergeStrategyExecutor(ServiceReference<PropertyMergeStrategyExecutor> propertyMergeStrategyExecutorReference) {
+        PropertyMergeStrategyExecutor propertyMergeStrategyExecutor = bundleContext.getService(propertyMergeStrategyExecutorReference);
+        if (propertyMergeStrategyExecutor != null) {
+            propertyMergeStrategyExecutors.put(propertyMergeStrategyExecutorReference, propertyMergeStrategyExecutor);
+            mergePlan = null;
+        }
+    }
+
+    public void unbindPropertyMergeStrategyExecutor(ServiceReference<PropertyMergeStrategyExecutor> propertyMergeStrategyExecutorReference) {
+        if (propertyMergeStrategyExecutorReference == null) {
+            return;
+        }
+        propertyMergeStrategyExecutors.remove(propertyMergeStrategyExecutorReference);
+        mergePlan = null;
+    }
+
+    public void setProfileAliasCacheSize(int profileAliasCacheSize) {
+        this.profileAliasCacheSize = profileAliasCacheSize;
+    }
+
+    public void setProfileAliasesCacheTimeToLive(long profileAliasesCacheTimeToLive) {
+        this.profileAliasesCacheTimeToLive = profileAliasesCacheTimeToLive;
+    }
+
+    public void setSessionProfileEmbedded(boolean sessionProfileEmbedded) {
+        this.sessionProfileEmbedded = sessionProfileEmbedded;
+    }
+
+    public void setClusterManager(ClusterManager clusterManager) {
+        this.clusterManager = clusterManager;
+    }
+
+    public void setPropertyTypesReconcileInterval(long propertyTypesReconcileInterval) {
+        this.propertyTypesReconcileInterval = propertyTypesReconcileInterval;
+    }
+
+    public void setSessionWriteWindow(long sessionWriteWindow) {
+        this.sessionWriteWindow = sessionWriteWindow;
+    }
+
+    public void setSessionProfileFields(String sessionProfileFields) {
+        List<String> fields = new ArrayList<>();
+        for (String field : StringUtils.split(StringUtils.defaultString(sessionProfileFields), ", ")) {
+            if (field.equals("properties") || field.equals("systemProperties") || field.equals("segments") || field.equals("scores")
+                    || field.startsWith("properties.") || field.startsWith("systemProperties.")) {
+                fields.add(field);
+            } else {
+                logger.warn("Ignoring unsupported session profile field {}", field);
+            }
+        }
+        this.sessionProfileFields = fields;
+    }
+
+    /**
+     * Checks each second whether the property types were changed by another node of the cluster, and reloads them all at each reconciliation
+     * interval in case a change notification was missed.
+     */
     private void schedulePropertyTypeLoad() {
-        allPropertyTypesTimer = new Timer();
+        allPropertyTypesTimer = new Timer("unomi-property-types", true);
         TimerTask task = new TimerTask() {
             @Override
             public void run() {
                 try {
-                    allPropertyTypes = persistenceService.getAllItems(PropertyType.class);
+                    String version = getPropertyTypesClusterVersion();
+                    if (propertyTypes == null || (version != null && !version.equals(propertyTypesVersion))
+                            || System.currentTimeMillis() - propertyTypesLoadTime >= propertyTypesReconcileInterval) {
+                        loadPropertyTypes();
+                    }
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
                 }
             }
         };
-        allPropertyTypesTimer.scheduleAtFixedRate(task, 0, 5000);
-        logger.info("Scheduled task for property type loading each 5s");
+        allPropertyTypesTimer.schedule(task, 0, 1000);
+        logger.info("Scheduled task for property type loading, reconciled each {} ms", propertyTypesReconcileInterval);
+    }
+
+    private PropertyTypes getPropertyTypes() {
+        PropertyTypes propertyTypes = this.propertyTypes;
+        if (propertyTypes == null) {
+            propertyTypes = loadPropertyTypes();
+        }
+        return propertyTypes;
+    }
+
+    private synchronized PropertyTypes loadPropertyTypes() {
+        // read before loading, so that a change made during the load triggers another one
+        String version = getPropertyTypesClusterVersion();
+        PropertyTypes propertyTypes = new PropertyTypes(persistenceService.getAllItems(PropertyType.class));
+        this.propertyTypes = propertyTypes;
+        propertyTypesVersion = version;
+        propertyTypesLoadTime = System.currentTimeMillis();
+        return propertyTypes;
+    }
+
+    private synchronized void propertyTypesSaved(Collection<PropertyType> savedPropertyTypes) {
+        if (propertyTypes != null) {
+            // the saved instances belong to the callers, which may still modify them
+            List<PropertyType> copies = new ArrayList<>(savedPropertyTypes.size());
+            for (PropertyType savedPropertyType : savedPropertyTypes) {
+                copies.add(copyPropertyType(savedPropertyType));
+            }
+            propertyTypes = propertyTypes.with(copies);
+        }
+        notifyPropertyTypesChanged();
+    }
+
+    private static PropertyType copyPropertyType(PropertyType propertyType) {
+        return CustomObjectMapper.getObjectMapper().convertValue(propertyType, PropertyType.class);
+    }
+
+    private synchronized void propertyTypeDeleted(String propertyTypeId) {
+        if (propertyTypes != null) {
+            propertyTypes = propertyTypes.without(propertyTypeId);
+        }
+        notifyPropertyTypesChanged();
+    }
+
+    /**
+     * Publishes a new version of the property types, so that the other nodes of the cluster reload them.
+     */
+    private void notifyPropertyTypesChanged() {
+        if (clusterManager == null) {
+            return;
+        }
+        try {
+            // make the change visible to the nodes reloading the property types
+            persistenceService.refresh();
+            Map<String, String> versions = clusterManager.getMap(PROPERTY_TYPES_CLUSTER_MAP);
+            String version = UUID.randomUUID().toString();
+            String previousVersion = versions.put(PROPERTY_TYPES_VERSION, version);
+            if (previousVersion == null || previousVersion.equals(propertyTypesVersion)) {
+                propertyTypesVersion = version;
+            } else {
+                // another node changed the property types since they were loaded, reload them at the next check
+                propertyTypesVersion = null;
+            }
+        } catch (Exception e) {
+            logger.warn("Couldn't notify the cluster of the property types change, other nodes will reconcile them later", e);
+        }
+    }
+
+    private String getPropertyTypesClusterVersion() {
+        if (clusterManager == null) {
+            return null;
+        }
+        Map<String, String> versions = clusterManager.getMap(PROPERTY_TYPES_CLUSTER_MAP);
+        return versions.get(PROPERTY_TYPES_VERSION);
     }
 
     private void cancelPropertyTypeLoad() {
@@ -258,6 +484,7 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     }
 
     public PartialList<Session> searchSessions(Query query) {
+        flushSessionWrites(null, 0);
         return doSearch(query, Session.class);
     }
 
@@ -281,16 +508,26 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
     public boolean setPropertyType(PropertyType property) {
         PropertyType previousProperty = persistenceService.load(property.getItemId(), PropertyType.class);
         if (previousProperty == null) {
-            return persistenceService.save(property);
+            if (persistenceService.save(property)) {
+                propertyTypesSaved(Collections.singletonList(property));
+                return true;
+            }
         } else if (merge(previousProperty, property)) {
-            return persistenceService.save(previousProperty);
+            if (persistenceService.save(previousProperty)) {
+                propertyTypesSaved(Collections.singletonList(previousProperty));
+                return true;
+            }
         }
         return false;
     }
 
     @Override
     public boolean deletePropertyType(String propertyId) {
-        return persistenceService.remove(propertyId, PropertyType.class);
+        if (persistenceService.remove(propertyId, PropertyType.class)) {
+            propertyTypeDeleted(propertyId);
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -395,7 +632,11 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         if (profile.getItemId() == null) {
             return null;
         }
-        persistenceService.save(profile);
+        // only the changed fields are sent, unless the profile has to be reindexed as a whole
+        Map<String, Object> changes = profile.getChanges();
+        if (changes == null || (!changes.isEmpty() && !persistenceService.update(profile, changes))) {
+            persistenceService.save(profile);
+        }
         return persistenceService.load(profile.getItemId(), Profile.class);
     }
 
@@ -433,6 +674,28 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             persistenceService.removeByQuery(mergeCondition, Profile.class);
 
             persistenceService.remove(profileId, Profile.class);
+
+            // the aliases of the profile and its own alias, if it was merged, are deleted with it
+            Set<String> aliases = getProfileAliases(profileId);
+            ProfileAlias profileAlias = persistenceService.load(profileId, ProfileAlias.class);
+            Condition aliasesCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+            aliasesCondition.setParameter("propertyName", "masterProfileId");
+            aliasesCondition.setParameter("comparisonOperator", "equals");
+            aliasesCondition.setParameter("propertyValue", profileId);
+            persistenceService.removeByQuery(aliasesCondition, ProfileAlias.class);
+            persistenceService.remove(profileId, ProfileAlias.class);
+
+            for (String alias : aliases) {
+                profileAliasCache.remove(alias);
+            }
+            profileAliasCache.remove(profileId);
+            profileAliasesCache.remove(profileId);
+            if (profileAlias != null) {
+                profileAliasesCache.remove(profileAlias.getMasterProfileId());
+                publishProfileAliasesChange(profileId, profileAlias.getMasterProfileId());
+            } else {
+                publishProfileAliasesChange(profileId);
+            }
         }
     }
 
@@ -458,66 +721,323 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             allProfileProperties.addAll(profile.getProperties().keySet());
         }
 
-        Collection<PropertyType> profilePropertyTypes = getAllPropertyTypes("profiles");
-        Map<String, PropertyType> profilePropertyTypeById = new HashMap<>();
-        for (PropertyType propertyType : profilePropertyTypes) {
-            profilePropertyTypeById.put(propertyType.getMetadata().getId(), propertyType);
-        }
         Set<String> profileIdsToMerge = new TreeSet<>();
         for (Profile profileToMerge : profilesToMerge) {
             profileIdsToMerge.add(profileToMerge.getItemId());
         }
         logger.info("Merging profiles " + profileIdsToMerge + " into profile " + masterProfile.getItemId());
 
+        MergePlan mergePlan = getMergePlan();
         for (String profileProperty : allProfileProperties) {
-            PropertyType propertyType = profilePropertyTypeById.get(profileProperty);
-            String propertyMergeStrategyId = "defaultMergeStrategy";
-            if (propertyType != null) {
-                if (propertyType.getMergeStrategy() != null && propertyMergeStrategyId.length() > 0) {
-                    propertyMergeStrategyId = propertyType.getMergeStrategy();
+            PropertyMergeStep propertyMergeStep = mergePlan.getStep(profileProperty);
+            for (PropertyMergeStrategyExecutor propertyMergeStrategyExecutor : propertyMergeStep.executors) {
+                propertyMergeStrategyExecutor.mergeProperty(profileProperty, propertyMergeStep.propertyType, profilesToMerge, masterProfile);
+            }
+        }
+
+        // we now have to merge the profile's segments
+        for (Profile profile : profilesToMerge) {
+            masterProfile.getSegments().addAll(profile.getSegments());
+        }
+
+        return masterProfile;
+    }
+
+    public boolean addProfileAlias(String profileId, String masterProfileId) {
+        if (profileId.equals(masterProfileId)) {
+            return false;
+        }
+        boolean saved = persistenceService.save(new ProfileAlias(profileId, masterProfileId));
+        profileAliasCache.put(profileId, masterProfileId);
+
+        // compact chains : the aliases of the merged profile now directly point to the new master
+        Condition aliasesCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+        aliasesCondition.setParameter("propertyName", "masterProfileId");
+        aliasesCondition.setParameter("comparisonOperator", "equals");
+        aliasesCondition.setParameter("propertyValue", profileId);
+        persistenceService.updateByQuery(aliasesCondition, ProfileAlias.class, "masterProfileId", masterProfileId);
+
+        profileAliasesCache.remove(profileId);
+        profileAliasesCache.remove(masterProfileId);
+        publishProfileAliasesChange(profileId, masterProfileId);
+        return saved;
+    }
+
+    /**
+     * Publishes the profiles whose aliases changed, so that the other nodes of the cluster remove them from their aliases cache.
+     */
+    private void publishProfileAliasesChange(String... profileIds) {
+        if (clusterManager == null) {
+            return;
+        }
+        try {
+            Map<String, Long> changes = clusterManager.getMap(PROFILE_ALIASES_CLUSTER_MAP);
+            Long changeTime = System.currentTimeMillis();
+            for (String profileId : profileIds) {
+                changes.put(profileId, changeTime);
+            }
+        } catch (Exception e) {
+            logger.warn("Couldn't notify the cluster of the aliases change of profiles " + Arrays.toString(profileIds)
+                    + ", other nodes will reload them when their cache expires", e);
+        }
+    }
+
+    /**
+     * Checks each second the profiles whose aliases were changed on any node of the cluster, and removes them from the aliases cache. Changes are
+     * removed from the cluster once older than the cache time to live, as the entries cached before them have expired anyway.
+     */
+    private void scheduleProfileAliasesInvalidation() {
+        if (clusterManager == null) {
+            return;
+        }
+        profileAliasesTimer = new Timer("unomi-profile-aliases", true);
+        profileAliasesTimer.schedule(new TimerTask() {
+            private Map<String, Long> seenChanges = new HashMap<>();
+
+            @Override
+            public void run() {
+                try {
+                    Map<String, Long> changes = clusterManager.getMap(PROFILE_ALIASES_CLUSTER_MAP);
+                    Map<String, Long> currentChanges = new HashMap<>(changes);
+                    // keep a margin for the clock differences between the nodes
+                    long expiredChangeTime = System.currentTimeMillis() - profileAliasesCacheTimeToLive - 60000L;
+                    for (Map.Entry<String, Long> change : currentChanges.entrySet()) {
+                        if (!change.getValue().equals(seenChanges.get(change.getKey()))) {
+                            profileAliasesCache.remove(change.getKey());
+                        }
+                        if (change.getValue() < expiredChangeTime) {
+                            changes.remove(change.getKey());
+                        }
+                    }
+                    seenChanges = currentChanges;
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
                 }
             }
-            PropertyMergeStrategyType propertyMergeStrategyType = definitionsService.getPropertyMergeStrategyType(propertyMergeStrategyId);
-            if (propertyMergeStrategyType == null) {
-                // we couldn't find the strategy
-                if (propertyMergeStrategyId.equals("defaultMergeStrategy")) {
-                    logger.warn("Couldn't resolve default strategy, ignoring property merge for property " + profileProperty);
-                    continue;
+        }, 1000, 1000);
+    }
+
+    public String resolveProfileId(String profileId) {
+        String currentProfileId = profileId;
+        Set<String> visitedProfileIds = new HashSet<>();
+        while (visitedProfileIds.add(currentProfileId)) {
+            String masterProfileId = profileAliasCache.get(currentProfileId);
+            if (masterProfileId == null) {
+                ProfileAlias profileAlias = persistenceService.load(currentProfileId, ProfileAlias.class);
+                if (profileAlias == null) {
+                    return currentProfileId;
+                }
+                masterProfileId = profileAlias.getMasterProfileId();
+                profileAliasCache.put(currentProfileId, masterProfileId);
+            }
+            currentProfileId = masterProfileId;
+        }
+        logger.warn("Cycle detected in the aliases of profile {}, resolving to {}", profileId, currentProfileId);
+        return currentProfileId;
+    }
+
+    public Map<String, String> resolveProfileIds(Collection<String> profileIds) {
+        // one hop of the alias chains, only for the profiles that were merged
+        Map<String, String> masterProfileIds = new HashMap<>();
+        Set<String> knownProfileIds = new HashSet<>(profileIds);
+        Collection<String> pendingProfileIds = knownProfileIds;
+        while (!pendingProfileIds.isEmpty()) {
+            List<String> uncachedProfileIds = new ArrayList<>();
+            for (String profileId : pendingProfileIds) {
+                String masterProfileId = profileAliasCache.get(profileId);
+                if (masterProfileId != null) {
+                    masterProfileIds.put(profileId, masterProfileId);
                 } else {
-                    // todo: improper algorithm… it is possible that the defaultMergeStrategy couldn't be resolved here
-                    logger.warn("Couldn't resolve strategy " + propertyMergeStrategyId + " for property " + profileProperty + ", using default strategy instead");
-                    propertyMergeStrategyId = "defaultMergeStrategy";
-                    propertyMergeStrategyType = definitionsService.getPropertyMergeStrategyType(propertyMergeStrategyId);
+                    uncachedProfileIds.add(profileId);
+                }
+            }
+            for (int i = 0; i < uncachedProfileIds.size(); i += RESOLVE_BATCH_SIZE) {
+                List<String> batch = uncachedProfileIds.subList(i, Math.min(i + RESOLVE_BATCH_SIZE, uncachedProfileIds.size()));
+                for (ProfileAlias profileAlias : persistenceService.query("_id", batch.toArray(new String[batch.size()]), null, ProfileAlias.class)) {
+                    masterProfileIds.put(profileAlias.getItemId(), profileAlias.getMasterProfileId());
+                    profileAliasCache.put(profileAlias.getItemId(), profileAlias.getMasterProfileId());
+                }
+            }
+            // masters may have been merged as well
+            List<String> newProfileIds = new ArrayList<>();
+            for (String profileId : pendingProfileIds) {
+                String masterProfileId = masterProfileIds.get(profileId);
+                if (masterProfileId != null && knownProfileIds.add(masterProfileId)) {
+                    newProfileIds.add(masterProfileId);
                 }
             }
+            pendingProfileIds = newProfileIds;
+        }
 
-            // todo: find a way to avoid resolving PropertyMergeStrategyExecutor every time?
-            Collection<ServiceReference<PropertyMergeStrategyExecutor>> matchingPropertyMergeStrategyExecutors;
+        Map<String, String> resolvedProfileIds = new HashMap<>(profileIds.size());
+        for (String profileId : profileIds) {
+            String currentProfileId = profileId;
+            Set<String> visitedProfileIds = new HashSet<>();
+            while (masterProfileIds.containsKey(currentProfileId) && visitedProfileIds.add(currentProfileId)) {
+                currentProfileId = masterProfileIds.get(currentProfileId);
+            }
+            resolvedProfileIds.put(profileId, currentProfileId);
+        }
+        return resolvedProfileIds;
+    }
+
+    public Set<String> getProfileAliases(String profileId) {
+        CachedProfileAliases cachedProfileAliases = profileAliasesCache.get(profileId);
+        if (cachedProfileAliases != null && cachedProfileAliases.expirationTime > System.currentTimeMillis()) {
+            return cachedProfileAliases.aliases;
+        }
+
+        // aliases are usually compacted to point to the last master, but chains may remain until the compaction is done
+        Set<String> aliases = new LinkedHashSet<>();
+        List<String> profileIds = Collections.singletonList(profileId);
+        while (!profileIds.isEmpty()) {
+            List<String> newProfileIds = new ArrayList<>();
+            for (ProfileAlias profileAlias : persistenceService.query("masterProfileId", profileIds.toArray(new String[profileIds.size()]), null, ProfileAlias.class)) {
+                if (!profileAlias.getItemId().equals(profileId) && aliases.add(profileAlias.getItemId())) {
+                    newProfileIds.add(profileAlias.getItemId());
+                }
+            }
+            profileIds = newProfileIds;
+        }
+        aliases = Collections.unmodifiableSet(aliases);
+        profileAliasesCache.put(profileId, new CachedProfileAliases(aliases, System.currentTimeMillis() + profileAliasesCacheTimeToLive));
+        return aliases;
+    }
+
+    private Condition getProfileIdCondition(String profileId) {
+        Condition profileIdCondition = new Condition(definitionsService.getConditionType("sessionPropertyCondition"));
+        profileIdCondition.setParameter("propertyName", "profileId");
+        Set<String> aliases = getProfileAliases(profileId);
+        if (aliases.isEmpty()) {
+            profileIdCondition.setParameter("comparisonOperator", "equals");
+            profileIdCondition.setParameter("propertyValue", profileId);
+        } else {
+            List<String> profileIds = new ArrayList<>(aliases.size() + 1);
+            profileIds.add(profileId);
+            profileIds.addAll(aliases);
+            profileIdCondition.setParameter("comparisonOperator", "in");
+            profileIdCondition.setParameter("propertyValues", profileIds);
+        }
+        return profileIdCondition;
+    }
+
+    public List<Profile> mergeProfileGroups(List<List<Profile>> profileGroups) {
+        List<Future<Profile>> futures = new ArrayList<>(profileGroups.size());
+        for (final List<Profile> profileGroup : profileGroups) {
+            futures.add(profileMergeExecutor.submit(new Callable<Profile>() {
+                @Override
+                public Profile call() throws Exception {
+                    return profileGroup.isEmpty() ? null : mergeProfiles(profileGroup.get(0), profileGroup);
+                }
+            }));
+        }
+        List<Profile> masterProfiles = new ArrayList<>(profileGroups.size());
+        for (int i = 0; i < futures.size(); i++) {
+            Profile masterProfile = null;
             try {
-                matchingPropertyMergeStrategyExecutors = bundleContext.getServiceReferences(PropertyMergeStrategyExecutor.class, propertyMergeStrategyType.getFilter());
-                for (ServiceReference<PropertyMergeStrategyExecutor> propertyMergeStrategyExecutorReference : matchingPropertyMergeStrategyExecutors) {
-                    PropertyMergeStrategyExecutor propertyMergeStrategyExecutor = bundleContext.getService(propertyMergeStrategyExecutorReference);
-                    propertyMergeStrategyExecutor.mergeProperty(profileProperty, propertyType, profilesToMerge, masterProfile);
+                masterProfile = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while merging profile groups", e);
+            } catch (ExecutionException e) {
+                logger.error("Error merging profile group " + i, e.getCause());
+            }
+            masterProfiles.add(masterProfile);
+        }
+        return masterProfiles;
+    }
+
+    /**
+     * Retrieves the merge plan for the current profile property types, building it if the property types or the merge strategy executors changed.
+     */
+    private MergePlan getMergePlan() {
+        PropertyTypes currentPropertyTypes = getPropertyTypes();
+        MergePlan currentMergePlan = mergePlan;
+        if (currentMergePlan != null && currentMergePlan.propertyTypes == currentPropertyTypes) {
+            return currentMergePlan;
+        }
+        currentMergePlan = new MergePlan(currentPropertyTypes, currentPropertyTypes.getByTarget("profiles"));
+        mergePlan = currentMergePlan;
+        return currentMergePlan;
+    }
+
+    private PropertyMergeStep resolvePropertyMergeStep(String profileProperty, PropertyType propertyType) {
+        String propertyMergeStrategyId = "defaultMergeStrategy";
+        if (propertyType != null && StringUtils.isNotEmpty(propertyType.getMergeStrategy())) {
+            propertyMergeStrategyId = propertyType.getMergeStrategy();
+        }
+        PropertyMergeStrategyType propertyMergeStrategyType = definitionsService.getPropertyMergeStrategyType(propertyMergeStrategyId);
+        if (propertyMergeStrategyType == null) {
+            // we couldn't find the strategy
+            if (!propertyMergeStrategyId.equals("defaultMergeStrategy")) {
+                logger.warn("Couldn't resolve strategy " + propertyMergeStrategyId + " for property " + profileProperty + ", using default strategy instead");
+                propertyMergeStrategyType = definitionsService.getPropertyMergeStrategyType("defaultMergeStrategy");
+            }
+            if (propertyMergeStrategyType == null) {
+                logger.warn("Couldn't resolve default strategy, ignoring property merge for property " + profileProperty);
+                return null;
+            }
+        }
+
+        List<PropertyMergeStrategyExecutor> executors = new ArrayList<>();
+        try {
+            Filter filter = bundleContext.createFilter(propertyMergeStrategyType.getFilter());
+            for (Map.Entry<ServiceReference<PropertyMergeStrategyExecutor>, PropertyMergeStrategyExecutor> entry : propertyMergeStrategyExecutors.entrySet()) {
+                if (filter.match(entry.getKey())) {
+                    executors.add(entry.getValue());
                 }
-            } catch (InvalidSyntaxException e) {
-                logger.error("Error retrieving strategy implementation", e);
             }
+        } catch (InvalidSyntaxException e) {
+            logger.error("Error retrieving strategy implementation", e);
+        }
+        return new PropertyMergeStep(propertyType, executors);
+    }
 
+    /**
+     * The merge strategy executors to use for each profile property, resolved once per set of property types.
+     */
+    private class MergePlan {
+        private final PropertyTypes propertyTypes;
+        private final Map<String, PropertyType> propertyTypeById = new HashMap<>();
+        private final ConcurrentMap<String, PropertyMergeStep> steps = new ConcurrentHashMap<>();
+
+        MergePlan(PropertyTypes propertyTypes, Collection<PropertyType> profilePropertyTypes) {
+            this.propertyTypes = propertyTypes;
+            for (PropertyType propertyType : profilePropertyTypes) {
+                propertyTypeById.put(propertyType.getMetadata().getId(), propertyType);
+            }
         }
 
-        // we now have to merge the profile's segments
-        for (Profile profile : profilesToMerge) {
-            masterProfile.getSegments().addAll(profile.getSegments());
+        PropertyMergeStep getStep(String profileProperty) {
+            PropertyMergeStep step = steps.get(profileProperty);
+            if (step == null) {
+                step = resolvePropertyMergeStep(profileProperty, propertyTypeById.get(profileProperty));
+                if (step == null) {
+                    // strategies may not be loaded yet, don't keep the failed resolution
+                    return new PropertyMergeStep(propertyTypeById.get(profileProperty), Collections.<PropertyMergeStrategyExecutor>emptyList());
+                }
+                steps.put(profileProperty, step);
+            }
+            return step;
         }
+    }
 
-        return masterProfile;
+    private static class PropertyMergeStep {
+        private final PropertyType propertyType;
+        private final List<PropertyMergeStrategyExecutor> executors;
+
+        PropertyMergeStep(PropertyType propertyType, List<PropertyMergeStrategyExecutor> executors) {
+            this.propertyType = propertyType;
+            this.executors = executors;
+        }
     }
 
     public PartialList<Session> getProfileSessions(String profileId, String query, int offset, int size, String sortBy) {
+        flushSessionWrites(profileId, 0);
         if (StringUtils.isNotBlank(query)) {
-            return persistenceService.queryFullText("profileId", profileId, query, sortBy, Session.class, offset, size);
+            return persistenceService.queryFullText(query, getProfileIdCondition(profileId), sortBy, Session.class, offset, size);
         } else {
-            return persistenceService.query("profileId", profileId, sortBy, Session.class, offset, size);
+            return persistenceService.query(getProfileIdCondition(profileId), sortBy, Session.class, offset, size);
         }
     }
 
@@ -539,6 +1059,24 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                 s = persistenceService.load(sessionId, gc.getTime(), Session.class);
             }
         }
+        if (s != null && !sessionProfileEmbedded && isProfileReference(s)) {
+            // the session only stores some fields of its profile, attach the profile itself
+            Profile profile = load(s.getProfileId());
+            if (profile != null) {
+                Profile storedProfile = s.getProfile();
+                s.setProfile(profile);
+                if (isSessionProfileUpToDate(storedProfile, profile)) {
+                    // the session only has to be saved as a whole once the profile changes
+                    s.resetChanges();
+                }
+            }
+        }
+        if (s != null && sessionWriteWindow > 0) {
+            PendingSessionWrite pendingSessionWrite = pendingSessionWrites.get(sessionId);
+            if (pendingSessionWrite != null) {
+                pendingSessionWrite.applyTo(s);
+            }
+        }
         return s;
     }
 
@@ -546,37 +1084,280 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         if (session.getItemId() == null) {
             return null;
         }
-        return persistenceService.save(session) ? session : null;
+        boolean profileReference = !sessionProfileEmbedded && isProfileReference(session);
+        // sessions whose profile changed are saved as a whole
+        Map<String, Object> changes = session.getChanges();
+        if (sessionWriteWindow > 0) {
+            if (changes != null && session.getProfile() != null) {
+                coalesceSessionWrite(session, changes);
+                session.resetChanges();
+                return session;
+            }
+            // the session is written as a whole, the pending changes must not be applied after it
+            flushSessionWrite(session.getItemId());
+        }
+        if (changes != null && persistenceService.update(session, changes)) {
+            return session;
+        }
+        if (!profileReference) {
+            return persistenceService.save(session) ? session : null;
+        }
+        Session storedSession = getStoredSession(session);
+        if (!persistenceService.save(storedSession)) {
+            return null;
+        }
+        session.setVersion(storedSession.getVersion());
+        return session;
+    }
+
+    /**
+     * Merges the changes of the specified session with the ones waiting to be written, they will be written at once when the write window elapses.
+     */
+    private void coalesceSessionWrite(Session session, Map<String, Object> changes) {
+        // the changes are copied as they would be persisted, the session may still be modified by other requests
+        Map<String, Object> document = CustomObjectMapper.getObjectMapper().convertValue(changes, Map.class);
+        while (true) {
+            PendingSessionWrite pendingSessionWrite = pendingSessionWrites.get(session.getItemId());
+            if (pendingSessionWrite == null) {
+                pendingSessionWrite = new PendingSessionWrite(new Session(session.getItemId(), session.getProfile(), session.getTimeStamp(), session.getScope()));
+                PendingSessionWrite previousSessionWrite = pendingSessionWrites.putIfAbsent(session.getItemId(), pendingSessionWrite);
+                if (previousSessionWrite != null) {
+                    pendingSessionWrite = previousSessionWrite;
+                }
+            }
+            if (pendingSessionWrite.merge(document, session)) {
+                return;
+            }
+            // the pending write was flushed in the meantime
+            pendingSessionWrites.remove(session.getItemId(), pendingSessionWrite);
+        }
+    }
+
+    private void flushSessionWrite(String sessionId) {
+        PendingSessionWrite pendingSessionWrite = pendingSessionWrites.remove(sessionId);
+        if (pendingSessionWrite != null) {
+            writeSessionChanges(pendingSessionWrite);
+        }
+    }
+
+    /**
+     * Writes the pending session changes.
+     *
+     * @param profileId the profile whose sessions are written, or {@code null} to write all of them
+     * @param minAge    the time (in milliseconds) since the first pending change of a session above which it is written
+     */
+    private void flushSessionWrites(String profileId, long minAge) {
+        long now = System.currentTimeMillis();
+        for (PendingSessionWrite pendingSessionWrite : pendingSessionWrites.values()) {
+            Session session = pendingSessionWrite.session;
+            if ((profileId == null || profileId.equals(session.getProfileId())) && now - pendingSessionWrite.creationTime >= minAge
+                    && pendingSessionWrites.remove(session.getItemId(), pendingSessionWrite)) {
+                writeSessionChanges(pendingSessionWrite);
+            }
+        }
+    }
+
+    private void writeSessionChanges(PendingSessionWrite pendingSessionWrite) {
+        Map<String, Object> document = pendingSessionWrite.flush();
+        if (document.isEmpty() || persistenceService.update(pendingSessionWrite.session, document)) {
+            return;
+        }
+        // the session may not be indexed yet, write its latest state as a whole instead
+        logger.warn("Couldn't write the changes of session {}, saving it as a whole", pendingSessionWrite.session.getItemId());
+        Session session = pendingSessionWrite.getLatestSession();
+        Session storedSession;
+        if (!sessionProfileEmbedded && isProfileReference(session)) {
+            storedSession = getStoredSession(session);
+        } else {
+            // saving sets the version, which must not reset the changes tracked by the requests still using the session
+            storedSession = CustomObjectMapper.getObjectMapper().convertValue(session, session.getClass());
+        }
+        if (!persistenceService.save(storedSession)) {
+            logger.error("Couldn't save session {}, its changes since it was last written are lost", session.getItemId());
+        }
+    }
+
+    public int migrateSessionProfiles() {
+        if (!acquireSessionProfilesMigration()) {
+            return 0;
+        }
+        try {
+            return doMigrateSessionProfiles();
+        } finally {
+            sessionProfilesMigrationRunning.set(false);
+        }
+    }
+
+    public boolean startSessionProfilesMigration() {
+        if (!acquireSessionProfilesMigration()) {
+            return false;
+        }
+        Thread migrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    doMigrateSessionProfiles();
+                } catch (Exception e) {
+                    logger.error("Error while migrating session profiles, " + migratedSessionProfilesCount.get() + " sessions were migrated", e);
+                } finally {
+                    sessionProfilesMigrationRunning.set(false);
+                }
+            }
+        }, "unomi-session-profiles-migration");
+        migrationThread.setDaemon(true);
+        migrationThread.start();
+        return true;
+    }
+
+    public boolean isSessionProfilesMigrationRunning() {
+        return sessionProfilesMigrationRunning.get();
+    }
+
+    public int getMigratedSessionProfilesCount() {
+        return migratedSessionProfilesCount.get();
+    }
+
+    private boolean acquireSessionProfilesMigration() {
+        if (sessionProfileEmbedded) {
+            logger.warn("Sessions are configured to embed their profile, nothing to migrate");
+            return false;
+        }
+        if (!sessionProfilesMigrationRunning.compareAndSet(false, true)) {
+            logger.warn("A migration of the session profiles is already running");
+            return false;
+        }
+        return true;
+    }
+
+    private int doMigrateSessionProfiles() {
+        long t = System.currentTimeMillis();
+        migratedSessionProfilesCount.set(0);
+        Condition condition = new Condition(definitionsService.getConditionType("matchAllCondition"));
+        PartialList<Session> sessions = persistenceService.query(condition, null, Session.class, 0, 1000, "10m");
+        while (sessions != null && sessions.getList().size() > 0) {
+            for (Session session : sessions.getList()) {
+                if (isProfileReference(session)) {
+                    persistenceService.save(getStoredSession(session), true);
+                    migratedSessionProfilesCount.incrementAndGet();
+                }
+            }
+            sessions = persistenceService.continueScrollQuery(Session.class, sessions.getScrollIdentifier(), sessions.getScrollTimeValidity());
+        }
+        int migratedSessionCount = migratedSessionProfilesCount.get();
+        logger.info("{} sessions migrated in {}ms", migratedSessionCount, System.currentTimeMillis() - t);
+        return migratedSessionCount;
+    }
+
+    /**
+     * Checks whether the profile of the specified session can be stored as a reference. Anonymous profiles have no identifier to be loaded from, and
+     * persona sessions are kept as they are.
+     */
+    private boolean isProfileReference(Session session) {
+        Profile profile = session.getProfile();
+        return profile != null && profile.getItemId() != null && !(profile instanceof Persona) && session.getClass() == Session.class;
+    }
+
+    public Profile getSessionProfile(Profile profile) {
+        return sessionProfileEmbedded || profile instanceof Persona ? profile : getProfileReference(profile);
+    }
+
+    /**
+     * Builds the profile stored in sessions : its identifier, anonymous flag and the configured denormalized fields used to query sessions.
+     */
+    private Profile getProfileReference(Profile profile) {
+        Profile sessionProfile = new Profile(profile.getItemId());
+        Object anonymous = profile.getSystemProperties().get("isAnonymousProfile");
+        if (anonymous != null) {
+            sessionProfile.getSystemProperties().put("isAnonymousProfile", anonymous);
+        }
+        for (String field : sessionProfileFields) {
+            if (field.equals("properties")) {
+                sessionProfile.getProperties().putAll(profile.getProperties());
+            } else if (field.equals("systemProperties")) {
+                sessionProfile.getSystemProperties().putAll(profile.getSystemProperties());
+            } else if (field.equals("segments")) {
+                sessionProfile.setSegments(profile.getSegments());
+            } else if (field.equals("scores")) {
+                sessionProfile.setScores(profile.getScores());
+            } else if (field.startsWith("properties.")) {
+                copyEntry(profile.getProperties(), sessionProfile.getProperties(), field.substring("properties.".length()));
+            } else {
+                copyEntry(profile.getSystemProperties(), sessionProfile.getSystemProperties(), field.substring("systemProperties.".length()));
+            }
+        }
+        return sessionProfile;
+    }
+
+    /**
+     * Checks whether the profile stored in a session holds the current values of the fields of the specified profile stored in sessions.
+     */
+    private boolean isSessionProfileUpToDate(Profile storedProfile, Profile profile) {
+        Profile sessionProfile = getProfileReference(profile);
+        return storedProfile != null && StringUtils.equals(storedProfile.getItemId(), sessionProfile.getItemId())
+                && Objects.equals(storedProfile.getProperties(), sessionProfile.getProperties())
+                && Objects.equals(storedProfile.getSystemProperties(), sessionProfile.getSystemProperties())
+                && Objects.equals(storedProfile.getSegments(), sessionProfile.getSegments())
+                && Objects.equals(storedProfile.getScores(), sessionProfile.getScores());
+    }
+
+    private static void copyEntry(Map<String, Object> source, Map<String, Object> target, String key) {
+        if (source.containsKey(key)) {
+            target.put(key, source.get(key));
+        }
+    }
+
+    /**
+     * Creates a copy of the specified session holding only the fields of its profile that are stored in sessions.
+     */
+    private Session getStoredSession(Session session) {
+        Session storedSession = new Session(session.getItemId(), getProfileReference(session.getProfile()), session.getTimeStamp(), session.getScope());
+        storedSession.setProperties(session.getProperties());
+        storedSession.setSystemProperties(session.getSystemProperties());
+        storedSession.setSize(session.getSize());
+        storedSession.setLastEventDate(session.getLastEventDate());
+        return storedSession;
     }
 
     public PartialList<Session> findProfileSessions(String profileId) {
-        return persistenceService.query("profileId", profileId, "timeStamp:desc", Session.class, 0, 50);
+        flushSessionWrites(profileId, 0);
+        return persistenceService.query(getProfileIdCondition(profileId), "timeStamp:desc", Session.class, 0, 50);
     }
 
     @Override
     public boolean matchCondition(Condition condition, Profile profile, Session session) {
-        ParserHelper.resolveConditionType(definitionsService, condition);
+        CompiledCondition compiledCondition = compiledConditions.get(condition);
+        if (compiledCondition == null || compiledCondition.conditionType != definitionsService.getConditionType(condition.getConditionTypeId())) {
+            boolean resolved = ParserHelper.resolveConditionType(definitionsService, condition);
+            compiledCondition = compileCondition(condition);
+            // conditions using unknown condition types are not kept, they may be resolved later
+            if (resolved) {
+                compiledConditions.put(condition, compiledCondition);
+            }
+        }
+        return compiledCondition.matches(profile, session);
+    }
 
+    /**
+     * Prepares a condition to be matched against profiles and sessions : boolean conditions are split into their sub conditions, and the profile and
+     * session parts of other conditions are extracted once.
+     */
+    private CompiledCondition compileCondition(Condition condition) {
         if (condition.getConditionTypeId().equals("booleanCondition")) {
+            @SuppressWarnings("unchecked")
             List<Condition> subConditions = (List<Condition>) condition.getParameter("subConditions");
-            boolean isAnd = "and".equals(condition.getParameter("operator"));
+            List<CompiledCondition> compiledSubConditions = new ArrayList<>(subConditions.size());
             for (Condition subCondition : subConditions) {
-                if (isAnd && !matchCondition(subCondition, profile, session)) {
-                    return false;
-                }
-                if (!isAnd && matchCondition(subCondition, profile, session)) {
-                    return true;
-                }
-            }
-            return subConditions.size() > 0 && isAnd;
-        } else {
-            Condition profileCondition = definitionsService.extractConditionByTag(condition, "profileCondition");
-            Condition sessionCondition = definitionsService.extractConditionByTag(condition, "sessionCondition");
-            if (profileCondition != null && !persistenceService.testMatch(profileCondition, profile)) {
-                return false;
+                compiledSubConditions.add(compileCondition(subCondition));
             }
-            return !(sessionCondition != null && !persistenceService.testMatch(sessionCondition, session));
+            return new CompiledCondition(condition.getConditionType(), compiledSubConditions, "and".equals(condition.getParameter("operator")), null, null);
         }
+        return new CompiledCondition(condition.getConditionType(), null, false,
+                definitionsService.extractConditionByTag(condition, "profileCondition"),
+                definitionsService.extractConditionByTag(condition, "sessionCondition"));
+    }
+
+    public void setConditionCacheSize(int conditionCacheSize) {
+        this.conditionCacheSize = conditionCacheSize;
     }
 
     public void batchProfilesUpdate(BatchUpdate update) {
@@ -618,11 +1399,11 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
 
     public Collection<PropertyType> getAllPropertyTypes(String target) {
-        return persistenceService.query("target", target, null, PropertyType.class);
+        return new ArrayList<>(getPropertyTypes().getByTarget(target));
     }
 
     public Map<String, Collection<PropertyType>> getAllPropertyTypes() {
-        Collection<PropertyType> props = persistenceService.getAllItems(PropertyType.class, 0, -1, "rank").getList();
+        Collection<PropertyType> props = getPropertyTypes().getAll();
 
         HashMap<String, Collection<PropertyType>> propertyTypes = new HashMap<>();
         for (PropertyType prop : props) {
@@ -636,11 +1417,7 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
 
     public Set<PropertyType> getPropertyTypeByTag(String tagId, boolean includeFromSubtags) {
         Set<PropertyType> propertyTypes = new LinkedHashSet<PropertyType>();
-        Collection<PropertyType> directPropertyTypes = persistenceService.query("tags", tagId, "rank", PropertyType.class);
-
-        if (directPropertyTypes != null) {
-            propertyTypes.addAll(directPropertyTypes);
-        }
+        propertyTypes.addAll(getPropertyTypes().getByTag(tagId));
         if (includeFromSubtags) {
             Tag tag = definitionsService.getTag(tagId);
             if (tag != null) {
@@ -667,16 +1444,14 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             }
         });
 
-        for (PropertyType propertyType : allPropertyTypes) {
-            if (propertyType.getAutomaticMappingsFrom() != null && propertyType.getAutomaticMappingsFrom().contains(propertyName)) {
-                l.add(propertyType);
-            }
-        }
+        l.addAll(getPropertyTypes().getByMapping(propertyName));
         return l;
     }
 
     public PropertyType getPropertyType(String id) {
-        return persistenceService.load(id, PropertyType.class);
+        // callers may modify the property type to save it, the registry instances are shared by all readers
+        PropertyType propertyType = getPropertyTypes().get(id);
+        return propertyType != null ? copyPropertyType(propertyType) : null;
     }
 
     public PartialList<Session> getPersonaSessions(String personaId, int offset, int size, String sortBy) {
@@ -718,23 +1493,29 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
             return;
         }
 
+        List<PropertyType> savedPropertyTypes = new ArrayList<>();
         while (predefinedPropertyTypeEntries.hasMoreElements()) {
             URL predefinedPropertyTypeURL = predefinedPropertyTypeEntries.nextElement();
             logger.debug("Found predefined property type at " + predefinedPropertyTypeURL + ", loading... ");
 
             try {
                 PropertyType propertyType = CustomObjectMapper.getObjectMapper().readValue(predefinedPropertyTypeURL, PropertyType.class);
-                if (getPropertyType(propertyType.getMetadata().getId()) == null) {
+                if (getPropertyTypes().get(propertyType.getMetadata().getId()) == null) {
                     String[] splitPath = predefinedPropertyTypeURL.getPath().split("/");
                     String target = splitPath[4];
                     propertyType.setTarget(target);
 
-                    persistenceService.save(propertyType);
+                    if (persistenceService.save(propertyType)) {
+                        savedPropertyTypes.add(propertyType);
+                    }
                 }
             } catch (IOException e) {
                 logger.error("Error while loading properties " + predefinedPropertyTypeURL, e);
             }
         }
+        if (!savedPropertyTypes.isEmpty()) {
+            propertyTypesSaved(savedPropertyTypes);
+        }
     }
 
 
@@ -747,6 +1528,9 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
                 processBundleStop(event.getBundle().getBundleContext());
                 break;
         }
+        // merge strategy types and condition types may have been added or removed
+        mergePlan = null;
+        compiledConditions.clear();
     }
 
     private <T> boolean merge(T target, T object) {
@@ -798,4 +1582,127 @@ public class ProfileServiceImpl implements ProfileService, SynchronousBundleList
         return changed;
     }
 
+
+    static <K, V> Map<K, V> createCache(final int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    private static class CachedProfileAliases {
+        private final Set<String> aliases;
+        private final long expirationTime;
+
+        CachedProfileAliases(Set<String> aliases, long expirationTime) {
+            this.aliases = aliases;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /**
+     * The changes of a session waiting to be written, merged with the changes made to the session until they are written.
+     */
+    private static class PendingSessionWrite {
+        private final Session session;
+        private final long creationTime = System.currentTimeMillis();
+        private final Map<String, Object> document = new HashMap<>();
+        private Session latestSession;
+        private Date lastEventDate;
+        private int size;
+        private boolean flushed;
+
+        PendingSessionWrite(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Merges the specified changes with the pending ones.
+         *
+         * @return {@code false} if the changes were already written and cannot be merged anymore
+         */
+        synchronized boolean merge(Map<String, Object> changes, Session session) {
+            if (flushed) {
+                return false;
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object previousValue = document.get(entry.getKey());
+                if (previousValue instanceof Map && entry.getValue() instanceof Map
+                        && ("properties".equals(entry.getKey()) || "systemProperties".equals(entry.getKey()))) {
+                    ((Map<String, Object>) previousValue).putAll((Map<String, Object>) entry.getValue());
+                } else {
+                    document.put(entry.getKey(), entry.getValue());
+                }
+            }
+            lastEventDate = session.getLastEventDate();
+            size = session.getSize();
+            latestSession = session;
+            return true;
+        }
+
+        /**
+         * Retrieves the last session whose changes were merged, holding all the pending changes.
+         */
+        synchronized Session getLatestSession() {
+            return latestSession;
+        }
+
+        /**
+         * Applies the pending changes to a session loaded from the persistence service.
+         */
+        synchronized void applyTo(Session session) {
+            if (document.get("properties") instanceof Map) {
+                session.getProperties().putAll((Map<String, Object>) document.get("properties"));
+            }
+            if (document.get("systemProperties") instanceof Map) {
+                session.getSystemProperties().putAll((Map<String, Object>) document.get("systemProperties"));
+            }
+            if (lastEventDate != null) {
+                session.setLastEventDate(lastEventDate);
+            }
+            session.setSize(size);
+        }
+
+        synchronized Map<String, Object> flush() {
+            flushed = true;
+            return document;
+        }
+    }
+
+    private class CompiledCondition {
+        private final ConditionType conditionType;
+        private final List<CompiledCondition> subConditions;
+        private final boolean and;
+        private final Condition profileCondition;
+        private final Condition sessionCondition;
+
+        CompiledCondition(ConditionType conditionType, List<CompiledCondition> subConditions, boolean and, Condition profileCondition, Condition sessionCondition) {
+            this.conditionType = conditionType;
+            this.subConditions = subConditions;
+            this.and = and;
+            this.profileCondition = profileCondition;
+            this.sessionCondition = sessionCondition;
+        }
+
+        boolean matches(Profile profile, Session session) {
+            if (subConditions != null) {
+                for (CompiledCondition subCondition : subConditions) {
+                    if (and && !subCondition.matches(profile, session)) {
+                        return false;
+                    }
+                    if (!and && subCondition.matches(profile, session)) {
+                        return true;
+                    }
+                }
+                // all the sub conditions of an AND matched, none of an OR did, which also holds when there are none
+                return and;
+            }
+            if (profileCondition != null && !persistenceService.testMatch(profileCondition, profile)) {
+                return false;
+            }
+            return !(sessionCondition != null && !persistenceService.testMatch(sessionCondition, session));
+        }
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.PropertyType;
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of all the property types, indexed by identifier, target, tag and automatic mapping. Changes create a new snapshot, so
+ * readers never see a partially updated registry. Indexed lists are ordered by rank, as the property types queried from the persistence service.
+ * The property types themselves are shared by all the readers and must not be modified : they are copied before being handed out for modification.
+ */
+class PropertyTypes {
+
+    private static final Comparator<PropertyType> RANK_COMPARATOR = new Comparator<PropertyType>() {
+        @Override
+        public int compare(PropertyType o1, PropertyType o2) {
+            if (o1.getRank() == null) {
+                return o2.getRank() == null ? 0 : 1;
+            }
+            return o2.getRank() == null ? -1 : o1.getRank().compareTo(o2.getRank());
+        }
+    };
+
+    private final Map<String, PropertyType> propertyTypesById = new LinkedHashMap<>();
+    private final Map<String, List<PropertyType>> propertyTypesByTarget = new HashMap<>();
+    private final Map<String, List<PropertyType>> propertyTypesByTag = new HashMap<>();
+    private final Map<String, List<PropertyType>> propertyTypesByMapping = new HashMap<>();
+
+    PropertyTypes(Collection<PropertyType> propertyTypes) {
+        List<PropertyType> sortedPropertyTypes = new ArrayList<>(propertyTypes);
+        Collections.sort(sortedPropertyTypes, RANK_COMPARATOR);
+        for (PropertyType propertyType : sortedPropertyTypes) {
+            propertyTypesById.put(propertyType.getItemId(), propertyType);
+            index(propertyTypesByTarget, propertyType.getTarget(), propertyType);
+            if (propertyType.getTagIds() != null) {
+                for (String tagId : propertyType.getTagIds()) {
+                    index(propertyTypesByTag, tagId, propertyType);
+                }
+            }
+            if (propertyType.getAutomaticMappingsFrom() != null) {
+                for (String propertyName : propertyType.getAutomaticMappingsFrom()) {
+                    index(propertyTypesByMapping, propertyName, propertyType);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a snapshot with the specified property types added or replaced.
+     *
+     * @param propertyTypes the new versions of the property types
+     * @return the new snapshot
+     */
+    PropertyTypes with(Collection<PropertyType> propertyTypes) {
+        Map<String, PropertyType> newPropertyTypes = new LinkedHashMap<>(propertyTypesById);
+        for (PropertyType propertyType : propertyTypes) {
+            newPropertyTypes.put(propertyType.getItemId(), propertyType);
+        }
+        return new PropertyTypes(newPropertyTypes.values());
+    }
+
+    /**
+     * Creates a snapshot without the specified property type.
+     *
+     * @param propertyTypeId the identifier of the removed property type
+     * @return the new snapshot, or this one if it didn't contain the property type
+     */
+    PropertyTypes without(String propertyTypeId) {
+        if (!propertyTypesById.containsKey(propertyTypeId)) {
+            return this;
+        }
+        Map<String, PropertyType> propertyTypes = new LinkedHashMap<>(propertyTypesById);
+        propertyTypes.remove(propertyTypeId);
+        return new PropertyTypes(propertyTypes.values());
+    }
+
+    Collection<PropertyType> getAll() {
+        return Collections.unmodifiableCollection(propertyTypesById.values());
+    }
+
+    PropertyType get(String propertyTypeId) {
+        return propertyTypesById.get(propertyTypeId);
+    }
+
+    List<PropertyType> getByTarget(String target) {
+        return get(propertyTypesByTarget, target);
+    }
+
+    List<PropertyType> getByTag(String tagId) {
+        return get(propertyTypesByTag, tagId);
+    }
+
+    List<PropertyType> getByMapping(String propertyName) {
+        return get(propertyTypesByMapping, propertyName);
+    }
+
+    private static void index(Map<String, List<PropertyType>> index, String key, PropertyType propertyType) {
+        List<PropertyType> propertyTypes = index.get(key);
+        if (propertyTypes == null) {
+            propertyTypes = new ArrayList<>();
+            index.put(key, propertyTypes);
+        }
+        propertyTypes.add(propertyType);
+    }
+
+    private static List<PropertyType> get(Map<String, List<PropertyType>> index, String key) {
+        List<PropertyType> propertyTypes = index.get(key);
+        return propertyTypes != null ? Collections.unmodifiableList(propertyTypes) : Collections.<PropertyType>emptyList();
+    }
+}
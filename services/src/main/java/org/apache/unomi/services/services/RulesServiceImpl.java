@@ -30,8 +30,10 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventListenerService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.RulesService;
+import org.apache.unomi.persistence.spi.ConditionMatches;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.SharedConditions;
 import org.apache.unomi.services.actions.ActionExecutorDispatcher;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
@@ -55,6 +57,9 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
 
     private ActionExecutorDispatcher actionExecutorDispatcher;
     private List<Rule> allRules;
+    private volatile TrackedConditions trackedConditions;
+    private volatile SharedRules sharedRules;
+    private int trackedConditionsCacheSize = 1000;
 
     private Timer rulesTimer;
 
@@ -78,6 +83,10 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         this.actionExecutorDispatcher = actionExecutorDispatcher;
     }
 
+    public void setTrackedConditionsCacheSize(int trackedConditionsCacheSize) {
+        this.trackedConditionsCacheSize = trackedConditionsCacheSize;
+    }
+
     public void bindExecutor(ServiceReference<ActionExecutor> actionExecutorServiceReference) {
         ActionExecutor actionExecutor = bundleContext.getService(actionExecutorServiceReference);
         actionExecutorDispatcher.addExecutor(actionExecutorServiceReference.getProperty("actionExecutorId").toString(), actionExecutor);
@@ -158,23 +167,29 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         Boolean hasEventAlreadyBeenRaisedForSession = null;
         Boolean hasEventAlreadyBeenRaisedForProfile = null;
 
-        List<Rule> allItems = allRules;
-
-        for (Rule rule : allItems) {
+        SharedRules sharedRules = this.sharedRules;
+        if (sharedRules == null) {
+            sharedRules = updateSharedRules(allRules);
+        }
+        // identical sub-conditions are only evaluated once against each item
+        ConditionMatches eventMatches = new ConditionMatches(sharedRules.conditions);
+        ConditionMatches sourceMatches = new ConditionMatches(sharedRules.conditions);
+        ConditionMatches profileMatches = new ConditionMatches(sharedRules.conditions);
+        ConditionMatches sessionMatches = new ConditionMatches(sharedRules.conditions);
+
+        for (SharedRule sharedRule : sharedRules.rules) {
+            Rule rule = sharedRule.rule;
             String scope = rule.getMetadata().getScope();
             if (scope.equals(Metadata.SYSTEM_SCOPE) || scope.equals(event.getScope())) {
-                Condition eventCondition = definitionsService.extractConditionByTag(rule.getCondition(), "eventCondition");
-
-                if (eventCondition == null) {
+                if (sharedRule.eventCondition == null) {
                     continue;
                 }
 
-                if (!persistenceService.testMatch(eventCondition, event)) {
+                if (!persistenceService.testMatch(sharedRule.eventCondition, event, eventMatches)) {
                     continue;
                 }
 
-                Condition sourceCondition = definitionsService.extractConditionByTag(rule.getCondition(), "sourceEventCondition");
-                if (sourceCondition != null && !persistenceService.testMatch(sourceCondition, event.getSource())) {
+                if (sharedRule.sourceCondition != null && !persistenceService.testMatch(sharedRule.sourceCondition, event.getSource(), sourceMatches)) {
                     continue;
                 }
 
@@ -190,12 +205,10 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
                     }
                 }
 
-                Condition profileCondition = definitionsService.extractConditionByTag(rule.getCondition(), "profileCondition");
-                if (profileCondition != null && !persistenceService.testMatch(profileCondition, event.getProfile())) {
+                if (sharedRule.profileCondition != null && !persistenceService.testMatch(sharedRule.profileCondition, event.getProfile(), profileMatches)) {
                     continue;
                 }
-                Condition sessionCondition = definitionsService.extractConditionByTag(rule.getCondition(), "sessionCondition");
-                if (sessionCondition != null && !persistenceService.testMatch(sessionCondition, event.getSession())) {
+                if (sharedRule.sessionCondition != null && !persistenceService.testMatch(sharedRule.sessionCondition, event.getSession(), sessionMatches)) {
                     continue;
                 }
                 matchedRules.add(rule);
@@ -205,6 +218,34 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
         return matchedRules;
     }
 
+    /**
+     * Extracts the conditions of the rules evaluated for each event and shares their identical sub-conditions.
+     */
+    private SharedRules updateSharedRules(List<Rule> rules) {
+        SharedConditions conditions = new SharedConditions();
+        List<SharedRule> sharedRules = new ArrayList<>();
+        if (rules != null) {
+            for (Rule rule : rules) {
+                Condition condition = rule.getCondition();
+                if (condition == null) {
+                    continue;
+                }
+                try {
+                    sharedRules.add(new SharedRule(rule,
+                            conditions.share(definitionsService.extractConditionByTag(condition, "eventCondition")),
+                            conditions.share(definitionsService.extractConditionByTag(condition, "sourceEventCondition")),
+                            conditions.share(definitionsService.extractConditionByTag(condition, "profileCondition")),
+                            conditions.share(definitionsService.extractConditionByTag(condition, "sessionCondition"))));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Ignoring rule " + rule.getItemId() + ", its conditions cannot be extracted", e);
+                }
+            }
+        }
+        SharedRules result = new SharedRules(conditions, sharedRules);
+        this.sharedRules = result;
+        return result;
+    }
+
     private List<Rule> getAllRules() {
         List<Rule> allItems = persistenceService.getAllItems(Rule.class, 0, -1, "priority").getList();
         for (Rule rule : allItems) {
@@ -286,22 +327,44 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
     }
 
     public Set<Condition> getTrackedConditions(Item source){
-        Set<Condition> trackedConditions = new HashSet<>();
-        for (Rule r : allRules) {
-            Condition trackedCondition = definitionsService.extractConditionByTag(r.getCondition(), "trackedCondition");
-            if(trackedCondition != null){
-                Condition sourceEventPropertyCondition = definitionsService.extractConditionByTag(r.getCondition(), "sourceEventCondition");
-                if(source != null && sourceEventPropertyCondition != null) {
-                    ParserHelper.resolveConditionType(definitionsService, sourceEventPropertyCondition);
-                    if(persistenceService.testMatch(sourceEventPropertyCondition, source)){
-                        trackedConditions.add(trackedCondition);
-                    }
-                } else {
-                    trackedConditions.add(trackedCondition);
-                }
+        TrackedConditions trackedConditions = this.trackedConditions;
+        if (trackedConditions == null) {
+            trackedConditions = updateTrackedConditions(allRules);
+        }
+        Set<Condition> indexedConditions = trackedConditions.getIndexedConditions(source);
+        if (source == null || trackedConditions.getDynamicConditions().isEmpty()) {
+            return indexedConditions;
+        }
+        Set<Condition> matchingConditions = new HashSet<>(indexedConditions);
+        for (Condition[] dynamicCondition : trackedConditions.getDynamicConditions()) {
+            ParserHelper.resolveConditionType(definitionsService, dynamicCondition[1]);
+            if (persistenceService.testMatch(dynamicCondition[1], source)) {
+                matchingConditions.add(dynamicCondition[0]);
+            }
+        }
+        return matchingConditions;
+    }
 
+    /**
+     * Rebuilds the tracked conditions index if the tracked or source event conditions of the rules changed, so that the tracked conditions cached
+     * for each source are kept as long as the rules are only reloaded.
+     */
+    private TrackedConditions updateTrackedConditions(List<Rule> rules) {
+        List<Condition> conditions = new ArrayList<>();
+        if (rules != null) {
+            for (Rule rule : rules) {
+                Condition trackedCondition = definitionsService.extractConditionByTag(rule.getCondition(), "trackedCondition");
+                if (trackedCondition != null) {
+                    conditions.add(trackedCondition);
+                    conditions.add(definitionsService.extractConditionByTag(rule.getCondition(), "sourceEventCondition"));
+                }
             }
         }
+        TrackedConditions trackedConditions = this.trackedConditions;
+        if (trackedConditions == null || !trackedConditions.getConditions().equals(conditions)) {
+            trackedConditions = new TrackedConditions(conditions, trackedConditionsCacheSize);
+            this.trackedConditions = trackedConditions;
+        }
         return trackedConditions;
     }
 
@@ -315,6 +378,8 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
             @Override
             public void run() {
                 allRules = getAllRules();
+                updateTrackedConditions(allRules);
+                updateSharedRules(allRules);
             }
         };
         rulesTimer.schedule(task, 0, 1000);
@@ -330,4 +395,30 @@ public class RulesServiceImpl implements RulesService, EventListenerService, Syn
                 break;
         }
     }
+
+    private static class SharedRules {
+        private final SharedConditions conditions;
+        private final List<SharedRule> rules;
+
+        private SharedRules(SharedConditions conditions, List<SharedRule> rules) {
+            this.conditions = conditions;
+            this.rules = rules;
+        }
+    }
+
+    private static class SharedRule {
+        private final Rule rule;
+        private final Condition eventCondition;
+        private final Condition sourceCondition;
+        private final Condition profileCondition;
+        private final Condition sessionCondition;
+
+        private SharedRule(Rule rule, Condition eventCondition, Condition sourceCondition, Condition profileCondition, Condition sessionCondition) {
+            this.rule = rule;
+            this.eventCondition = eventCondition;
+            this.sourceCondition = sourceCondition;
+            this.profileCondition = profileCondition;
+            this.sessionCondition = sessionCondition;
+        }
+    }
 }
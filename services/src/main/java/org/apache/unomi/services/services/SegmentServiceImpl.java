@@ -29,8 +29,10 @@ import org.apache.unomi.api.services.DefinitionsService;
 import org.apache.unomi.api.services.EventService;
 import org.apache.unomi.api.services.RulesService;
 import org.apache.unomi.api.services.SegmentService;
+import org.apache.unomi.persistence.spi.ConditionMatches;
 import org.apache.unomi.persistence.spi.CustomObjectMapper;
 import org.apache.unomi.persistence.spi.PersistenceService;
+import org.apache.unomi.persistence.spi.SharedConditions;
 import org.apache.unomi.persistence.spi.aggregate.TermsAggregate;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -62,6 +64,7 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
     private long taskExecutionPeriod = 24L * 60L * 60L * 1000L;
     private List<Segment> allSegments;
     private List<Scoring> allScoring;
+    private volatile SharedDefinitions sharedDefinitions;
     private Timer segmentTimer;
     private int segmentUpdateBatchSize = 1000;
 
@@ -447,6 +450,72 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
         return persistenceService.queryCount(segmentCondition, Profile.ITEM_TYPE);
     }
 
+    public Map<String, Long> getMatchingIndividualsCounts(List<String> segmentIDs) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if (segmentIDs == null || segmentIDs.isEmpty()) {
+            return counts;
+        }
+
+        List<String> countedSegmentIds = new ArrayList<>();
+        List<Condition> segmentConditions = new ArrayList<>();
+        Set<String> existingSegmentIds = getExistingSegmentIds(segmentIDs);
+        for (String segmentID : segmentIDs) {
+            counts.put(segmentID, 0L);
+            if (existingSegmentIds.contains(segmentID)) {
+                countedSegmentIds.add(segmentID);
+                segmentConditions.add(getSegmentMembershipCondition(segmentID));
+            }
+        }
+
+        List<Long> segmentCounts = persistenceService.queryCountBatch(segmentConditions, Profile.ITEM_TYPE);
+        for (int i = 0; i < countedSegmentIds.size(); i++) {
+            // counted one by one if the batch failed
+            counts.put(countedSegmentIds.get(i), segmentCounts != null ? segmentCounts.get(i) : persistenceService.queryCount(segmentConditions.get(i), Profile.ITEM_TYPE));
+        }
+        return counts;
+    }
+
+    public Map<String, PartialList<Profile>> getMatchingIndividuals(List<String> segmentIDs, int offset, int size, String sortBy) {
+        Map<String, PartialList<Profile>> matchingIndividuals = new LinkedHashMap<>();
+        if (segmentIDs == null || segmentIDs.isEmpty()) {
+            return matchingIndividuals;
+        }
+
+        List<String> queriedSegmentIds = new ArrayList<>();
+        List<Condition> segmentConditions = new ArrayList<>();
+        Set<String> existingSegmentIds = getExistingSegmentIds(segmentIDs);
+        for (String segmentID : segmentIDs) {
+            matchingIndividuals.put(segmentID, new PartialList<Profile>());
+            if (existingSegmentIds.contains(segmentID)) {
+                queriedSegmentIds.add(segmentID);
+                segmentConditions.add(getSegmentMembershipCondition(segmentID));
+            }
+        }
+
+        List<PartialList<Profile>> profiles = persistenceService.queryBatch(segmentConditions, sortBy, Profile.class, offset, size);
+        for (int i = 0; i < queriedSegmentIds.size(); i++) {
+            // queried one by one if the batch failed
+            matchingIndividuals.put(queriedSegmentIds.get(i), profiles != null ? profiles.get(i) : persistenceService.query(segmentConditions.get(i), sortBy, Profile.class, offset, size));
+        }
+        return matchingIndividuals;
+    }
+
+    private Set<String> getExistingSegmentIds(List<String> segmentIDs) {
+        Set<String> existingSegmentIds = new HashSet<>();
+        for (Segment segment : persistenceService.query("metadata.id", segmentIDs.toArray(new String[segmentIDs.size()]), null, Segment.class)) {
+            existingSegmentIds.add(segment.getMetadata().getId());
+        }
+        return existingSegmentIds;
+    }
+
+    private Condition getSegmentMembershipCondition(String segmentID) {
+        Condition segmentCondition = new Condition(definitionsService.getConditionType("profilePropertyCondition"));
+        segmentCondition.setParameter("propertyName", "segments");
+        segmentCondition.setParameter("comparisonOperator", "equals");
+        segmentCondition.setParameter("propertyValue", segmentID);
+        return segmentCondition;
+    }
+
     public Boolean isProfileInSegment(Profile profile, String segmentId) {
         Set<String> matchingSegments = getSegmentsAndScoresForProfile(profile).getSegments();
 
@@ -457,21 +526,24 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
         Set<String> segments = new HashSet<String>();
         Map<String,Integer> scores = new HashMap<String, Integer>();
 
-        List<Segment> allSegments = this.allSegments;
-        for (Segment segment : allSegments) {
-            if (persistenceService.testMatch(segment.getCondition(), profile)) {
-                segments.add(segment.getMetadata().getId());
+        SharedDefinitions sharedDefinitions = getSharedDefinitions();
+        // identical sub-conditions of the segments and scorings are only evaluated once
+        ConditionMatches matches = new ConditionMatches(sharedDefinitions.conditions);
+        for (int i = 0; i < sharedDefinitions.segments.size(); i++) {
+            if (persistenceService.testMatch(sharedDefinitions.segmentConditions[i], profile, matches)) {
+                segments.add(sharedDefinitions.segments.get(i).getMetadata().getId());
             }
         }
 
-        List<Scoring> allScoring = this.allScoring;
         Map<String, Integer> scoreModifiers = (Map<String, Integer>) profile.getSystemProperties().get("scoreModifiers");
-        for (Scoring scoring : allScoring) {
+        for (int i = 0; i < sharedDefinitions.scorings.size(); i++) {
+            Scoring scoring = sharedDefinitions.scorings.get(i);
             if (scoring.getMetadata().isEnabled()) {
                 int score = 0;
-                for (ScoringElement scoringElement : scoring.getElements()) {
-                    if (persistenceService.testMatch(scoringElement.getCondition(), profile)) {
-                        score += scoringElement.getValue();
+                List<ScoringElement> scoringElements = scoring.getElements();
+                for (int j = 0; j < scoringElements.size(); j++) {
+                    if (persistenceService.testMatch(sharedDefinitions.scoringConditions[i][j], profile, matches)) {
+                        score += scoringElements.get(j).getValue();
                     }
                 }
                 String scoringId = scoring.getMetadata().getId();
@@ -490,16 +562,49 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
     public List<Metadata> getSegmentMetadatasForProfile(Profile profile) {
         List<Metadata> metadatas = new ArrayList<>();
 
-        List<Segment> allSegments = this.allSegments;
-        for (Segment segment : allSegments) {
-            if (persistenceService.testMatch(segment.getCondition(), profile)) {
-                metadatas.add(segment.getMetadata());
+        SharedDefinitions sharedDefinitions = getSharedDefinitions();
+        ConditionMatches matches = new ConditionMatches(sharedDefinitions.conditions);
+        for (int i = 0; i < sharedDefinitions.segments.size(); i++) {
+            if (persistenceService.testMatch(sharedDefinitions.segmentConditions[i], profile, matches)) {
+                metadatas.add(sharedDefinitions.segments.get(i).getMetadata());
             }
         }
 
         return metadatas;
     }
 
+    private SharedDefinitions getSharedDefinitions() {
+        SharedDefinitions sharedDefinitions = this.sharedDefinitions;
+        if (sharedDefinitions == null) {
+            sharedDefinitions = updateSharedDefinitions(allSegments, allScoring);
+        }
+        return sharedDefinitions;
+    }
+
+    /**
+     * Shares the identical sub-conditions of the segments and scoring elements evaluated for each profile.
+     */
+    private SharedDefinitions updateSharedDefinitions(List<Segment> segments, List<Scoring> scorings) {
+        SharedConditions conditions = new SharedConditions();
+        segments = segments != null ? segments : Collections.<Segment>emptyList();
+        scorings = scorings != null ? scorings : Collections.<Scoring>emptyList();
+        Condition[] segmentConditions = new Condition[segments.size()];
+        for (int i = 0; i < segmentConditions.length; i++) {
+            segmentConditions[i] = conditions.share(segments.get(i).getCondition());
+        }
+        Condition[][] scoringConditions = new Condition[scorings.size()][];
+        for (int i = 0; i < scoringConditions.length; i++) {
+            List<ScoringElement> scoringElements = scorings.get(i).getElements();
+            scoringConditions[i] = new Condition[scoringElements.size()];
+            for (int j = 0; j < scoringElements.size(); j++) {
+                scoringConditions[i][j] = conditions.share(scoringElements.get(j).getCondition());
+            }
+        }
+        SharedDefinitions sharedDefinitions = new SharedDefinitions(conditions, segments, segmentConditions, scorings, scoringConditions);
+        this.sharedDefinitions = sharedDefinitions;
+        return sharedDefinitions;
+    }
+
     public PartialList<Metadata> getScoringMetadatas(int offset, int size, String sortBy) {
         return getMetadatas(offset, size, sortBy, Scoring.class);
     }
@@ -1008,6 +1113,7 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
             public void run() {
                 allSegments = getAllSegmentDefinitions();
                 allScoring = getAllScoringDefinitions();
+                updateSharedDefinitions(allSegments, allScoring);
             }
         };
         segmentTimer.scheduleAtFixedRate(task, 0, 1000);
@@ -1046,4 +1152,20 @@ public class SegmentServiceImpl implements SegmentService, SynchronousBundleList
         return new PartialList<>(details, items.getOffset(), items.getPageSize(), items.getTotalSize());
     }
 
+    private static class SharedDefinitions {
+        private final SharedConditions conditions;
+        private final List<Segment> segments;
+        private final Condition[] segmentConditions;
+        private final List<Scoring> scorings;
+        private final Condition[][] scoringConditions;
+
+        private SharedDefinitions(SharedConditions conditions, List<Segment> segments, Condition[] segmentConditions, List<Scoring> scorings,
+                                  Condition[][] scoringConditions) {
+            this.conditions = conditions;
+            this.segments = segments;
+            this.segmentConditions = segmentConditions;
+            this.scorings = scorings;
+            this.scoringConditions = scoringConditions;
+        }
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.unomi.services.services;
+
+import org.apache.unomi.api.CustomItem;
+import org.apache.unomi.api.Item;
+import org.apache.unomi.api.conditions.Condition;
+
+import java.util.*;
+
+/**
+ * The tracked conditions of the rules, indexed by the source properties tested by their source event conditions, with the tracked conditions
+ * matching each distinct source cached. Instances are immutable apart from the cache, and are rebuilt when the tracked or source conditions of the
+ * rules change.
+ */
+class TrackedConditions {
+
+    private static final String SOURCE_EVENT_PROPERTY_CONDITION = "sourceEventPropertyCondition";
+    private static final String[] SOURCE_PROPERTIES = {"id", "type", "scope", "path"};
+
+    /**
+     * The tracked and source conditions of each rule with a tracked condition, used to detect changes.
+     */
+    private final List<Condition> conditions;
+    private final Set<Condition> allConditions;
+    private final Set<Condition> unconditionalConditions;
+    private final Map<String, List<IndexedCondition>> conditionsByScope = new HashMap<>();
+    private final List<IndexedCondition> anyScopeConditions = new ArrayList<>();
+    private final List<Condition[]> dynamicConditions = new ArrayList<>();
+    private final Map<List<String>, Set<Condition>> cache;
+
+    /**
+     * @param conditions the tracked condition and source event condition (possibly {@code null}) of each rule, as consecutive elements
+     * @param cacheSize  the maximum number of distinct sources whose tracked conditions are cached
+     */
+    TrackedConditions(List<Condition> conditions, final int cacheSize) {
+        this.conditions = conditions;
+        Set<Condition> allConditions = new HashSet<>();
+        Set<Condition> unconditionalConditions = new HashSet<>();
+        for (int i = 0; i < conditions.size(); i += 2) {
+            Condition trackedCondition = conditions.get(i);
+            Condition sourceCondition = conditions.get(i + 1);
+            allConditions.add(trackedCondition);
+            if (sourceCondition == null) {
+                unconditionalConditions.add(trackedCondition);
+                continue;
+            }
+            String[] values = new String[SOURCE_PROPERTIES.length];
+            if (!getSourceProperties(sourceCondition, values)) {
+                dynamicConditions.add(new Condition[]{trackedCondition, sourceCondition});
+            } else {
+                IndexedCondition indexedCondition = new IndexedCondition(trackedCondition, values);
+                if (values[2] != null) {
+                    List<IndexedCondition> scopeConditions = conditionsByScope.get(values[2]);
+                    if (scopeConditions == null) {
+                        scopeConditions = new ArrayList<>();
+                        conditionsByScope.put(values[2], scopeConditions);
+                    }
+                    scopeConditions.add(indexedCondition);
+                } else {
+                    anyScopeConditions.add(indexedCondition);
+                }
+            }
+        }
+        this.allConditions = Collections.unmodifiableSet(allConditions);
+        this.unconditionalConditions = Collections.unmodifiableSet(unconditionalConditions);
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<List<String>, Set<Condition>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, Set<Condition>> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Retrieves the tracked conditions whose source event condition can be evaluated against the source properties, cached per source.
+     *
+     * @param source the source of the request, or {@code null} to retrieve all tracked conditions
+     * @return an unmodifiable set of tracked conditions
+     */
+    Set<Condition> getIndexedConditions(Item source) {
+        if (source == null) {
+            return allConditions;
+        }
+        String[] sourceValues = {source.getItemId(), source.getItemType(), source.getScope(), getPagePath(source)};
+        List<String> signature = Arrays.asList(sourceValues);
+        Set<Condition> trackedConditions = cache.get(signature);
+        if (trackedConditions == null) {
+            Set<Condition> matchingConditions = new HashSet<>(unconditionalConditions);
+            if (sourceValues[2] != null) {
+                addMatchingConditions(conditionsByScope.get(sourceValues[2]), sourceValues, matchingConditions);
+            }
+            addMatchingConditions(anyScopeConditions, sourceValues, matchingConditions);
+            trackedConditions = Collections.unmodifiableSet(matchingConditions);
+            cache.put(signature, trackedConditions);
+        }
+        return trackedConditions;
+    }
+
+    /**
+     * Retrieves the tracked and source event conditions of the rules whose source event conditions cannot be indexed, and need to be tested for each
+     * source.
+     *
+     * @return a list of tracked condition - source event condition pairs
+     */
+    List<Condition[]> getDynamicConditions() {
+        return dynamicConditions;
+    }
+
+    private static void addMatchingConditions(List<IndexedCondition> indexedConditions, String[] sourceValues, Set<Condition> matchingConditions) {
+        if (indexedConditions == null) {
+            return;
+        }
+        for (IndexedCondition indexedCondition : indexedConditions) {
+            if (indexedCondition.matches(sourceValues)) {
+                matchingConditions.add(indexedCondition.trackedCondition);
+            }
+        }
+    }
+
+    /**
+     * Extracts the values tested by a source event condition made of source event property conditions, as evaluated by the
+     * sourceEventPropertyConditionEvaluator : equality of the source identifier, type, scope and page path.
+     *
+     * @param values the values to fill, {@code null} values are not tested
+     * @return {@code false} if the condition tests something else and cannot be indexed
+     */
+    private static boolean getSourceProperties(Condition condition, String[] values) {
+        if ("booleanCondition".equals(condition.getConditionTypeId()) && "and".equals(condition.getParameter("operator"))
+                && condition.getParameter("subConditions") instanceof List) {
+            for (Object subCondition : (List<?>) condition.getParameter("subConditions")) {
+                if (!(subCondition instanceof Condition) || !getSourceProperties((Condition) subCondition, values)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!SOURCE_EVENT_PROPERTY_CONDITION.equals(condition.getConditionTypeId())) {
+            return false;
+        }
+        for (int i = 0; i < SOURCE_PROPERTIES.length; i++) {
+            Object value = condition.getParameter(SOURCE_PROPERTIES[i]);
+            if (value == null || "".equals(value)) {
+                continue;
+            }
+            if (!(value instanceof String) || ((String) value).startsWith("parameter::") || ((String) value).startsWith("script::")) {
+                return false;
+            }
+            if (values[i] != null && !values[i].equals(value)) {
+                // contradictory values, left to the condition evaluator
+                return false;
+            }
+            values[i] = (String) value;
+        }
+        return true;
+    }
+
+    private static String getPagePath(Item source) {
+        if (source instanceof CustomItem && ((CustomItem) source).getProperties() != null) {
+            Object pageInfo = ((CustomItem) source).getProperties().get("pageInfo");
+            if (pageInfo instanceof Map) {
+                Object pagePath = ((Map<?, ?>) pageInfo).get("pagePath");
+                return pagePath != null ? pagePath.toString() : null;
+            }
+        }
+        return null;
+    }
+
+    private static class IndexedCondition {
+        private final Condition trackedCondition;
+        private final String[] values;
+
+        IndexedCondition(Condition trackedCondition, String[] values) {
+            this.trackedCondition = trackedCondition;
+            this.values = values;
+        }
+
+        boolean matches(String[] sourceValues) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && !values[i].equals(sourceValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
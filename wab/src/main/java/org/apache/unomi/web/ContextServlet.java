@@ -42,6 +42,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A servlet filter to serve a context-specific Javascript containing the current request context object.
@@ -60,9 +61,24 @@ public class ContextServlet extends HttpServlet {
     private String profileIdCookieName = "context-profile-id";
     private String profileIdCookieDomain;
 
+    private int filterThreads = 0;
+    private ExecutorService filterExecutor;
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
+        if (filterThreads > 0) {
+            // when all threads are busy, the filters are evaluated by the request thread
+            filterExecutor = new ThreadPoolExecutor(filterThreads, filterThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(filterThreads * 16),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "unomi-context-filters");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
         logger.info("ContextServlet initialized.");
     }
 
@@ -269,7 +285,8 @@ public class ContextServlet extends HttpServlet {
 
     private Profile checkMergedProfile(ServletResponse response, Profile profile, Session session) {
         if (profile.getMergedWith() != null && !privacyService.isRequireAnonymousBrowsing(profile.getItemId()) && !profile.isAnonymousProfile()) {
-            String profileId = profile.getMergedWith();
+            // follow the whole merge chain at once, aliases are cached
+            String profileId = profileService.resolveProfileId(profile.getMergedWith());
             Profile profileToDelete = profile;
             profile = profileService.load(profileId);
             if (profile != null) {
@@ -350,15 +367,7 @@ public class ContextServlet extends HttpServlet {
 
         List<ContextRequest.FilteredContent> filterNodes = contextRequest.getFilters();
         if (filterNodes != null) {
-            data.setFilteringResults(new HashMap<String, Boolean>());
-            for (ContextRequest.FilteredContent filteredContent : filterNodes) {
-                boolean result = true;
-                for (ContextRequest.Filter filter : filteredContent.getFilters()) {
-                    Condition condition = filter.getCondition();
-                    result &= profileService.matchCondition(condition, profile, session);
-                }
-                data.getFilteringResults().put(filteredContent.getFilterid(), result);
-            }
+            data.setFilteringResults(evaluateFilters(filterNodes, profile, session));
         }
 
         if(!(profile instanceof Persona)) {
@@ -401,10 +410,68 @@ public class ContextServlet extends HttpServlet {
     }
 
 
+    /**
+     * Evaluates the filters of the personalized fragments. Identical conditions are only matched once per request, and fragments are evaluated in
+     * parallel if a filter pool is configured.
+     */
+    private Map<String, Boolean> evaluateFilters(List<ContextRequest.FilteredContent> filterNodes, final Profile profile, final Session session) {
+        final Map<Condition, Boolean> results = new ConcurrentHashMap<>();
+        Map<String, Boolean> filteringResults = new HashMap<>();
+        ExecutorService filterExecutor = this.filterExecutor;
+        if (filterExecutor == null || filterNodes.size() < 2) {
+            for (ContextRequest.FilteredContent filteredContent : filterNodes) {
+                filteringResults.put(filteredContent.getFilterid(), matchFilters(filteredContent, profile, session, results));
+            }
+            return filteringResults;
+        }
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<>();
+        for (final ContextRequest.FilteredContent filteredContent : filterNodes) {
+            futures.put(filteredContent.getFilterid(), filterExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return matchFilters(filteredContent, profile, session, results);
+                }
+            }));
+        }
+        for (Map.Entry<String, Future<Boolean>> future : futures.entrySet()) {
+            try {
+                filteringResults.put(future.getKey(), future.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while evaluating filter " + future.getKey(), e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+        return filteringResults;
+    }
+
+    private boolean matchFilters(ContextRequest.FilteredContent filteredContent, Profile profile, Session session, Map<Condition, Boolean> results) {
+        for (ContextRequest.Filter filter : filteredContent.getFilters()) {
+            Condition condition = filter.getCondition();
+            Boolean result = results.get(condition);
+            if (result == null) {
+                result = profileService.matchCondition(condition, profile, session);
+                results.put(condition, result);
+            }
+            if (!result) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void destroy() {
+        if (filterExecutor != null) {
+            filterExecutor.shutdown();
+        }
         logger.info("Context servlet shutdown.");
     }
 
+    public void setFilterThreads(int filterThreads) {
+        this.filterThreads = filterThreads;
+    }
+
     public void setProfileService(ProfileService profileService) {
         this.profileService = profileService;
     }